@@ -0,0 +1,65 @@
+#!/usr/bin/env bash
+# Compares startup time and footprint of the full and slim jars by
+# repeatedly converting a small PBF to a local ORC file.
+#
+#   ./gradlew jar slimJar
+#   bench/startup.sh <small.osm.pbf> [runs]
+
+set -euo pipefail
+
+input=${1:?usage: $0 <small.osm.pbf> [runs]}
+runs=${2:-10}
+libs=$(dirname "$0")/../build/libs
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+# GNU time reports max RSS; BSD (macOS) time has no -f
+if /usr/bin/time -f "%e %M" -o /dev/null true 2> /dev/null; then
+  timer=(/usr/bin/time -f "%e %M" -o "$out/time")
+else
+  timer=()
+fi
+
+# BSD date has no %N
+now() {
+  if [[ $(date +%N) == N ]]; then
+    perl -MTime::HiRes=time -e 'printf "%d\n", time * 1e9'
+  else
+    date +%s%N
+  fi
+}
+
+for variant in all slim; do
+  jar=$(ls "$libs"/osm2orc-*-"$variant".jar 2>/dev/null | head -n 1 || true)
+
+  if [[ -z "$jar" ]]; then
+    echo "$variant: no jar in $libs (run ./gradlew jar slimJar)" >&2
+    continue
+  fi
+
+  total=0
+  rss=0
+
+  for ((i = 0; i < runs; i++)); do
+    rm -f "$out/out.orc"
+    start=$(now)
+    # bash < 4.4 treats expanding an empty array as unbound under set -u
+    ${timer[@]+"${timer[@]}"} java -jar "$jar" "$input" "$out/out.orc" > /dev/null
+    end=$(now)
+    total=$((total + end - start))
+
+    if [[ -f "$out/time" ]]; then
+      kb=$(awk '{ print $2 }' "$out/time")
+      ((kb > rss)) && rss=$kb
+    fi
+  done
+
+  size=$(($(wc -c < "$jar") / 1024 / 1024))
+  mean=$((total / runs / 1000000))
+
+  if ((rss > 0)); then
+    echo "$variant: jar ${size} MB, mean ${mean} ms over ${runs} runs, max RSS $((rss / 1024)) MB"
+  else
+    echo "$variant: jar ${size} MB, mean ${mean} ms over ${runs} runs"
+  fi
+done
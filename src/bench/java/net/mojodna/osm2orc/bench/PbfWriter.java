@@ -0,0 +1,368 @@
+package net.mojodna.osm2orc.bench;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * A minimal PBF encoder for synthetic inputs: nodes as DenseNodes, then ways
+ * and relations, each group in its own zlib-compressed block of up to 8000
+ * entities (as osmium and osmosis write them). Entities must be added in
+ * type, then id order; metadata is always written. Tests use it to build
+ * inputs for the decoder.
+ */
+public class PbfWriter implements Closeable {
+    private static final int BLOCK_SIZE = 8000;
+    private static final int NODE = 0;
+    private static final int WAY = 1;
+    private static final int RELATION = 2;
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater();
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<byte[]> table = new ArrayList<>();
+    private final Message group = new Message();
+    private int groupType = -1;
+    private int count;
+
+    // dense node columns, delta-encoded as they're added
+    private final Message denseIds = new Message();
+    private final Message denseVersions = new Message();
+    private final Message denseTimestamps = new Message();
+    private final Message denseChangesets = new Message();
+    private final Message denseUids = new Message();
+    private final Message denseUsers = new Message();
+    private final Message denseLats = new Message();
+    private final Message denseLons = new Message();
+    private final Message denseTags = new Message();
+    private long lastId;
+    private long lastTimestamp;
+    private long lastChangeset;
+    private long lastUid;
+    private long lastUser;
+    private long lastLat;
+    private long lastLon;
+
+    /**
+     * @param bbox
+     *            Left, bottom, right and top, in degrees.
+     */
+    public PbfWriter(OutputStream out, String writingProgram, double[] bbox) throws IOException {
+        this.out = new DataOutputStream(out);
+
+        Message box = new Message()
+                .signed(1, nanodegrees(bbox[0]))
+                .signed(2, nanodegrees(bbox[2]))
+                .signed(3, nanodegrees(bbox[3]))
+                .signed(4, nanodegrees(bbox[1]));
+        Message header = new Message()
+                .message(1, box)
+                .string(4, "OsmSchema-V0.6")
+                .string(4, "DenseNodes")
+                .string(5, "Sort.Type_then_ID")
+                .string(16, writingProgram);
+
+        writeBlob("OSMHeader", header);
+        clearStrings();
+    }
+
+    private static long nanodegrees(double degrees) {
+        return Math.round(degrees * 1e9);
+    }
+
+    /**
+     * @param latitude
+     *            In units of 100 nanodegrees.
+     * @param tags
+     *            Alternating keys and values.
+     */
+    public void node(long id, Info info, int latitude, int longitude, String... tags) throws IOException {
+        start(NODE);
+
+        denseIds.rawSigned(id - lastId);
+        denseVersions.rawVarint(info.version);
+        denseTimestamps.rawSigned(info.timestamp / 1000 - lastTimestamp);
+        denseChangesets.rawSigned(info.changeset - lastChangeset);
+        denseUids.rawSigned(info.uid - lastUid);
+        int user = string(info.user);
+        denseUsers.rawSigned(user - lastUser);
+        denseLats.rawSigned(latitude - lastLat);
+        denseLons.rawSigned(longitude - lastLon);
+
+        lastId = id;
+        lastTimestamp = info.timestamp / 1000;
+        lastChangeset = info.changeset;
+        lastUid = info.uid;
+        lastUser = user;
+        lastLat = latitude;
+        lastLon = longitude;
+
+        for (String tag : tags) {
+            denseTags.rawVarint(string(tag));
+        }
+
+        denseTags.rawVarint(0);
+        count++;
+    }
+
+    public void way(long id, Info info, long[] refs, String... tags) throws IOException {
+        start(WAY);
+
+        Message way = new Message().varint(1, id);
+        tags(way, tags);
+        way.message(4, info(info));
+
+        Message packed = new Message();
+        long last = 0;
+
+        for (long ref : refs) {
+            packed.rawSigned(ref - last);
+            last = ref;
+        }
+
+        way.message(8, packed);
+        group.message(3, way);
+        count++;
+    }
+
+    /**
+     * @param types
+     *            Member types: 0 for nodes, 1 for ways and 2 for relations.
+     */
+    public void relation(long id, Info info, long[] members, int[] types, String[] roles, String... tags)
+            throws IOException {
+        start(RELATION);
+
+        Message relation = new Message().varint(1, id);
+        tags(relation, tags);
+        relation.message(4, info(info));
+
+        Message packedRoles = new Message();
+        Message packedMembers = new Message();
+        Message packedTypes = new Message();
+        long last = 0;
+
+        for (int i = 0; i < members.length; i++) {
+            packedRoles.rawVarint(string(roles[i]));
+            packedMembers.rawSigned(members[i] - last);
+            packedTypes.rawVarint(types[i]);
+            last = members[i];
+        }
+
+        relation.message(8, packedRoles).message(9, packedMembers).message(10, packedTypes);
+        group.message(4, relation);
+        count++;
+    }
+
+    private void tags(Message entity, String[] tags) {
+        Message keys = new Message();
+        Message values = new Message();
+
+        for (int i = 0; i < tags.length; i += 2) {
+            keys.rawVarint(string(tags[i]));
+            values.rawVarint(string(tags[i + 1]));
+        }
+
+        entity.message(2, keys).message(3, values);
+    }
+
+    private Message info(Info info) {
+        return new Message()
+                .varint(1, info.version)
+                .varint(2, info.timestamp / 1000)
+                .varint(3, info.changeset)
+                .varint(4, info.uid)
+                .varint(5, string(info.user));
+    }
+
+    private void start(int type) throws IOException {
+        if (type != groupType || count == BLOCK_SIZE) {
+            flush();
+            groupType = type;
+        }
+    }
+
+    private int string(String value) {
+        Integer index = strings.get(value);
+
+        if (index == null) {
+            index = table.size();
+            strings.put(value, index);
+            table.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return index;
+    }
+
+    private void clearStrings() {
+        strings.clear();
+        table.clear();
+        string("");
+    }
+
+    private void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        if (groupType == NODE) {
+            Message info = new Message()
+                    .message(1, denseVersions)
+                    .message(2, denseTimestamps)
+                    .message(3, denseChangesets)
+                    .message(4, denseUids)
+                    .message(5, denseUsers);
+
+            group.message(2, new Message()
+                    .message(1, denseIds)
+                    .message(5, info)
+                    .message(8, denseLats)
+                    .message(9, denseLons)
+                    .message(10, denseTags));
+
+            for (Message column : Arrays.asList(denseIds, denseVersions, denseTimestamps, denseChangesets,
+                    denseUids, denseUsers, denseLats, denseLons, denseTags)) {
+                column.clear();
+            }
+
+            lastId = lastTimestamp = lastChangeset = lastUid = lastUser = lastLat = lastLon = 0;
+        }
+
+        Message stringTable = new Message();
+
+        for (byte[] string : table) {
+            stringTable.bytes(1, string, string.length);
+        }
+
+        Message block = new Message()
+                .message(1, stringTable)
+                .message(2, group);
+
+        writeBlob("OSMData", block);
+
+        group.clear();
+        clearStrings();
+        count = 0;
+    }
+
+    private void writeBlob(String type, Message data) throws IOException {
+        byte[] compressed = new byte[data.size + data.size / 16 + 64];
+
+        deflater.reset();
+        deflater.setInput(data.bytes, 0, data.size);
+        deflater.finish();
+
+        int length = 0;
+
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        Message blob = new Message()
+                .varint(2, data.size)
+                .bytes(3, compressed, length);
+        Message header = new Message()
+                .string(1, type)
+                .varint(3, blob.size);
+
+        out.writeInt(header.size);
+        out.write(header.bytes, 0, header.size);
+        out.write(blob.bytes, 0, blob.size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            out.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * An entity's metadata; timestamps are in milliseconds (the default
+     * date granularity keeps whole seconds).
+     */
+    public static class Info {
+        public long version;
+        public long timestamp;
+        public long changeset;
+        public long uid;
+        public String user;
+    }
+
+    /**
+     * A protobuf message being encoded.
+     */
+    private static class Message {
+        byte[] bytes = new byte[256];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        Message varint(int field, long value) {
+            rawVarint(field << 3);
+            return rawVarint(value);
+        }
+
+        Message signed(int field, long value) {
+            rawVarint(field << 3);
+            return rawSigned(value);
+        }
+
+        Message string(int field, String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            return bytes(field, encoded, encoded.length);
+        }
+
+        Message message(int field, Message message) {
+            return bytes(field, message.bytes, message.size);
+        }
+
+        Message bytes(int field, byte[] value, int length) {
+            rawVarint(field << 3 | 2);
+            rawVarint(length);
+            ensure(length);
+            System.arraycopy(value, 0, bytes, size, length);
+            size += length;
+            return this;
+        }
+
+        Message rawSigned(long value) {
+            return rawVarint((value << 1) ^ (value >> 63));
+        }
+
+        Message rawVarint(long value) {
+            ensure(10);
+
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+    }
+}
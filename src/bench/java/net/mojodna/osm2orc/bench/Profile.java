@@ -0,0 +1,253 @@
+package net.mojodna.osm2orc.bench;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import net.mojodna.osm2orc.Osm2Orc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs an osm2orc conversion under Flight Recorder with one of the JDK's
+ * standard settings ("profile" by default), keeps the recording and prints
+ * where the time and allocation went:
+ *
+ * <pre>
+ * Profile [--settings default|profile] [--top n] [--recording out.jfr] -- [osm2orc options] input output
+ * </pre>
+ *
+ * The recording can be opened in JDK Mission Control or printed with
+ * <code>jfr print</code> for anything the summary leaves out.
+ */
+public class Profile {
+    private static void usage() {
+        System.err.println("Usage: Profile [--settings <default|profile>] [--top <n>] [--recording <file.jfr>]");
+        System.err.println("               -- [osm2orc options] <input> <output>");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String settings = "profile";
+        int top = 20;
+        Path recording = Paths.get("osm2orc.jfr");
+        int i = 0;
+
+        for (; i < args.length && !args[i].equals("--"); i++) {
+            if (i + 1 == args.length) {
+                usage();
+            }
+
+            switch (args[i]) {
+                case "--settings":
+                    settings = args[++i];
+                    break;
+
+                case "--top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+
+                case "--recording":
+                    recording = Paths.get(args[++i]);
+                    break;
+
+                default:
+                    usage();
+            }
+        }
+
+        if (i == args.length) {
+            usage();
+        }
+
+        String[] conversion = Arrays.copyOfRange(args, i + 1, args.length);
+
+        if (recording.getParent() != null) {
+            Files.createDirectories(recording.getParent());
+        }
+
+        long start = System.nanoTime();
+        int status;
+
+        try (Recording jfr = new Recording(Configuration.getConfiguration(settings))) {
+            jfr.setName("osm2orc");
+            jfr.setToDisk(true);
+            jfr.start();
+
+            try {
+                status = Osm2Orc.run(conversion, null);
+            } finally {
+                jfr.stop();
+                jfr.dump(recording);
+            }
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        summarize(recording, top, System.out);
+        System.out.println(String.format("Ran osm2orc %s in %dms (exit status %d); recording in %s",
+                String.join(" ", conversion), elapsed, status, recording));
+        System.exit(status);
+    }
+
+    /**
+     * Prints the hottest methods (by samples in which they're running, and
+     * in which they're anywhere on the stack), what's allocated most (by
+     * sampled weight) and where, and GC pauses.
+     */
+    static void summarize(Path recording, int top, PrintStream out) throws IOException {
+        Map<String, Long> self = new HashMap<>();
+        Map<String, Long> total = new HashMap<>();
+        // JDK 16+ samples allocations by weight; older JDKs record TLAB refills
+        Allocations sampled = new Allocations();
+        Allocations tlabs = new Allocations();
+        long samples = 0;
+        long collections = 0;
+        Duration pauses = Duration.ZERO;
+        Duration longestPause = Duration.ZERO;
+
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+
+                switch (event.getEventType().getName()) {
+                    case "jdk.ExecutionSample":
+                        List<RecordedFrame> frames = frames(event.getStackTrace());
+
+                        if (frames.isEmpty()) {
+                            break;
+                        }
+
+                        samples++;
+                        self.merge(method(frames.get(0)), 1L, Long::sum);
+
+                        // recursive methods count once per sample
+                        Set<String> seen = new HashSet<>();
+
+                        for (RecordedFrame frame : frames) {
+                            String method = method(frame);
+
+                            if (seen.add(method)) {
+                                total.merge(method, 1L, Long::sum);
+                            }
+                        }
+                        break;
+
+                    case "jdk.ObjectAllocationSample":
+                        sampled.add(event, event.getLong("weight"));
+                        break;
+
+                    case "jdk.ObjectAllocationInNewTLAB":
+                        tlabs.add(event, event.getLong("tlabSize"));
+                        break;
+
+                    case "jdk.ObjectAllocationOutsideTLAB":
+                        tlabs.add(event, event.getLong("allocationSize"));
+                        break;
+
+                    case "jdk.GarbageCollection":
+                        Duration pause = event.getDuration("sumOfPauses");
+                        collections++;
+                        pauses = pauses.plus(pause);
+
+                        if (pause.compareTo(longestPause) > 0) {
+                            longestPause = pause;
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+
+        out.println(String.format("CPU: %d execution samples", samples));
+        print("self", self, samples, top, out);
+        print("total", total, samples, top, out);
+
+        Allocations allocations = sampled.bytes > 0 ? sampled : tlabs;
+
+        out.println(String.format("Allocation: ~%d MB sampled", allocations.bytes / 1024 / 1024));
+        print("by type", allocations.types, allocations.bytes, top, out);
+        print("by site (first frame outside the JDK)", allocations.sites, allocations.bytes, top, out);
+
+        out.println(String.format("GC: %d collections, %dms paused in total, longest %dms", collections,
+                pauses.toMillis(), longestPause.toMillis()));
+    }
+
+    private static class Allocations {
+        final Map<String, Long> types = new HashMap<>();
+        final Map<String, Long> sites = new HashMap<>();
+        long bytes;
+
+        void add(RecordedEvent event, long weight) {
+            bytes += weight;
+            types.merge(event.getClass("objectClass").getName(), weight, Long::sum);
+            sites.merge(site(frames(event.getStackTrace())), weight, Long::sum);
+        }
+    }
+
+    private static List<RecordedFrame> frames(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return new ArrayList<>();
+        }
+
+        List<RecordedFrame> frames = new ArrayList<>();
+
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (frame.isJavaFrame()) {
+                frames.add(frame);
+            }
+        }
+
+        return frames;
+    }
+
+    private static String method(RecordedFrame frame) {
+        RecordedMethod method = frame.getMethod();
+
+        return method.getType().getName() + "." + method.getName();
+    }
+
+    /**
+     * The first frame in our (or a library's) code, since the allocating
+     * frame is usually somewhere like <code>Arrays.copyOf</code>.
+     */
+    private static String site(List<RecordedFrame> frames) {
+        for (RecordedFrame frame : frames) {
+            String type = frame.getMethod().getType().getName();
+
+            if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                return method(frame) + ":" + frame.getLineNumber();
+            }
+        }
+
+        return frames.isEmpty() ? "(no stack)" : method(frames.get(0));
+    }
+
+    private static void print(String title, Map<String, Long> counts, long total, int top, PrintStream out) {
+        out.println("  " + title + ":");
+
+        counts.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(top)
+                .forEach(entry -> out.println(String.format("    %5.1f%%  %s",
+                        100.0 * entry.getValue() / Math.max(1, total), entry.getKey())));
+    }
+}
@@ -0,0 +1,509 @@
+package net.mojodna.osm2orc.bench;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic PBF and changeset dump with roughly planet-like shape,
+ * so that performance work has inputs anyone can reproduce: the same seed
+ * and sizes always produce the same bytes.
+ *
+ * <ul>
+ * <li>Nodes are mostly untagged; ids and locations run in spatial clusters,
+ * and ways walk consecutive nodes, as mappers create them.</li>
+ * <li>Ways are mostly buildings (short, closed) and highways (log-normal
+ * lengths with a long tail), with a primary tag plus a geometric number of
+ * attribute tags.</li>
+ * <li>Relations are multipolygons, routes, boundaries and restrictions, with
+ * Pareto-distributed member counts and the usual roles.</li>
+ * <li>Users and changesets are skewed towards a few prolific mappers and
+ * recent edits; entity timestamps match their changesets.</li>
+ * </ul>
+ */
+public class SyntheticInputs {
+    private static final long START = Instant.parse("2008-01-01T00:00:00Z").toEpochMilli();
+    private static final long END = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+    private static final int USERS = 5000;
+
+    private static final String[] NODE_KEYS = {
+            "highway", "crossing", "natural", "amenity", "barrier", "power", "shop", "name", "entrance",
+            "addr:housenumber", "addr:street", "traffic_signals", "railway", "tourism", "source"
+    };
+    private static final String[] NODE_VALUES = {
+            "crossing", "traffic_signals", "tree", "bench", "gate", "tower", "pole", "bus_stop", "yes",
+            "uncontrolled", "marked", "stop", "convenience", "restaurant", "level_crossing"
+    };
+    private static final String[] HIGHWAYS = {
+            "residential", "service", "track", "footway", "unclassified", "path", "tertiary", "secondary",
+            "primary", "cycleway", "living_street", "trunk", "motorway", "steps"
+    };
+    private static final String[] BUILDINGS = {
+            "yes", "house", "residential", "garage", "apartments", "detached", "shed", "commercial", "industrial"
+    };
+    private static final String[][] AREAS = {
+            {"landuse", "residential"}, {"landuse", "farmland"}, {"natural", "wood"}, {"natural", "water"},
+            {"waterway", "stream"}, {"leisure", "park"}, {"amenity", "parking"}, {"landuse", "grass"}
+    };
+    private static final String[] ATTRIBUTE_KEYS = {
+            "name", "surface", "source", "oneway", "maxspeed", "lanes", "addr:housenumber", "addr:street",
+            "building:levels", "lit", "ref", "tiger:county", "layer", "access", "note"
+    };
+    private static final String[] ATTRIBUTE_VALUES = {
+            "yes", "no", "asphalt", "paved", "gravel", "2", "1", "30 mph", "25", "Bing", "survey", "Main Street",
+            "Ch\u00e2teau-d'Eau", "\u6771\u4eac\u99c5", "Stra\u00dfe", "private", "-1"
+    };
+    private static final String[] EDITORS = {
+            "iD 2.27.3", "JOSM/1.5 (18822 en)", "StreetComplete 55.1", "Potlatch 2", "Every Door 4.0",
+            "Vespucci 19.0", "OsmAnd+ 4.6", "Go Map!! 4.1", "MAPS.ME android 14.0"
+    };
+    private static final String[] WORDS = {
+            "add", "fix", "update", "building", "buildings", "road", "roads", "name", "names", "from", "survey",
+            "imagery", "align", "#hotosm-project-1234", "#missingmaps", "tags", "&", "<draft>", "\"quoted\"",
+            "caf\u00e9", "\u8def", "\u0434\u043e\u0440\u043e\u0433\u0430"
+    };
+
+    private final Random random;
+    private final long nodes;
+    private final long ways;
+    private final long relations;
+    private final long changesets;
+    private final double[] bbox;
+
+    public SyntheticInputs(long seed, long nodes, long changesets, double[] bbox) {
+        this.random = new Random(seed);
+        this.nodes = nodes;
+        // about the planet's proportions
+        this.ways = nodes / 9;
+        this.relations = Math.max(ways > 0 ? 1 : 0, ways / 80);
+        this.changesets = Math.max(1, changesets);
+        this.bbox = bbox;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SyntheticInputs [--seed <n>] [--nodes <n>] [--changesets <n>]");
+        System.err.println("                       [--bbox <left,bottom,right,top>] <output.osm.pbf> <changesets.osm[.bz2]>");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        long nodes = 1000000;
+        long changesets = 100000;
+        double[] bbox = {-75.79, 38.45, -75.05, 39.84};
+        List<String> positional = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 == args.length) {
+                usage();
+            }
+
+            switch (args[i]) {
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+
+                case "--nodes":
+                    nodes = Long.parseLong(args[++i]);
+                    break;
+
+                case "--changesets":
+                    changesets = Long.parseLong(args[++i]);
+                    break;
+
+                case "--bbox":
+                    String[] parts = args[++i].split(",");
+
+                    if (parts.length != 4) {
+                        usage();
+                    }
+
+                    for (int j = 0; j < 4; j++) {
+                        bbox[j] = Double.parseDouble(parts[j]);
+                    }
+                    break;
+
+                default:
+                    positional.add(args[i]);
+            }
+        }
+
+        if (positional.size() != 2) {
+            usage();
+        }
+
+        SyntheticInputs inputs = new SyntheticInputs(seed, nodes, changesets, bbox);
+
+        long start = System.nanoTime();
+        inputs.writePbf(positional.get(0));
+        inputs.writeChangesets(positional.get(1));
+
+        System.err.println(String.format("Wrote %d nodes, %d ways, %d relations and %d changesets in %dms",
+                inputs.nodes, inputs.ways, inputs.relations, inputs.changesets,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Ids increase by 1 to 3, deterministically.
+     */
+    private static long id(long index) {
+        long mixed = index * 0x9E3779B97F4A7C15L;
+        return 1 + index * 2 + ((mixed >>> 40) & 1);
+    }
+
+    private long geometric(double p) {
+        return (long) (Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+    }
+
+    private long pareto(long min, double alpha, long max) {
+        return Math.min(max, (long) (min / Math.pow(1 - random.nextDouble(), 1 / alpha)));
+    }
+
+    private <T> T pick(T[] values) {
+        // favors the start of the array
+        double r = random.nextDouble();
+        return values[(int) (values.length * r * r)];
+    }
+
+    private void info(PbfWriter.Info info) {
+        // edits lean recent, as the planet's do
+        info.changeset = Math.min(changesets, 1 + (long) (changesets * Math.sqrt(random.nextDouble())));
+        info.timestamp = createdAt(info.changeset);
+        info.version = 1 + geometric(0.6);
+        user(info.changeset, info);
+    }
+
+    private long createdAt(long changeset) {
+        return (START + (END - START) / changesets * (changeset - 1)) / 1000 * 1000;
+    }
+
+    /**
+     * Each changeset belongs to one user; a few users make most of them.
+     */
+    private static void user(long changeset, PbfWriter.Info info) {
+        long mixed = (changeset * 0x9E3779B97F4A7C15L) >>> 11;
+        double r = (mixed & ((1L << 53) - 1)) / (double) (1L << 53);
+        int user = (int) (USERS * r * r * r);
+
+        info.uid = 11 + user * 37L;
+        info.user = user % 7 == 3 ? "mapper_" + user + "_\u00e9" : "mapper_" + user;
+    }
+
+    public void writePbf(String path) throws IOException {
+        PbfWriter.Info info = new PbfWriter.Info();
+        double latitude = 0;
+        double longitude = 0;
+
+        try (PbfWriter writer = new PbfWriter(
+                new BufferedOutputStream(new FileOutputStream(path), 1024 * 1024), "osm2orc-synthetic", bbox)) {
+            for (long i = 0; i < nodes; i++) {
+                if (i == 0 || random.nextInt(50) == 0) {
+                    // start a new cluster
+                    latitude = bbox[1] + random.nextDouble() * (bbox[3] - bbox[1]);
+                    longitude = bbox[0] + random.nextDouble() * (bbox[2] - bbox[0]);
+                } else {
+                    latitude = clamp(latitude + random.nextGaussian() * 0.0003, bbox[1], bbox[3]);
+                    longitude = clamp(longitude + random.nextGaussian() * 0.0003, bbox[0], bbox[2]);
+                }
+
+                info(info);
+                writer.node(id(i), info, (int) Math.round(latitude * 1e7), (int) Math.round(longitude * 1e7),
+                        nodeTags());
+            }
+
+            for (long i = 0; i < ways; i++) {
+                info(info);
+                writeWay(writer, info, id(i));
+            }
+
+            for (long i = 0; i < relations; i++) {
+                info(info);
+                writeRelation(writer, info, id(i), i);
+            }
+        }
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private String[] nodeTags() {
+        if (random.nextInt(100) < 88) {
+            return new String[0];
+        }
+
+        String[] tags = new String[2 * (int) Math.min(NODE_KEYS.length, 1 + geometric(0.45))];
+
+        for (int i = 0; i < tags.length; i += 2) {
+            // keys are distinct: walk the vocabulary from a random start
+            tags[i] = NODE_KEYS[(random.nextInt(NODE_KEYS.length) + i / 2) % NODE_KEYS.length];
+            tags[i + 1] = pick(NODE_VALUES);
+        }
+
+        return tags;
+    }
+
+    private void writeWay(PbfWriter writer, PbfWriter.Info info, long id) throws IOException {
+        int kind = random.nextInt(100);
+        String key;
+        String value;
+        int length;
+        boolean closed;
+
+        if (kind < 45) {
+            key = "building";
+            value = pick(BUILDINGS);
+            length = 4 + (int) Math.min(60, geometric(0.5));
+            closed = true;
+        } else if (kind < 85) {
+            key = "highway";
+            value = pick(HIGHWAYS);
+            length = (int) Math.max(2, Math.min(2000, Math.exp(2 + random.nextGaussian() * 0.9)));
+            closed = random.nextInt(20) == 0;
+        } else {
+            String[] area = AREAS[random.nextInt(AREAS.length)];
+            key = area[0];
+            value = area[1];
+            length = (int) Math.max(3, Math.min(2000, Math.exp(2.5 + random.nextGaussian() * 1.1)));
+            closed = !key.equals("waterway");
+        }
+
+        long[] refs = new long[closed ? length + 1 : length];
+        // walk consecutive nodes from a random start, with the odd junction elsewhere
+        long start = (long) (random.nextDouble() * Math.max(1, nodes - length));
+
+        for (int i = 0; i < length; i++) {
+            refs[i] = random.nextInt(25) == 0
+                    ? id((long) (random.nextDouble() * nodes)) : id(Math.min(nodes - 1, start + i));
+        }
+
+        if (closed) {
+            refs[length] = refs[0];
+        }
+
+        int attributes = (int) Math.min(ATTRIBUTE_KEYS.length, geometric(0.4));
+        String[] tags = new String[2 + 2 * attributes];
+        tags[0] = key;
+        tags[1] = value;
+        int first = random.nextInt(ATTRIBUTE_KEYS.length);
+
+        for (int i = 0; i < attributes; i++) {
+            tags[2 + 2 * i] = ATTRIBUTE_KEYS[(first + i) % ATTRIBUTE_KEYS.length];
+            tags[3 + 2 * i] = pick(ATTRIBUTE_VALUES);
+        }
+
+        writer.way(id, info, refs, tags);
+    }
+
+    private void writeRelation(PbfWriter writer, PbfWriter.Info info, long id, long index) throws IOException {
+        int kind = random.nextInt(100);
+        int size;
+        String[] tags;
+
+        if (kind < 55) {
+            size = (int) pareto(1, 1.5, 1000);
+            tags = new String[] {"type", "multipolygon", AREAS[random.nextInt(AREAS.length)][0], "yes"};
+        } else if (kind < 80) {
+            size = (int) pareto(3, 1.1, 3000);
+            tags = new String[] {"type", "route", "route", random.nextBoolean() ? "bus" : "bicycle",
+                    "name", "Route " + random.nextInt(500), "ref", Integer.toString(random.nextInt(500))};
+        } else if (kind < 90) {
+            size = (int) pareto(4, 0.9, 5000);
+            tags = new String[] {"type", "boundary", "boundary", "administrative",
+                    "admin_level", Integer.toString(2 + random.nextInt(9)), "name", "Region " + index};
+        } else {
+            size = 3;
+            tags = new String[] {"type", "restriction", "restriction", "no_left_turn"};
+        }
+
+        long[] members = new long[size];
+        int[] types = new int[size];
+        String[] roles = new String[size];
+        long start = (long) (random.nextDouble() * Math.max(1, ways - size));
+
+        for (int i = 0; i < size; i++) {
+            types[i] = 1;
+            members[i] = id(Math.min(ways - 1, start + i));
+
+            if (kind < 55) {
+                roles[i] = i == 0 || random.nextInt(4) == 0 ? "outer" : "inner";
+            } else if (kind < 80) {
+                if (random.nextInt(3) == 0) {
+                    types[i] = 0;
+                    members[i] = id((long) (random.nextDouble() * nodes));
+                    roles[i] = random.nextBoolean() ? "stop" : "platform";
+                } else {
+                    roles[i] = random.nextInt(10) == 0 ? "forward" : "";
+                }
+            } else if (kind < 90) {
+                if (i == 0) {
+                    types[i] = 0;
+                    members[i] = id((long) (random.nextDouble() * nodes));
+                    roles[i] = "admin_centre";
+                } else if (i == 1 && index > 0) {
+                    types[i] = 2;
+                    members[i] = id((long) (random.nextDouble() * index));
+                    roles[i] = "subarea";
+                } else {
+                    roles[i] = "outer";
+                }
+            } else {
+                types[i] = i == 1 ? 0 : 1;
+                members[i] = i == 1 ? id((long) (random.nextDouble() * nodes)) : members[i];
+                roles[i] = i == 0 ? "from" : i == 1 ? "via" : "to";
+            }
+        }
+
+        writer.relation(id, info, members, types, roles, tags);
+    }
+
+    /**
+     * Writes a changeset dump like planet's changesets-*.osm, compressed if
+     * the path ends with <code>.bz2</code>.
+     */
+    public void writeChangesets(String path) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 1024 * 1024);
+
+        if (path.endsWith(".bz2")) {
+            out = new BZip2CompressorOutputStream(out);
+        }
+
+        PbfWriter.Info info = new PbfWriter.Info();
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 256 * 1024)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<osm version=\"0.6\" generator=\"osm2orc-synthetic\">\n");
+
+            for (long id = 1; id <= changesets; id++) {
+                user(id, info);
+
+                long createdAt = createdAt(id);
+                boolean open = id > changesets - changesets / 1000;
+                long changes = pareto(1, 0.9, 10000);
+
+                writer.write(" <changeset id=\"" + id + "\" created_at=\"" + Instant.ofEpochMilli(createdAt) + "\"");
+
+                if (!open) {
+                    writer.write(" closed_at=\"" + Instant.ofEpochMilli(createdAt + 1000 * (1 + random.nextInt(3600))) + "\"");
+                }
+
+                writer.write(" open=\"" + open + "\" user=\"" + escape(info.user) + "\" uid=\"" + info.uid + "\"");
+
+                if (random.nextInt(50) != 0) {
+                    // extent grows with the size of the edit
+                    double extent = 0.0005 * Math.log(1 + changes) * (1 + random.nextDouble());
+                    double latitude = bbox[1] + random.nextDouble() * (bbox[3] - bbox[1]);
+                    double longitude = bbox[0] + random.nextDouble() * (bbox[2] - bbox[0]);
+
+                    writer.write(" min_lat=\"" + degrees(latitude) + "\" min_lon=\"" + degrees(longitude)
+                            + "\" max_lat=\"" + degrees(Math.min(90, latitude + extent))
+                            + "\" max_lon=\"" + degrees(Math.min(180, longitude + extent)) + "\"");
+                }
+
+                long comments = random.nextInt(20) == 0 ? 1 + geometric(0.5) : 0;
+                writer.write(" num_changes=\"" + changes + "\" comments_count=\"" + comments + "\"");
+
+                String[] tags = changesetTags();
+
+                if (tags.length == 0) {
+                    writer.write("/>\n");
+                    continue;
+                }
+
+                writer.write(">\n");
+
+                for (int i = 0; i < tags.length; i += 2) {
+                    writer.write("  <tag k=\"" + tags[i] + "\" v=\"" + escape(tags[i + 1]) + "\"/>\n");
+                }
+
+                writer.write(" </changeset>\n");
+            }
+
+            writer.write("</osm>\n");
+        }
+    }
+
+    private String[] changesetTags() {
+        if (random.nextInt(20) == 0) {
+            return new String[0];
+        }
+
+        List<String> tags = new ArrayList<>();
+        tags.add("created_by");
+        tags.add(pick(EDITORS));
+
+        if (random.nextInt(10) < 8) {
+            StringBuilder comment = new StringBuilder();
+
+            for (long i = 0, words = 1 + geometric(0.25); i < words; i++) {
+                comment.append(i == 0 ? "" : " ").append(pick(WORDS));
+            }
+
+            tags.add("comment");
+            tags.add(comment.toString());
+        }
+
+        if (random.nextBoolean()) {
+            tags.add("source");
+            tags.add(random.nextBoolean() ? "Bing Maps Aerial" : "survey");
+        }
+
+        if (random.nextInt(3) == 0) {
+            tags.add("imagery_used");
+            tags.add("Esri World Imagery;Bing aerial imagery");
+        }
+
+        tags.add("locale");
+        tags.add(random.nextInt(4) == 0 ? "de" : "en-US");
+
+        if (random.nextInt(4) == 0) {
+            tags.add("changesets_count");
+            tags.add(Integer.toString(1 + random.nextInt(20000)));
+        }
+
+        return tags.toArray(new String[0]);
+    }
+
+    private static String degrees(double degrees) {
+        return BigDecimal.valueOf(Math.round(degrees * 1e7), 7).toPlainString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+
+                default:
+                    escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+}
@@ -1,42 +1,687 @@
 package net.mojodna.osm2orc;
 
+import net.mojodna.osm2orc.orc.ChangesetTagStore;
+import net.mojodna.osm2orc.orc.OsmSchema;
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.orc.index.OsmIdSets;
+import net.mojodna.osm2orc.orc.index.OsmOrcLookup;
+import net.mojodna.osm2orc.orc.stats.EntityCounter;
+import net.mojodna.osm2orc.orc.stats.OsmOrcStats;
+import net.mojodna.osm2orc.service.ConversionService;
+import net.mojodna.osm2orc.standalone.BatchConverter;
+import net.mojodna.osm2orc.standalone.InputSampler;
 import net.mojodna.osm2orc.standalone.OsmChangesetXml2Orc;
+import net.mojodna.osm2orc.standalone.OsmPbf2Areas;
 import net.mojodna.osm2orc.standalone.OsmPbf2Orc;
+import net.mojodna.osm2orc.standalone.extract.BoundingBox;
+import net.mojodna.osm2orc.standalone.extract.PolygonRegion;
+import net.mojodna.osm2orc.standalone.extract.Region;
+import net.mojodna.osm2orc.standalone.io.Inputs;
+import net.mojodna.osm2orc.standalone.pbf.PbfDecoder;
+import net.mojodna.osm2orc.standalone.replication.ReplicationFollower;
+import net.mojodna.osm2orc.util.IdSet;
+import net.mojodna.osm2orc.util.MemoryBudget;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
 
 public class Osm2Orc {
+    private static final int AUTO_PROMOTED_KEYS = 16;
+    private static final String DEFAULT_CHANGESET_TAGS = "created_by,source,comment";
+
+    /**
+     * Invalid command-line arguments.
+     */
+    public static class UsageException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public UsageException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Options {
+        boolean changesets;
+        boolean history;
+        boolean index;
+        boolean lookup;
+        boolean areas;
+        boolean planEncodings;
+        boolean typeEnum;
+        boolean memberTypeEnum;
+        boolean ids;
+        boolean validate;
+        boolean stats;
+        boolean sort;
+        String sortDirectory = System.getProperty("java.io.tmpdir");
+        String compare;
+        String report;
+        String promoteKeys;
+        String batchOutput;
+        String follow;
+        long minInterval;
+        long poll = 10;
+        long startSequence = -1;
+        boolean once;
+        int workers;
+        Region region;
+        String changesetOrc;
+        String changesetTags = DEFAULT_CHANGESET_TAGS;
+        ChangesetTagStore changesetTagStore;
+        MemoryBudget memoryBudget;
+        OsmSchema.RefEncoding refEncoding = OsmSchema.RefEncoding.LIST;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: osm2orc [--changesets] [--history] [--index] [--promote-keys <key,...|auto>]");
+        System.err.println("               [--plan-encodings] [--type-enum] [--member-type-enum] [--refs <list|both|delta>]");
+        System.err.println("               [--ids] [--validate] [--bbox <left,bottom,right,top> | --polygon <file.poly>]");
+        System.err.println("               [--join-changesets <changesets.orc> [--changeset-tags <key,...>]]");
+        System.err.println("               [--sort [--sort-dir <dir>] [--workers <n>]]");
+        System.err.println("               [--memory-budget <size>] <input> <output>");
+        System.err.println("       osm2orc --batch <output-dir> [--workers <n>] [options] <input|@list|glob>...");
+        System.err.println("       osm2orc --follow <replication-dir> [--min-interval <seconds>] [--poll <seconds>]");
+        System.err.println("               [--start-sequence <n>] [--once] [schema options] <output-dir>");
+        System.err.println("       osm2orc --areas [--memory-budget <size>] <input> <areas-output>");
+        System.err.println("       osm2orc --lookup <orc> <node|way|relation> <id>");
+        System.err.println("       osm2orc --stats [--compare <pbf>] [--report <json>] [--workers <n>] <orc>");
+        System.err.println("       osm2orc --serve [--port <port>] [--max-writers <n>]");
+        System.exit(1);
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: osm2orc [--changesets] <input> <output>");
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(args);
+            return;
+        }
+
+        try {
+            System.exit(run(args, null));
+        } catch (UsageException e) {
+            System.err.println(e.getMessage());
+            usage();
+        } catch (MemoryBudget.ExceededException e) {
+            System.err.println(e.getMessage());
             System.exit(1);
         }
+    }
+
+    private static void serve(String[] args) throws Exception {
+        int port = ConversionService.DEFAULT_PORT;
+        int maxWriters = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 1; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                usage();
+            }
+
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+
+                case "--max-writers":
+                    maxWriters = Integer.parseInt(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+            }
+        }
+
+        new ConversionService(maxWriters).serve(port);
+    }
+
+    private static String next(String[] args, int i) {
+        if (i == args.length) {
+            throw new UsageException(args[i - 1] + " requires a value");
+        }
+
+        return args[i];
+    }
+
+    /**
+     * Parses an option's value, reporting values that don't parse as usage
+     * errors.
+     */
+    private static <T> T value(String[] args, int i, Function<String, T> parser) {
+        String value = next(args, i);
+
+        try {
+            return parser.apply(value);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new UsageException("Invalid " + args[i - 1] + " value: " + value);
+        }
+    }
+
+    /**
+     * Runs a conversion (or lookup) described by command-line arguments,
+     * in-process.
+     *
+     * @param conf
+     *            Settings to start from; null to load a default Configuration.
+     * @return An exit status.
+     * @throws UsageException
+     *             If the arguments are invalid.
+     */
+    public static int run(String[] args, Configuration conf) throws Exception {
+        Options options = new Options();
+        List<String> positional = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            switch (arg) {
+                case "--changesets":
+                    options.changesets = true;
+                    break;
+
+                case "--history":
+                    options.history = true;
+                    break;
+
+                case "--index":
+                    options.index = true;
+                    break;
+
+                case "--lookup":
+                    options.lookup = true;
+                    break;
+
+                case "--areas":
+                    options.areas = true;
+                    break;
+
+                case "--plan-encodings":
+                    options.planEncodings = true;
+                    break;
+
+                case "--type-enum":
+                    options.typeEnum = true;
+                    break;
+
+                case "--member-type-enum":
+                    options.memberTypeEnum = true;
+                    break;
+
+                case "--ids":
+                    options.ids = true;
+                    break;
+
+                case "--validate":
+                    options.validate = true;
+                    break;
+
+                case "--stats":
+                    options.stats = true;
+                    break;
+
+                case "--sort":
+                    options.sort = true;
+                    break;
+
+                case "--sort-dir":
+                    options.sortDirectory = next(args, ++i);
+                    break;
+
+                case "--compare":
+                    options.compare = next(args, ++i);
+                    break;
+
+                case "--report":
+                    options.report = next(args, ++i);
+                    break;
+
+                case "--refs":
+                    options.refEncoding = value(args, ++i, v -> OsmSchema.RefEncoding.valueOf(v.toUpperCase()));
+                    break;
+
+                case "--memory-budget":
+                    options.memoryBudget = value(args, ++i, MemoryBudget::parse);
+                    break;
+
+                case "--promote-keys":
+                    options.promoteKeys = next(args, ++i);
+                    break;
+
+                case "--batch":
+                    options.batchOutput = next(args, ++i);
+                    break;
+
+                case "--follow":
+                    options.follow = next(args, ++i);
+                    break;
+
+                case "--min-interval":
+                    options.minInterval = value(args, ++i, Long::parseLong);
+                    break;
+
+                case "--poll":
+                    options.poll = value(args, ++i, Long::parseLong);
+                    break;
+
+                case "--start-sequence":
+                    options.startSequence = value(args, ++i, Long::parseLong);
+                    break;
+
+                case "--once":
+                    options.once = true;
+                    break;
+
+                case "--bbox":
+                    options.region = value(args, ++i, BoundingBox::parse);
+                    break;
+
+                case "--polygon":
+                    options.region = PolygonRegion.read(next(args, ++i));
+                    break;
+
+                case "--join-changesets":
+                    options.changesetOrc = next(args, ++i);
+                    break;
+
+                case "--changeset-tags":
+                    options.changesetTags = next(args, ++i);
+                    break;
+
+                case "--workers":
+                    options.workers = value(args, ++i, Integer::parseInt);
+                    break;
+
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new UsageException("Unknown option: " + arg);
+                    }
+
+                    positional.add(arg);
+            }
+        }
+
+        try {
+            return run(options, positional, conf);
+        } finally {
+            // the service runs many jobs in one JVM, each loading its own
+            if (options.changesetTagStore != null) {
+                options.changesetTagStore.close();
+            }
+        }
+    }
+
+    private static int run(Options options, List<String> positional, Configuration conf) throws Exception {
+        if (options.lookup) {
+            if (positional.size() < 3) {
+                throw new UsageException("--lookup requires <orc> <type> <id>");
+            }
 
-        if (args[0].equals("--changesets")) {
-            final InputStream inputStream;
+            OsmType type;
+            long id;
 
-            if (args[1].equals("-")) {
-                inputStream = System.in;
-            } else {
-                inputStream = new FileInputStream(args[1]);
+            try {
+                type = OsmType.valueOf(positional.get(1).toUpperCase());
+                id = Long.parseLong(positional.get(2));
+            } catch (IllegalArgumentException e) {
+                throw new UsageException("--lookup requires <orc> <node|way|relation> <id>");
             }
 
-            new OsmChangesetXml2Orc(inputStream, args[2]).convert();
-            System.exit(0);
+            return lookup(conf != null ? conf : new Configuration(), positional.get(0), type, id);
         }
 
-        final InputStream inputStream;
+        if (options.stats) {
+            if (positional.size() != 1) {
+                throw new UsageException("--stats requires an ORC file");
+            }
+
+            return stats(conf != null ? conf : new Configuration(), options, positional.get(0));
+        }
 
-        if (args[0].equals("-")) {
-            inputStream = System.in;
+        if (options.changesetOrc != null && (options.changesets || options.areas)) {
+            throw new UsageException("--join-changesets only applies to PBF conversions");
+        }
+
+        if (options.sort && (options.changesets || options.areas)) {
+            throw new UsageException("--sort only applies to PBF conversions");
+        }
+
+        if (options.follow != null) {
+            return follow(options, positional, conf);
+        }
+
+        if (options.batchOutput != null) {
+            return batch(options, BatchConverter.expand(positional), conf);
+        }
+
+        if (positional.size() < 2) {
+            throw new UsageException("An input and an output are required");
+        }
+
+        boolean stdin = positional.get(0).equals("-");
+
+        if (options.areas) {
+            if (stdin) {
+                throw new UsageException("--areas reads its input several times and can't read from stdin");
+            }
+
+            new OsmPbf2Areas(positional.get(0), positional.get(1))
+                    .setConfiguration(conf)
+                    .setMemoryBudget(options.memoryBudget)
+                    .convert();
+            return 0;
+        }
+
+        if (options.region != null && (options.changesets || stdin)) {
+            throw new UsageException("--bbox and --polygon require a PBF input that can be read more than once");
+        }
+
+        if (stdin && (options.planEncodings || "auto".equals(options.promoteKeys))) {
+            throw new UsageException(
+                    "--plan-encodings and --promote-keys auto sample the input first and can't read from stdin");
+        }
+
+        // loading is slow (and memory-hungry), so it waits until the arguments have been checked
+        loadChangesetTags(options, conf);
+
+        InputSampler sampler = null;
+
+        if (options.planEncodings || "auto".equals(options.promoteKeys)) {
+            sampler = new InputSampler(positional.get(0));
+            sampler.sample();
+        }
+
+        List<String> promotedKeys = promotedKeys(options, sampler);
+
+        try (InputStream inputStream = Inputs.open(positional.get(0), options.memoryBudget)) {
+            if (options.changesets) {
+                new OsmChangesetXml2Orc(inputStream, positional.get(1))
+                        .setConfiguration(conf)
+                        .convert();
+                return 0;
+            }
+
+            OsmPbf2Orc converter = configure(new OsmPbf2Orc(inputStream, positional.get(1)), options, promotedKeys)
+                    .setConfiguration(conf)
+                    .setMemoryBudget(options.memoryBudget);
+
+            if (options.region != null) {
+                converter.setExtract(options.region, positional.get(0));
+            }
+
+            if (options.planEncodings) {
+                sampler.planEncodings(converter.getSchema());
+            }
+
+            converter.convert();
+
+            if (options.validate) {
+                report(converter.getIdSets());
+            }
+        }
+
+        return 0;
+    }
+
+    private static void loadChangesetTags(Options options, Configuration conf) throws IOException {
+        if (options.changesetOrc == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        options.changesetTagStore = new ChangesetTagStore(Arrays.asList(options.changesetTags.split(",")));
+        options.changesetTagStore.setMemoryBudget(options.memoryBudget);
+        options.changesetTagStore.load(conf != null ? conf : new Configuration(), new Path(options.changesetOrc));
+
+        System.err.println(String.format("Loaded tags of %d changesets in %ds", options.changesetTagStore.size(),
+                (System.nanoTime() - start) / 1000000000));
+    }
+
+    private static int stats(Configuration conf, Options options, String orc) throws Exception {
+        int workers = options.workers > 0 ? options.workers : Runtime.getRuntime().availableProcessors();
+        FutureTask<EntityCounter> source = null;
+
+        // the source is decoded alongside the scan rather than after it
+        if (options.compare != null) {
+            source = new FutureTask<>(() -> {
+                EntityCounter counter = new EntityCounter();
+
+                try (InputStream in = Inputs.open(options.compare, options.memoryBudget)) {
+                    new PbfDecoder(in, counter).decode();
+                }
+
+                return counter;
+            });
+
+            Thread thread = new Thread(source, "stats-source");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        OsmOrcStats stats = OsmOrcStats.scan(conf, new Path(orc), workers);
+        List<String> mismatches = Collections.emptyList();
+
+        if (source != null) {
+            try {
+                mismatches = stats.compare(options.compare, source.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        if (options.report != null) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(options.report), StandardCharsets.UTF_8)) {
+                stats.writeJson(out);
+            }
         } else {
-            inputStream = new FileInputStream(args[0]);
+            stats.writeJson(System.out);
+        }
+
+        for (String mismatch : mismatches) {
+            System.err.println("Mismatch: " + mismatch);
+        }
+
+        return mismatches.isEmpty() ? 0 : 1;
+    }
+
+    private static void report(OsmIdSets sets) {
+        IdSet wayNodes = sets.getDanglingWayNodes();
+
+        System.err.println("Dangling references:");
+        System.err.println(String.format("  way node refs: %d of %d referenced nodes are missing%s",
+                wayNodes.cardinality(), sets.getWayNodes().cardinality(), sample(wayNodes)));
+
+        for (OsmType type : OsmType.values()) {
+            IdSet members = sets.getDanglingMembers(type);
+
+            System.err.println(String.format("  relation %s members: %d of %d referenced %ss are missing%s",
+                    type, members.cardinality(), sets.getMembers(type).cardinality(), type, sample(members)));
+        }
+    }
+
+    private static String sample(IdSet ids) {
+        StringBuilder sb = new StringBuilder();
+        long[] count = new long[1];
+
+        ids.forEach(id -> {
+            if (count[0]++ < 10) {
+                sb.append(count[0] == 1 ? " (e.g. " : ", ").append(id);
+            }
+        });
+
+        if (count[0] > 10) {
+            sb.append(", ...");
+        }
+
+        return count[0] > 0 ? sb.append(")").toString() : "";
+    }
+
+    private static int follow(Options options, List<String> positional, Configuration conf) throws Exception {
+        if (positional.size() != 1) {
+            throw new UsageException("--follow requires an output directory");
+        }
+
+        if (options.changesets || options.areas || options.history || options.batchOutput != null
+                || options.region != null || options.changesetOrc != null || options.ids || options.validate
+                || options.index || options.planEncodings || options.sort || "auto".equals(options.promoteKeys)) {
+            throw new UsageException(
+                    "--follow only takes schema options (--type-enum, --member-type-enum, --refs, --promote-keys <keys>)");
+        }
+
+        ReplicationFollower follower = new ReplicationFollower(options.follow, positional.get(0))
+                .setConfiguration(conf)
+                .setStartSequence(options.startSequence)
+                .setMinInterval(options.minInterval * 1000)
+                .setPollInterval(options.poll * 1000);
+
+        follower.getSchema().setTypeEnum(options.typeEnum);
+        follower.getSchema().setMemberTypeEnum(options.memberTypeEnum);
+        follower.getSchema().setRefEncoding(options.refEncoding);
+        follower.getSchema().setPromotedKeys(promotedKeys(options, null));
+
+        if (options.once) {
+            System.err.println("Wrote " + follower.catchUp() + " file(s)");
+        } else {
+            follower.follow();
+        }
+
+        return 0;
+    }
+
+    private static int batch(Options options, List<String> inputs, Configuration conf) throws Exception {
+        if (inputs.isEmpty()) {
+            throw new UsageException("--batch requires at least one input");
+        }
+
+        if (options.changesets || options.areas) {
+            throw new UsageException("--batch only converts PBFs");
+        }
+
+        if (inputs.contains("-") && options.region != null) {
+            throw new UsageException("--bbox and --polygon require inputs that can be read more than once");
+        }
+
+        if (inputs.contains("-") && (options.planEncodings || "auto".equals(options.promoteKeys))) {
+            throw new UsageException(
+                    "--plan-encodings and --promote-keys auto sample inputs first and can't read from stdin");
+        }
+
+        if (options.validate) {
+            throw new UsageException("--validate checks a single output; use --ids to write id sets per part");
+        }
+
+        loadChangesetTags(options, conf);
+
+        InputSampler sampler = null;
+
+        // promoted keys are part of the schema, so every part uses the first input's
+        if ("auto".equals(options.promoteKeys)) {
+            sampler = new InputSampler(inputs.get(0));
+            sampler.sample();
+        }
+
+        List<String> promotedKeys = promotedKeys(options, sampler);
+
+        BatchConverter converter = new BatchConverter(inputs, options.batchOutput)
+                .setConfiguration(conf)
+                .setMemoryBudget(options.memoryBudget);
+
+        if (options.workers > 0) {
+            converter.setWorkers(options.workers);
+        }
+
+        int failures = converter.convert((input, part) -> {
+            configure(part, options, promotedKeys);
+
+            if (options.region != null) {
+                part.setExtract(options.region, input);
+            }
+
+            if (options.planEncodings) {
+                InputSampler inputSampler = new InputSampler(input);
+                inputSampler.sample();
+                inputSampler.planEncodings(part.getSchema());
+            }
+        });
+
+        if (failures > 0) {
+            System.err.println("Stopped after an input failed to convert; " + options.batchOutput
+                    + " is incomplete, so convert the batch again (into an empty directory)");
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private static List<String> promotedKeys(Options options, InputSampler sampler) {
+        if ("auto".equals(options.promoteKeys)) {
+            List<String> keys = sampler.getTopKeys(AUTO_PROMOTED_KEYS);
+            System.err.println("Promoting tag keys: " + String.join(", ", keys));
+
+            return keys;
+        }
+
+        if (options.promoteKeys != null) {
+            return Arrays.asList(options.promoteKeys.split(","));
+        }
+
+        return Collections.emptyList();
+    }
+
+    private static OsmPbf2Orc configure(OsmPbf2Orc converter, Options options, List<String> promotedKeys) {
+        if (options.changesetTagStore != null) {
+            converter.setChangesetTags(options.changesetTagStore);
+        }
+
+        if (options.sort) {
+            // --workers sets batch parallelism when batching
+            converter.setSort(options.sortDirectory, options.batchOutput == null ? options.workers : 0);
+        }
+
+        return converter
+                .setHistory(options.history)
+                .setIndex(options.index)
+                .setTypeEnum(options.typeEnum)
+                .setMemberTypeEnum(options.memberTypeEnum)
+                .setIdSets(options.ids)
+                .setCollectIds(options.validate)
+                .setRefEncoding(options.refEncoding)
+                .setPromotedKeys(promotedKeys);
+    }
+
+    private static int lookup(Configuration conf, String orc, OsmType type, long id) throws Exception {
+        try (OsmOrcLookup lookup = new OsmOrcLookup(conf, new Path(orc))) {
+            List<String> fields = lookup.getFieldNames();
+
+            int matches = lookup.lookup(type, id, (batch, row) -> {
+                StringBuilder sb = new StringBuilder();
+
+                for (int i = 0; i < fields.size(); i++) {
+                    sb.setLength(0);
+                    batch.cols[i].stringifyValue(sb, row);
+                    System.out.println(fields.get(i) + ": " + sb);
+                }
+
+                System.out.println();
+            });
+
+            if (matches == 0) {
+                System.err.println(type + " " + id + " not found");
+                return 1;
+            }
         }
 
-        OsmPbf2Orc.convert(inputStream, args[1]);
-        System.exit(0);
+        return 0;
     }
 }
@@ -0,0 +1,166 @@
+package net.mojodna.osm2orc.orc;
+
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch-scoped storage for the bytes referenced by string and binary
+ * columns. Values are encoded straight into large pooled slabs and referenced
+ * with {@link BytesColumnVector#setRef}, rather than allocating a
+ * <code>byte[]</code> per value (or copying into each vector's own buffer).
+ * Once the batch has been handed to the ORC writer (which copies what it
+ * needs), {@link #reset()} makes the slabs available again.
+ *
+ * Slabs are kept on-heap, since column vectors can only reference byte
+ * arrays; being long-lived and few, they stay out of the young generation's
+ * way. Slabs beyond <code>maxRetainedSlabs</code> are released on reset, which
+ * bounds the footprint between unusually large batches.
+ */
+public class ByteArena {
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_RETAINED_SLABS = 64;
+
+    private final int slabSize;
+    private final int maxRetainedSlabs;
+    private final List<byte[]> slabs = new ArrayList<>();
+
+    private int slab;
+    private byte[] current;
+    private int position;
+    private long used;
+
+    public ByteArena() {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_RETAINED_SLABS);
+    }
+
+    public ByteArena(int slabSize, int maxRetainedSlabs) {
+        this.slabSize = slabSize;
+        this.maxRetainedSlabs = maxRetainedSlabs;
+        this.current = new byte[slabSize];
+        slabs.add(current);
+    }
+
+    /**
+     * Makes room for <code>length</code> bytes, moving to the next slab if
+     * necessary.
+     */
+    private void reserve(int length) {
+        if (position + length <= current.length) {
+            return;
+        }
+
+        if (length > slabSize) {
+            // too large to pool; allocated for this value alone
+            current = new byte[length];
+            slabs.add(++slab, current);
+        } else if (++slab < slabs.size() && slabs.get(slab).length == slabSize) {
+            current = slabs.get(slab);
+        } else {
+            current = new byte[slabSize];
+            slabs.add(slab, current);
+        }
+
+        position = 0;
+    }
+
+    /**
+     * Encodes a string as UTF-8 into the arena and points a column value at
+     * it.
+     */
+    public void setRef(BytesColumnVector column, int row, String value) {
+        int length = value.length();
+
+        // upper bound: 3 bytes per UTF-16 unit
+        reserve(length * 3);
+
+        byte[] bytes = current;
+        int start = position;
+        int p = start;
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                bytes[p++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[p++] = (byte) (0xC0 | (c >> 6));
+                bytes[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[p++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[p++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate; replaced as String.getBytes() does
+                bytes[p++] = '?';
+            } else {
+                bytes[p++] = (byte) (0xE0 | (c >> 12));
+                bytes[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        position = p;
+        used += p - start;
+        column.setRef(row, bytes, start, p - start);
+    }
+
+    /**
+     * Copies bytes into the arena and points a column value at them.
+     */
+    public void setRef(BytesColumnVector column, int row, byte[] value, int start, int length) {
+        reserve(length);
+        System.arraycopy(value, start, current, position, length);
+        column.setRef(row, current, position, length);
+        position += length;
+        used += length;
+    }
+
+    /**
+     * Copies bytes from a buffer (e.g. off-heap) into the arena and points a
+     * column value at them. The buffer's position is left alone.
+     */
+    public void setRef(BytesColumnVector column, int row, ByteBuffer value, int start, int length) {
+        reserve(length);
+
+        for (int i = 0; i < length; i++) {
+            current[position + i] = value.get(start + i);
+        }
+
+        column.setRef(row, current, position, length);
+        position += length;
+        used += length;
+    }
+
+    /**
+     * @return Bytes written since the last reset.
+     */
+    public long size() {
+        return used;
+    }
+
+    /**
+     * Releases everything written since the last reset. Column vectors must
+     * no longer reference the arena.
+     */
+    public void reset() {
+        for (int i = slabs.size() - 1; i >= 0; i--) {
+            if (i >= maxRetainedSlabs || slabs.get(i).length != slabSize) {
+                slabs.remove(i);
+            }
+        }
+
+        if (slabs.isEmpty()) {
+            slabs.add(new byte[slabSize]);
+        }
+
+        slab = 0;
+        current = slabs.get(0);
+        position = 0;
+        used = 0;
+    }
+}
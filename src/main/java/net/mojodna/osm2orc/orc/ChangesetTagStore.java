@@ -0,0 +1,257 @@
+package net.mojodna.osm2orc.orc;
+
+import net.mojodna.osm2orc.util.MemoryBudget;
+import net.mojodna.osm2orc.util.OffHeapLongArray;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.TypeDescription;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selected tags (e.g. created_by, source, comment) of every changeset, loaded
+ * from an osm2orc changeset ORC file so that entity rows can carry their
+ * changeset's tags (see OsmSchema#setChangesetTags).
+ *
+ * Values are packed into direct (off-heap) buffers, one record per changeset
+ * with any of the tags: for each key, an int length (-1 if absent) followed by
+ * UTF-8 bytes. Records are found through an off-heap array indexed by
+ * changeset id (8 bytes per id, up to the largest), so lookups don't search;
+ * for the planet's ~160 million changesets that index alone is about 1.3 GB.
+ * Both count against the memory budget until {@link #close()}.
+ */
+public class ChangesetTagStore implements Closeable {
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final List<String> keys;
+    private final byte[][] keyBytes;
+    // record position + 1 by changeset id; 0 if the changeset has none of the tags
+    private final OffHeapLongArray positions = new OffHeapLongArray();
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long changesets;
+    private MemoryBudget budget;
+    private long reserved;
+
+    public ChangesetTagStore(Collection<String> keys) {
+        this.keys = new ArrayList<>(keys);
+        this.keyBytes = new byte[this.keys.size()][];
+
+        for (int i = 0; i < keyBytes.length; i++) {
+            keyBytes[i] = this.keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public List<String> getKeys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    public void setMemoryBudget(MemoryBudget budget) {
+        this.budget = budget;
+        positions.setMemoryBudget(budget, "Changeset tag index");
+    }
+
+    /**
+     * @return The number of changesets with any of the tags.
+     */
+    public long size() {
+        return changesets;
+    }
+
+    /**
+     * Loads tags from a changeset ORC file (see OsmChangesetXml2Orc), reading
+     * only its id and tags columns.
+     */
+    public ChangesetTagStore load(Configuration conf, Path orc) throws IOException {
+        try (Reader reader = OrcFile.createReader(orc, OrcFile.readerOptions(conf))) {
+            TypeDescription schema = reader.getSchema();
+            List<String> fields = schema.getFieldNames();
+            int idField = fields.indexOf("id");
+            int tagsField = fields.indexOf("tags");
+
+            if (idField < 0 || tagsField < 0) {
+                throw new IOException(orc + " isn't a changeset ORC file (it has no id or tags column)");
+            }
+
+            boolean[] include = new boolean[schema.getMaximumId() + 1];
+            include[schema.getId()] = true;
+            include[schema.getChildren().get(idField).getId()] = true;
+
+            TypeDescription tagsType = schema.getChildren().get(tagsField);
+
+            for (int i = tagsType.getId(); i <= tagsType.getMaximumId(); i++) {
+                include[i] = true;
+            }
+
+            try (RecordReader rows = reader.rows(reader.options().include(include))) {
+                VectorizedRowBatch batch = schema.createRowBatch();
+                LongColumnVector ids = (LongColumnVector) batch.cols[idField];
+                MapColumnVector tags = (MapColumnVector) batch.cols[tagsField];
+                BytesColumnVector tagKeys = (BytesColumnVector) tags.keys;
+                BytesColumnVector tagValues = (BytesColumnVector) tags.values;
+                int[] values = new int[keyBytes.length];
+
+                while (rows.nextBatch(batch)) {
+                    for (int r = 0; r < batch.size; r++) {
+                        int i = ids.isRepeating ? 0 : r;
+                        int t = tags.isRepeating ? 0 : r;
+
+                        if ((!ids.noNulls && ids.isNull[i]) || (!tags.noNulls && tags.isNull[t])) {
+                            continue;
+                        }
+
+                        boolean found = false;
+
+                        for (int k = 0; k < keyBytes.length; k++) {
+                            values[k] = -1;
+
+                            for (int j = (int) tags.offsets[t]; j < tags.offsets[t] + tags.lengths[t]; j++) {
+                                // readers mark children repeating when a batch has a single distinct key or value
+                                if (equals(keyBytes[k], tagKeys, tagKeys.isRepeating ? 0 : j)) {
+                                    int v = tagValues.isRepeating ? 0 : j;
+
+                                    if (tagValues.noNulls || !tagValues.isNull[v]) {
+                                        values[k] = v;
+                                        found = true;
+                                    }
+
+                                    break;
+                                }
+                            }
+                        }
+
+                        if (found) {
+                            put(ids.vector[i], tagValues, values);
+                        }
+                    }
+                }
+            }
+        }
+
+        return this;
+    }
+
+    private static boolean equals(byte[] key, BytesColumnVector column, int i) {
+        if (column.length[i] != key.length) {
+            return false;
+        }
+
+        for (int b = 0; b < key.length; b++) {
+            if (column.vector[i][column.start[i] + b] != key[b]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param values
+     *            Per key, the index of its value in <code>column</code>, or -1.
+     */
+    private void put(long changeset, BytesColumnVector column, int[] values) {
+        if (changeset < 0) {
+            return;
+        }
+
+        int size = 0;
+
+        for (int value : values) {
+            size += Integer.BYTES + (value >= 0 ? column.length[value] : 0);
+        }
+
+        if (current == null || current.remaining() < size) {
+            int capacity = Math.max(CHUNK_SIZE, size);
+
+            if (budget != null) {
+                budget.reserve(capacity, "Changeset tags (" + changesets + " changesets so far)");
+                reserved += capacity;
+            }
+
+            current = ByteBuffer.allocateDirect(capacity);
+            chunks.add(current);
+        }
+
+        long position = ((long) (chunks.size() - 1) << 32) | current.position();
+
+        for (int value : values) {
+            if (value >= 0) {
+                current.putInt(column.length[value]);
+                current.put(column.vector[value], column.start[value], column.length[value]);
+            } else {
+                current.putInt(-1);
+            }
+        }
+
+        positions.fill(changeset + 1, 0);
+        positions.set(changeset, position + 1);
+        changesets++;
+    }
+
+    /**
+     * Points each column at the changeset's value for the corresponding key
+     * (copied into <code>arena</code>), or sets it to null. Safe to call from
+     * multiple threads once loaded.
+     */
+    public void setRefs(long changeset, BytesColumnVector[] columns, int row, ByteArena arena) {
+        long position = changeset >= 0 && changeset < positions.size() ? positions.get(changeset) - 1 : -1;
+
+        if (position < 0) {
+            for (BytesColumnVector column : columns) {
+                column.isNull[row] = true;
+                column.noNulls = false;
+            }
+
+            return;
+        }
+
+        ByteBuffer chunk = chunks.get((int) (position >>> 32));
+        int p = (int) position;
+
+        for (BytesColumnVector column : columns) {
+            int length = chunk.getInt(p);
+            p += Integer.BYTES;
+
+            if (length >= 0) {
+                column.isNull[row] = false;
+                arena.setRef(column, row, chunk, p, length);
+                p += length;
+            } else {
+                column.isNull[row] = true;
+                column.noNulls = false;
+            }
+        }
+    }
+
+    /**
+     * Drops the index and values, releasing their reservations; their memory
+     * is returned once they're collected.
+     */
+    @Override
+    public void close() {
+        positions.clear();
+        chunks.clear();
+        current = null;
+        changesets = 0;
+
+        if (budget != null) {
+            budget.release(reserved);
+        }
+
+        reserved = 0;
+    }
+}
@@ -0,0 +1,95 @@
+package net.mojodna.osm2orc.orc;
+
+import net.mojodna.osm2orc.util.ConcurrentIdBitmap;
+
+import java.io.IOException;
+
+/**
+ * Passes entities on to another handler only if they haven't been claimed
+ * already, e.g. by a handler converting an overlapping extract on another
+ * thread. Every version of an entity is passed on by whichever handler claims
+ * it, so inputs with history must be ordered by type, id and version (or
+ * be passed through a SortingHandler first, as <code>--sort</code> does).
+ */
+public class DeduplicatingHandler implements EntityHandler {
+    private final EntityHandler handler;
+    private final ConcurrentIdBitmap[] claimed;
+
+    private OsmType lastType;
+    private long lastId;
+    private boolean skipping;
+    private long duplicates;
+
+    /**
+     * @param claimed
+     *            Claimed ids, indexed by OsmType ordinal and shared by all
+     *            handlers that should deduplicate against each other.
+     */
+    public DeduplicatingHandler(EntityHandler handler, ConcurrentIdBitmap[] claimed) {
+        this.handler = handler;
+        this.claimed = claimed;
+    }
+
+    public static ConcurrentIdBitmap[] newClaims() {
+        ConcurrentIdBitmap[] claimed = new ConcurrentIdBitmap[OsmType.values().length];
+
+        for (int i = 0; i < claimed.length; i++) {
+            claimed[i] = new ConcurrentIdBitmap();
+        }
+
+        return claimed;
+    }
+
+    /**
+     * @return The number of entities (or versions) skipped.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) throws IOException {
+        if (type != lastType || id != lastId) {
+            // negative ids (from unsaved editor data) aren't shared between extracts
+            skipping = id >= 0 && !claimed[type.ordinal()].add(id);
+            lastType = type;
+            lastId = id;
+        }
+
+        if (skipping) {
+            duplicates++;
+            return;
+        }
+
+        handler.startEntity(type, id, version, timestamp, changeset, uid, user, userStart, userLength, visible);
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        if (!skipping) {
+            handler.addTag(key, keyStart, keyLength, value, valueStart, valueLength);
+        }
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        if (!skipping) {
+            handler.setLocation(latitude, longitude);
+        }
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        if (!skipping) {
+            handler.addNodeRef(ref);
+        }
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        if (!skipping) {
+            handler.addMember(type, ref, role, roleStart, roleLength);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.mojodna.osm2orc.orc;
+
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+
+import java.util.Arrays;
+
+/**
+ * Packs ids (way node refs, relation member refs) as they are in PBFs: each
+ * id is stored as the difference from the previous one (the first from 0),
+ * zigzag-encoded so that small negative deltas stay small, as a base 128
+ * varint. Consecutive node ids in a way typically take 1-3 bytes each.
+ *
+ * Written to the <code>nds_delta</code> and <code>members_delta</code>
+ * columns; {@link #decode(BytesColumnVector, int)} reads them back.
+ */
+public class DeltaRefs {
+    private byte[] buffer = new byte[64];
+    private int size;
+    private long last;
+
+    /**
+     * Starts a new list of ids.
+     */
+    public void reset() {
+        size = 0;
+        last = 0;
+    }
+
+    public void add(long ref) {
+        long delta = ref - last;
+        last = ref;
+
+        // zigzag
+        long value = (delta << 1) ^ (delta >> 63);
+
+        if (size + 10 > buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        buffer[size++] = (byte) value;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of ids packed in a value.
+     */
+    public static int count(byte[] bytes, int start, int length) {
+        int count = 0;
+
+        for (int i = start; i < start + length; i++) {
+            if ((bytes[i] & 0x80) == 0) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public static long[] decode(byte[] bytes, int start, int length) {
+        long[] refs = new long[count(bytes, start, length)];
+        long last = 0;
+        int pos = start;
+
+        for (int i = 0; i < refs.length; i++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                b = bytes[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            last += (value >>> 1) ^ -(value & 1);
+            refs[i] = last;
+        }
+
+        return refs;
+    }
+
+    /**
+     * Decodes a row of an <code>nds_delta</code> or <code>members_delta</code>
+     * column.
+     *
+     * @return The ids, or null if the value is null.
+     */
+    public static long[] decode(BytesColumnVector column, int row) {
+        if (column.isRepeating) {
+            row = 0;
+        }
+
+        if (!column.noNulls && column.isNull[row]) {
+            return null;
+        }
+
+        return decode(column.vector[row], column.start[row], column.length[row]);
+    }
+}
@@ -0,0 +1,28 @@
+package net.mojodna.osm2orc.orc;
+
+import java.io.IOException;
+
+/**
+ * Receives OSM entities incrementally, as decoders produce them: startEntity,
+ * then tags, location, node refs or members. Strings are passed as UTF-8 byte
+ * ranges (e.g. into a PBF block's string table) so that nothing needs to be
+ * allocated per entity; implementations must copy anything they keep.
+ */
+public interface EntityHandler {
+    void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                     byte[] user, int userStart, int userLength, boolean visible) throws IOException;
+
+    void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength);
+
+    /**
+     * @param latitude
+     *            In nanodegrees.
+     * @param longitude
+     *            In nanodegrees.
+     */
+    void setLocation(long latitude, long longitude);
+
+    void addNodeRef(long ref);
+
+    void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength);
+}
@@ -0,0 +1,564 @@
+package net.mojodna.osm2orc.orc;
+
+import net.mojodna.osm2orc.orc.index.OsmOrcIndexBuilder;
+import net.mojodna.osm2orc.util.MemoryBudget;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DecimalColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ListColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.StructColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.orc.Writer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes OSM entities to ORC, one row per entity. Entities are described
+ * incrementally (startEntity, then tags, location, node refs or members) so
+ * that callers don't need to materialize them.
+ */
+public class OsmRowWriter implements EntityHandler {
+    private final Writer writer;
+    private final OsmSchema schema;
+    private final VectorizedRowBatch batch;
+
+    private final LongColumnVector id;
+    private final BytesColumnVector type;
+    private final LongColumnVector typeCode;
+    private final MapColumnVector tags;
+    private final BytesColumnVector tagKeys;
+    private final BytesColumnVector tagValues;
+    private final DecimalColumnVector lat;
+    private final DecimalColumnVector lon;
+    private final ListColumnVector nds;
+    private final StructColumnVector ndsStruct;
+    private final LongColumnVector ndsRef;
+    private final ListColumnVector members;
+    private final StructColumnVector membersStruct;
+    private final BytesColumnVector memberType;
+    private final LongColumnVector memberTypeCode;
+    private final LongColumnVector memberRef;
+    private final BytesColumnVector memberRole;
+    private final LongColumnVector changeset;
+    private final TimestampColumnVector timestamp;
+    private final LongColumnVector uid;
+    private final BytesColumnVector user;
+    private final LongColumnVector version;
+    private final LongColumnVector visible;
+    private final TimestampColumnVector validFrom;
+    private final TimestampColumnVector validTo;
+    private final BytesColumnVector ndsDelta;
+    private final BytesColumnVector membersDelta;
+    private final ByteArena arena = new ByteArena();
+    private final RoleDictionary roles = new RoleDictionary();
+    private final DeltaRefs ndsPacked = new DeltaRefs();
+    private final DeltaRefs membersPacked = new DeltaRefs();
+    private final BytesColumnVector[] promoted;
+    private final byte[][] promotedKeys;
+    private final Map<String, BytesColumnVector> promotedByKey = new HashMap<>();
+    private final BytesColumnVector[] changesetTagColumns;
+
+    // rough per-value sizes across vectors, for budgeting
+    private static final int ROW_BYTES = 128;
+    private static final int TAG_BYTES = 40;
+    private static final int ND_BYTES = 9;
+    private static final int MEMBER_BYTES = 48;
+
+    private OsmOrcIndexBuilder index;
+    private ChangesetTagStore changesetTags;
+    private long batchBudget;
+    private long rowStartBytes;
+    private int row = -1;
+    private OsmType rowType;
+    private OsmType lastType;
+    private long lastId;
+    private long lastVersion;
+    private boolean sorted = true;
+
+    public OsmRowWriter(Writer writer, OsmSchema schema) {
+        this.writer = writer;
+        this.schema = schema;
+        this.batch = writer.getSchema().createRowBatch();
+
+        id = (LongColumnVector) batch.cols[0];
+
+        if (schema.isTypeEnum()) {
+            type = null;
+            typeCode = (LongColumnVector) batch.cols[1];
+        } else {
+            type = (BytesColumnVector) batch.cols[1];
+            typeCode = null;
+        }
+
+        tags = (MapColumnVector) batch.cols[2];
+        tagKeys = (BytesColumnVector) tags.keys;
+        tagValues = (BytesColumnVector) tags.values;
+        lat = (DecimalColumnVector) batch.cols[3];
+        lon = (DecimalColumnVector) batch.cols[4];
+        nds = (ListColumnVector) batch.cols[5];
+        ndsStruct = (StructColumnVector) nds.child;
+        ndsRef = (LongColumnVector) ndsStruct.fields[0];
+        members = (ListColumnVector) batch.cols[6];
+        membersStruct = (StructColumnVector) members.child;
+
+        if (schema.isMemberTypeEnum()) {
+            memberType = null;
+            memberTypeCode = (LongColumnVector) membersStruct.fields[0];
+        } else {
+            memberType = (BytesColumnVector) membersStruct.fields[0];
+            memberTypeCode = null;
+        }
+
+        memberRef = (LongColumnVector) membersStruct.fields[1];
+        memberRole = (BytesColumnVector) membersStruct.fields[2];
+        changeset = (LongColumnVector) batch.cols[7];
+        timestamp = (TimestampColumnVector) batch.cols[8];
+        uid = (LongColumnVector) batch.cols[9];
+        user = (BytesColumnVector) batch.cols[10];
+        version = (LongColumnVector) batch.cols[11];
+        visible = (LongColumnVector) batch.cols[12];
+
+        if (schema.isHistory()) {
+            validFrom = (TimestampColumnVector) column(OsmSchema.VALID_FROM);
+            validTo = (TimestampColumnVector) column(OsmSchema.VALID_TO);
+        } else {
+            validFrom = null;
+            validTo = null;
+        }
+
+        if (schema.getRefEncoding() != OsmSchema.RefEncoding.LIST) {
+            ndsDelta = (BytesColumnVector) column(OsmSchema.NDS_DELTA);
+            membersDelta = (BytesColumnVector) column(OsmSchema.MEMBERS_DELTA);
+        } else {
+            ndsDelta = null;
+            membersDelta = null;
+        }
+
+        List<String> keys = schema.getPromotedKeys();
+        promoted = new BytesColumnVector[keys.size()];
+        promotedKeys = new byte[keys.size()][];
+
+        for (int i = 0; i < promoted.length; i++) {
+            promoted[i] = (BytesColumnVector) column(OsmSchema.tagColumn(keys.get(i)));
+            promotedKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            promotedByKey.put(keys.get(i), promoted[i]);
+        }
+
+        keys = schema.getChangesetTags();
+        changesetTagColumns = new BytesColumnVector[keys.size()];
+
+        for (int i = 0; i < changesetTagColumns.length; i++) {
+            changesetTagColumns[i] = (BytesColumnVector) column(OsmSchema.changesetTagColumn(keys.get(i)));
+        }
+    }
+
+    private ColumnVector column(String name) {
+        List<String> fields = writer.getSchema().getFieldNames();
+
+        return batch.cols[fields.indexOf(name)];
+    }
+
+    /**
+     * Grows a child vector geometrically; ensureSize() alone allocates exactly
+     * what's asked for.
+     */
+    private static void grow(ColumnVector child, int size) {
+        if (size > child.isNull.length) {
+            child.ensureSize(Math.max(size, child.isNull.length * 2), true);
+        }
+    }
+
+    /**
+     * Reports written rows to an index builder, which must also be registered
+     * as the writer's callback.
+     */
+    public void setIndex(OsmOrcIndexBuilder index) {
+        this.index = index;
+    }
+
+    /**
+     * Fills changeset tag columns (see OsmSchema#setChangesetTags) from a
+     * store with the same keys.
+     */
+    public void setChangesetTags(ChangesetTagStore changesetTags) {
+        if (!changesetTags.getKeys().equals(schema.getChangesetTags())) {
+            throw new IllegalArgumentException("Changeset tag keys don't match the schema's");
+        }
+
+        this.changesetTags = changesetTags;
+    }
+
+    /**
+     * Flushes batches early once their estimated size reaches
+     * <code>bytes</code>, so that entities with very many tags, nodes or
+     * members don't grow the batch without bound. A single entity which
+     * doesn't fit fails conversion.
+     */
+    public void setBatchBudget(long bytes) {
+        this.batchBudget = bytes;
+    }
+
+    private long batchBytes() {
+        return arena.size() + (long) batch.size * ROW_BYTES + (long) tags.childCount * TAG_BYTES
+                + (long) nds.childCount * ND_BYTES + (long) members.childCount * MEMBER_BYTES;
+    }
+
+    private void checkRowBudget() {
+        if (batchBudget > 0 && batchBytes() - rowStartBytes > batchBudget) {
+            throw new MemoryBudget.ExceededException(String.format(
+                    "%s %d is larger than the %s batch memory budget; raise --memory-budget",
+                    rowType, id.vector[row], MemoryBudget.format(batchBudget)));
+        }
+    }
+
+    /**
+     * Whether entities have been written in type-then-id order so far.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            String user, boolean visible) throws IOException {
+        startRow(type, id, version, timestamp, changeset, uid, visible);
+        arena.setRef(this.user, row, user);
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) throws IOException {
+        startRow(type, id, version, timestamp, changeset, uid, visible);
+        arena.setRef(this.user, row, user, userStart, userLength);
+    }
+
+    private void startRow(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                          boolean visible) throws IOException {
+        if (row >= 0) {
+            completeRow();
+        }
+
+        if (lastType != null) {
+            int order = lastType != type ? type.compareTo(lastType) : Long.compare(id, lastId);
+
+            if (order < 0 || (order == 0 && version <= lastVersion)) {
+                if (schema.isHistory()) {
+                    throw new IllegalStateException(String.format(
+                            "History input must be ordered by type, id and version, but %s %d v%d follows %s %d v%d",
+                            type, id, version, lastType, lastId, lastVersion));
+                }
+
+                sorted = false;
+            }
+
+            if (schema.isHistory()) {
+                // the previous version is valid until this one supersedes it
+                closeValidity(order == 0, timestamp);
+            }
+        }
+
+        lastType = type;
+        lastId = id;
+        lastVersion = version;
+
+        if (batch.size == batch.getMaxSize() || (batchBudget > 0 && batchBytes() >= batchBudget)) {
+            flush();
+        }
+
+        rowStartBytes = batchBytes();
+
+        row = batch.size++;
+        rowType = type;
+
+        if (index != null) {
+            index.add(type, id);
+        }
+
+        this.id.vector[row] = id;
+
+        if (typeCode != null) {
+            typeCode.vector[row] = type.ordinal();
+        } else {
+            this.type.setRef(row, type.getBytes(), 0, type.getBytes().length);
+        }
+
+        this.changeset.vector[row] = changeset;
+
+        this.timestamp.time[row] = timestamp;
+        this.timestamp.nanos[row] = 0;
+
+        this.uid.vector[row] = uid;
+
+        this.version.vector[row] = version;
+        this.visible.vector[row] = visible ? 1 : 0;
+
+        // nodes fill these in
+        lat.set(row, (HiveDecimal) null);
+        lon.set(row, (HiveDecimal) null);
+
+        tags.offsets[row] = tags.childCount;
+        tags.lengths[row] = 0;
+
+        nds.offsets[row] = nds.childCount;
+        nds.lengths[row] = 0;
+
+        members.offsets[row] = members.childCount;
+        members.lengths[row] = 0;
+
+        if (ndsDelta != null) {
+            ndsPacked.reset();
+            membersPacked.reset();
+
+            if (schema.getRefEncoding() == OsmSchema.RefEncoding.DELTA && type == OsmType.WAY) {
+                // refs are in nds_delta
+                nds.isNull[row] = true;
+                nds.noNulls = false;
+            }
+        }
+
+        if (validFrom != null) {
+            validFrom.time[row] = timestamp;
+            validFrom.nanos[row] = 0;
+        }
+
+        // filled in by addTag()
+        for (BytesColumnVector column : promoted) {
+            column.isNull[row] = true;
+            column.noNulls = false;
+        }
+
+        if (changesetTags != null) {
+            changesetTags.setRefs(changeset, changesetTagColumns, row, arena);
+        } else {
+            for (BytesColumnVector column : changesetTagColumns) {
+                column.isNull[row] = true;
+                column.noNulls = false;
+            }
+        }
+    }
+
+    private void closeValidity(boolean superseded, long supersededAt) {
+        validTo.nanos[row] = 0;
+
+        if (superseded) {
+            validTo.time[row] = supersededAt;
+        } else {
+            validTo.time[row] = 0;
+            validTo.isNull[row] = true;
+            validTo.noNulls = false;
+        }
+    }
+
+    public void addTag(String key, String value) {
+        int i = nextTag();
+
+        arena.setRef(tagKeys, i, key);
+        arena.setRef(tagValues, i, value);
+
+        BytesColumnVector column = promotedByKey.get(key);
+
+        if (column != null) {
+            promote(column, i);
+        }
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        int i = nextTag();
+
+        arena.setRef(tagKeys, i, key, keyStart, keyLength);
+        arena.setRef(tagValues, i, value, valueStart, valueLength);
+
+        for (int k = 0; k < promotedKeys.length; k++) {
+            if (equals(promotedKeys[k], key, keyStart, keyLength)) {
+                promote(promoted[k], i);
+                break;
+            }
+        }
+    }
+
+    private int nextTag() {
+        checkRowBudget();
+
+        int i = tags.childCount++;
+        grow(tagKeys, tags.childCount);
+        grow(tagValues, tags.childCount);
+        tags.lengths[row]++;
+
+        return i;
+    }
+
+    private void promote(BytesColumnVector column, int tag) {
+        column.isNull[row] = false;
+        column.setRef(row, tagValues.vector[tag], tagValues.start[tag], tagValues.length[tag]);
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int start, int length) {
+        if (a.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void setLocation(double latitude, double longitude) {
+        if (!Double.isNaN(latitude)) {
+            lat.isNull[row] = false;
+            lat.set(row, HiveDecimal.create(latitude));
+        }
+
+        if (!Double.isNaN(longitude)) {
+            lon.isNull[row] = false;
+            lon.set(row, HiveDecimal.create(longitude));
+        }
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        setDecimal(lat, latitude);
+        setDecimal(lon, longitude);
+    }
+
+    private void setDecimal(DecimalColumnVector column, long nanodegrees) {
+        HiveDecimalWritable value = column.vector[row];
+        value.setFromLongAndScale(nanodegrees, 9);
+
+        // rounds to the column's scale
+        if (value.mutateEnforcePrecisionScale(column.precision, column.scale)) {
+            column.isNull[row] = false;
+        } else {
+            column.set(row, (HiveDecimal) null);
+        }
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        if (ndsDelta != null) {
+            ndsPacked.add(ref);
+
+            if (schema.getRefEncoding() == OsmSchema.RefEncoding.DELTA) {
+                return;
+            }
+        }
+
+        if ((nds.childCount & 0xff) == 0) {
+            checkRowBudget();
+        }
+
+        int i = nds.childCount++;
+        grow(ndsStruct, nds.childCount);
+        nds.lengths[row]++;
+
+        ndsRef.vector[i] = ref;
+    }
+
+    public void addMember(OsmType type, long ref, String role) {
+        int i = nextMember(type, ref);
+        byte[] shared = roles.intern(role);
+
+        if (shared != null) {
+            memberRole.setRef(i, shared, 0, shared.length);
+        } else {
+            arena.setRef(memberRole, i, role);
+        }
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        int i = nextMember(type, ref);
+        byte[] shared = roles.intern(role, roleStart, roleLength);
+
+        if (shared != null) {
+            memberRole.setRef(i, shared, 0, shared.length);
+        } else {
+            arena.setRef(memberRole, i, role, roleStart, roleLength);
+        }
+    }
+
+    private int nextMember(OsmType type, long ref) {
+        checkRowBudget();
+
+        int i = members.childCount++;
+        grow(membersStruct, members.childCount);
+        members.lengths[row]++;
+
+        if (memberTypeCode != null) {
+            memberTypeCode.vector[i] = type.ordinal();
+        } else {
+            memberType.setRef(i, type.getBytes(), 0, type.getBytes().length);
+        }
+
+        if (membersDelta != null) {
+            membersPacked.add(ref);
+        }
+
+        if (schema.getRefEncoding() == OsmSchema.RefEncoding.DELTA) {
+            // refs are in members_delta
+            memberRef.isNull[i] = true;
+            memberRef.noNulls = false;
+        } else {
+            memberRef.vector[i] = ref;
+        }
+
+        return i;
+    }
+
+    /**
+     * Fills in values which are only known once all of a row's parts have been
+     * added.
+     */
+    private void completeRow() {
+        if (ndsDelta != null) {
+            completeDelta(ndsDelta, rowType == OsmType.WAY, ndsPacked);
+            completeDelta(membersDelta, rowType == OsmType.RELATION, membersPacked);
+        }
+    }
+
+    private void completeDelta(BytesColumnVector column, boolean present, DeltaRefs refs) {
+        if (present) {
+            arena.setRef(column, row, refs.getBuffer(), 0, refs.size());
+        } else {
+            column.isNull[row] = true;
+            column.noNulls = false;
+        }
+    }
+
+    private void flush() throws IOException {
+        writer.addRowBatch(batch);
+        batch.reset();
+
+        // the writer has copied what it needs
+        arena.reset();
+    }
+
+    /**
+     * Writes any pending rows. The underlying writer is left open for
+     * metadata to be added.
+     */
+    public void finish() throws IOException {
+        if (row >= 0) {
+            completeRow();
+
+            if (validTo != null) {
+                closeValidity(false, 0);
+            }
+        }
+
+        flush();
+        row = -1;
+    }
+}
@@ -0,0 +1,292 @@
+package net.mojodna.osm2orc.orc;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.orc.OrcConf;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.orc.TypeDescription.createBinary;
+import static org.apache.orc.TypeDescription.createBoolean;
+import static org.apache.orc.TypeDescription.createByte;
+import static org.apache.orc.TypeDescription.createDecimal;
+import static org.apache.orc.TypeDescription.createList;
+import static org.apache.orc.TypeDescription.createLong;
+import static org.apache.orc.TypeDescription.createMap;
+import static org.apache.orc.TypeDescription.createString;
+import static org.apache.orc.TypeDescription.createStruct;
+import static org.apache.orc.TypeDescription.createTimestamp;
+
+/**
+ * Describes the columns of an OSM ORC file: the base planet schema plus any
+ * optional columns that have been enabled.
+ */
+public class OsmSchema {
+    public static final String VALID_FROM = "valid_from";
+    public static final String VALID_TO = "valid_to";
+    public static final String TAG_COLUMN_PREFIX = "tag_";
+    public static final String CHANGESET_TAG_COLUMN_PREFIX = "changeset_";
+    public static final String TYPE_ENUM_METADATA = "osm.type.enum";
+    public static final String MEMBER_TYPE_ENUM_METADATA = "osm.member.type.enum";
+    public static final String NDS_DELTA = "nds_delta";
+    public static final String MEMBERS_DELTA = "members_delta";
+
+    /**
+     * How way node refs and relation member refs are stored.
+     */
+    public enum RefEncoding {
+        /**
+         * In the <code>nds</code> and <code>members</code> lists only.
+         */
+        LIST,
+        /**
+         * In the lists and, packed (see DeltaRefs), in <code>nds_delta</code>
+         * and <code>members_delta</code>.
+         */
+        BOTH,
+        /**
+         * Packed only; <code>nds</code> is null for ways and member refs are
+         * null (member types and roles remain in <code>members</code>).
+         */
+        DELTA
+    }
+
+    private boolean history;
+    private boolean typeEnum;
+    private boolean memberTypeEnum;
+    private RefEncoding refEncoding = RefEncoding.LIST;
+    private final List<String> promotedKeys = new ArrayList<>();
+    private final List<String> changesetTags = new ArrayList<>();
+    private double dictionaryKeyThreshold = -1;
+    private final List<String> directEncodingColumns = new ArrayList<>();
+
+    public boolean isHistory() {
+        return history;
+    }
+
+    /**
+     * Adds valid_from / valid_to columns computed from consecutive versions of
+     * each entity. Requires input ordered by type, id and version.
+     */
+    public OsmSchema setHistory(boolean history) {
+        this.history = history;
+        return this;
+    }
+
+    public boolean isTypeEnum() {
+        return typeEnum;
+    }
+
+    /**
+     * Writes <code>type</code> as a TINYINT holding the OsmType ordinal
+     * (0 = node, 1 = way, 2 = relation) rather than a string.
+     */
+    public OsmSchema setTypeEnum(boolean typeEnum) {
+        this.typeEnum = typeEnum;
+        return this;
+    }
+
+    public boolean isMemberTypeEnum() {
+        return memberTypeEnum;
+    }
+
+    /**
+     * Writes relation members' <code>type</code> as a TINYINT holding the
+     * OsmType ordinal, like {@link #setTypeEnum(boolean)}.
+     */
+    public OsmSchema setMemberTypeEnum(boolean memberTypeEnum) {
+        this.memberTypeEnum = memberTypeEnum;
+        return this;
+    }
+
+    public RefEncoding getRefEncoding() {
+        return refEncoding;
+    }
+
+    public OsmSchema setRefEncoding(RefEncoding refEncoding) {
+        this.refEncoding = refEncoding;
+        return this;
+    }
+
+    /**
+     * Overrides ORC's string encoding heuristic.
+     *
+     * @param dictionaryKeyThreshold
+     *            orc.dictionary.key.threshold; 1.0 always uses dictionaries.
+     * @param directEncodingColumns
+     *            Top-level columns to write with direct encoding regardless.
+     */
+    public OsmSchema setEncodings(double dictionaryKeyThreshold, Collection<String> directEncodingColumns) {
+        this.dictionaryKeyThreshold = dictionaryKeyThreshold;
+        this.directEncodingColumns.clear();
+        this.directEncodingColumns.addAll(directEncodingColumns);
+        return this;
+    }
+
+    public List<String> getPromotedKeys() {
+        return Collections.unmodifiableList(promotedKeys);
+    }
+
+    /**
+     * Adds a string column per tag key (see {@link #tagColumn(String)}),
+     * holding the key's value or null, so that queries filtering on common
+     * keys can use column statistics and bloom filters instead of decoding the
+     * tags map. The map still contains all tags.
+     */
+    public OsmSchema setPromotedKeys(Collection<String> keys) {
+        setKeys(promotedKeys, keys, TAG_COLUMN_PREFIX);
+        return this;
+    }
+
+    public List<String> getChangesetTags() {
+        return Collections.unmodifiableList(changesetTags);
+    }
+
+    /**
+     * Adds a string column per changeset tag key (see
+     * {@link #changesetTagColumn(String)}), holding the value of the tag on
+     * each entity's changeset or null, so that queries needn't join the
+     * changesets table. Values come from a ChangesetTagStore.
+     */
+    public OsmSchema setChangesetTags(Collection<String> keys) {
+        setKeys(changesetTags, keys, CHANGESET_TAG_COLUMN_PREFIX);
+        return this;
+    }
+
+    private static void setKeys(List<String> target, Collection<String> keys, String prefix) {
+        Map<String, String> columns = new HashMap<>();
+        target.clear();
+
+        for (String key : keys) {
+            String previous = columns.put(column(prefix, key), key);
+
+            if (previous == null) {
+                target.add(key);
+            } else if (!previous.equals(key)) {
+                throw new IllegalArgumentException(String.format(
+                        "Tag keys '%s' and '%s' would both be written to %s", previous, key, column(prefix, key)));
+            }
+        }
+    }
+
+    /**
+     * @return The column name for a promoted tag key: the key, lowercased,
+     *         with anything other than letters, digits and underscores
+     *         replaced by underscores, prefixed by "tag_" (addr:street becomes
+     *         tag_addr_street).
+     */
+    public static String tagColumn(String key) {
+        return column(TAG_COLUMN_PREFIX, key);
+    }
+
+    /**
+     * @return The column name for a changeset tag key, named as promoted tag
+     *         columns are but prefixed by "changeset_" (created_by becomes
+     *         changeset_created_by).
+     */
+    public static String changesetTagColumn(String key) {
+        return column(CHANGESET_TAG_COLUMN_PREFIX, key);
+    }
+
+    private static String column(String prefix, String key) {
+        StringBuilder column = new StringBuilder(prefix);
+
+        for (char c : key.toLowerCase().toCharArray()) {
+            column.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' ? c : '_');
+        }
+
+        return column.toString();
+    }
+
+    /**
+     * Applies writer settings that go with the schema: bloom filters for
+     * promoted tag columns and planned string encodings.
+     */
+    public void configure(Configuration conf) {
+        if (dictionaryKeyThreshold >= 0) {
+            OrcConf.DICTIONARY_KEY_SIZE_THRESHOLD.setDouble(conf, dictionaryKeyThreshold);
+        }
+
+        if (!directEncodingColumns.isEmpty()) {
+            OrcConf.DIRECT_ENCODING_COLUMNS.setString(conf, String.join(",", directEncodingColumns));
+        }
+
+        if (!promotedKeys.isEmpty()) {
+            List<String> columns = new ArrayList<>();
+
+            for (String key : promotedKeys) {
+                columns.add(tagColumn(key));
+            }
+
+            OrcConf.BLOOM_FILTER_COLUMNS.setString(conf, String.join(",", columns));
+        }
+    }
+
+    /**
+     * Records how to interpret optional encodings in the file's user metadata.
+     */
+    public void writeMetadata(Writer writer) {
+        if (typeEnum) {
+            writer.addUserMetadata(TYPE_ENUM_METADATA, ByteBuffer.wrap("node,way,relation".getBytes()));
+        }
+
+        if (memberTypeEnum) {
+            writer.addUserMetadata(MEMBER_TYPE_ENUM_METADATA, ByteBuffer.wrap("node,way,relation".getBytes()));
+        }
+    }
+
+    public TypeDescription createTypeDescription() {
+        TypeDescription schema = createStruct()
+                .addField("id", createLong())
+                .addField("type", typeEnum ? createByte() : createString())
+                .addField("tags", createMap(
+                        createString(),
+                        createString()
+                ))
+                .addField("lat", createDecimal().withScale(7).withPrecision(9))
+                .addField("lon", createDecimal().withScale(7).withPrecision(10))
+                .addField("nds", createList(
+                        createStruct()
+                                .addField("ref", createLong())
+                ))
+                .addField("members", createList(
+                        createStruct()
+                                .addField("type", memberTypeEnum ? createByte() : createString())
+                                .addField("ref", createLong())
+                                .addField("role", createString())
+                ))
+                .addField("changeset", createLong())
+                .addField("timestamp", createTimestamp())
+                .addField("uid", createLong())
+                .addField("user", createString())
+                .addField("version", createLong())
+                .addField("visible", createBoolean());
+
+        if (history) {
+            schema.addField(VALID_FROM, createTimestamp())
+                    .addField(VALID_TO, createTimestamp());
+        }
+
+        if (refEncoding != RefEncoding.LIST) {
+            schema.addField(NDS_DELTA, createBinary())
+                    .addField(MEMBERS_DELTA, createBinary());
+        }
+
+        for (String key : promotedKeys) {
+            schema.addField(tagColumn(key), createString());
+        }
+
+        for (String key : changesetTags) {
+            schema.addField(changesetTagColumn(key), createString());
+        }
+
+        return schema;
+    }
+}
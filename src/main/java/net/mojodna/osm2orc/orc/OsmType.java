@@ -0,0 +1,26 @@
+package net.mojodna.osm2orc.orc;
+
+import java.nio.charset.StandardCharsets;
+
+public enum OsmType {
+    NODE("node"),
+    WAY("way"),
+    RELATION("relation");
+
+    private final String name;
+    private final byte[] bytes;
+
+    OsmType(String name) {
+        this.name = name;
+        this.bytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
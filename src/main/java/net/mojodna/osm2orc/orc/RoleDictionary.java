@@ -0,0 +1,146 @@
+package net.mojodna.osm2orc.orc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns relation member roles, which come from a small vocabulary
+ * (<code>outer</code>, <code>inner</code>, <code>stop</code>, ...), so that
+ * members can refer to one shared copy of each rather than copying (or, for
+ * String roles, encoding) it per member. Consecutive members usually share a
+ * role, so the previous one is checked first.
+ *
+ * The dictionary lives as long as its writer, so entries stay valid across
+ * batches. Once it's full (roles are free-form, so some inputs have very
+ * many), lookups return null and callers copy roles as before.
+ */
+class RoleDictionary {
+    static final int MAX_ROLES = 4096;
+    private static final int MAX_ROLE_LENGTH = 64;
+
+    private byte[][] roles = new byte[256][];
+    private int[] hashes = new int[256];
+    private int size;
+    private byte[] last = new byte[0];
+    private final Map<String, byte[]> strings = new HashMap<>();
+    private String lastString = "";
+    private byte[] lastStringBytes = last;
+
+    /**
+     * @return A shared copy of the role, or null if it isn't in (and can't be
+     *         added to) the dictionary.
+     */
+    byte[] intern(byte[] bytes, int start, int length) {
+        if (equals(last, bytes, start, length)) {
+            return last;
+        }
+
+        if (length > MAX_ROLE_LENGTH) {
+            return null;
+        }
+
+        int hash = 1;
+
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        int mask = roles.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while (roles[slot] != null) {
+            if (hashes[slot] == hash && equals(roles[slot], bytes, start, length)) {
+                last = roles[slot];
+                return last;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == MAX_ROLES) {
+            return null;
+        }
+
+        roles[slot] = Arrays.copyOfRange(bytes, start, start + length);
+        hashes[slot] = hash;
+        last = roles[slot];
+
+        if (++size * 2 > roles.length) {
+            grow();
+        }
+
+        return last;
+    }
+
+    /**
+     * @return The role's UTF-8 bytes, shared, or null as for
+     *         {@link #intern(byte[], int, int)}.
+     */
+    byte[] intern(String role) {
+        // osmosis reuses role strings between members of a relation
+        if (role == lastString || role.equals(lastString)) {
+            return lastStringBytes;
+        }
+
+        byte[] bytes = strings.get(role);
+
+        if (bytes == null) {
+            if (strings.size() == MAX_ROLES || role.length() > MAX_ROLE_LENGTH) {
+                return null;
+            }
+
+            byte[] encoded = role.getBytes(StandardCharsets.UTF_8);
+            bytes = intern(encoded, 0, encoded.length);
+
+            if (bytes == null) {
+                return null;
+            }
+
+            strings.put(role, bytes);
+        }
+
+        lastString = role;
+        lastStringBytes = bytes;
+
+        return bytes;
+    }
+
+    private static boolean equals(byte[] role, byte[] bytes, int start, int length) {
+        if (role.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (role[i] != bytes[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void grow() {
+        byte[][] oldRoles = roles;
+        int[] oldHashes = hashes;
+
+        roles = new byte[oldRoles.length * 2][];
+        hashes = new int[roles.length];
+
+        int mask = roles.length - 1;
+
+        for (int i = 0; i < oldRoles.length; i++) {
+            if (oldRoles[i] != null) {
+                int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+
+                while (roles[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+
+                roles[slot] = oldRoles[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
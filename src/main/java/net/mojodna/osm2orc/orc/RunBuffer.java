@@ -0,0 +1,321 @@
+package net.mojodna.osm2orc.orc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Entities serialized for sorting (see SortingHandler): each is a record of
+ * its type, id, version and metadata, followed by its tags, location, node
+ * refs and members as tagged events, with numbers as zigzag varints and node
+ * refs delta-encoded. Records are appended to one array, so a run costs
+ * little more than its encoded size.
+ */
+class RunBuffer {
+    static final int TAG = 1;
+    static final int LOCATION = 2;
+    static final int NODE_REF = 3;
+    static final int MEMBER = 4;
+
+    private static final OsmType[] TYPES = OsmType.values();
+    // per-record arrays: offset, type, id, version and sort order
+    static final int RECORD_OVERHEAD = 4 + 1 + 8 + 8 + 4;
+
+    private byte[] data = new byte[64 * 1024];
+    private int size;
+    private int[] offsets = new int[1024];
+    private byte[] types = new byte[1024];
+    private long[] ids = new long[1024];
+    private long[] versions = new long[1024];
+    private int[] order;
+    private int count;
+    private long lastRef;
+
+    /**
+     * @return Approximately how much memory records take.
+     */
+    long bytes() {
+        return size + (long) count * RECORD_OVERHEAD;
+    }
+
+    int count() {
+        return count;
+    }
+
+    void clear() {
+        size = 0;
+        count = 0;
+        order = null;
+    }
+
+    void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                     byte[] user, int userStart, int userLength, boolean visible) {
+        if (count == offsets.length) {
+            int length = count * 2;
+            offsets = Arrays.copyOf(offsets, length);
+            types = Arrays.copyOf(types, length);
+            ids = Arrays.copyOf(ids, length);
+            versions = Arrays.copyOf(versions, length);
+        }
+
+        offsets[count] = size;
+        types[count] = (byte) type.ordinal();
+        ids[count] = id;
+        versions[count] = version;
+        count++;
+        lastRef = 0;
+
+        ensure(1 + 5 * 10 + 1 + 5 + userLength);
+        data[size++] = (byte) type.ordinal();
+        writeSigned(id);
+        writeSigned(version);
+        writeSigned(timestamp);
+        writeSigned(changeset);
+        writeSigned(uid);
+        data[size++] = (byte) (visible ? 1 : 0);
+        writeBytes(user, userStart, userLength);
+    }
+
+    void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        ensure(1 + 5 + keyLength + 5 + valueLength);
+        data[size++] = TAG;
+        writeBytes(key, keyStart, keyLength);
+        writeBytes(value, valueStart, valueLength);
+    }
+
+    void setLocation(long latitude, long longitude) {
+        ensure(1 + 2 * 10);
+        data[size++] = LOCATION;
+        writeSigned(latitude);
+        writeSigned(longitude);
+    }
+
+    void addNodeRef(long ref) {
+        ensure(1 + 10);
+        data[size++] = NODE_REF;
+        writeSigned(ref - lastRef);
+        lastRef = ref;
+    }
+
+    void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        ensure(1 + 1 + 10 + 5 + roleLength);
+        data[size++] = MEMBER;
+        data[size++] = (byte) type.ordinal();
+        writeSigned(ref);
+        writeBytes(role, roleStart, roleLength);
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > data.length) {
+            long length = Math.max((long) data.length * 2, (long) size + bytes);
+
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Sort run is too large; lower the run size");
+            }
+
+            data = Arrays.copyOf(data, (int) length);
+        }
+    }
+
+    private void writeSigned(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        data[size++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes, int start, int length) {
+        writeVarint(length);
+        System.arraycopy(bytes, start, data, size, length);
+        size += length;
+    }
+
+    /**
+     * Orders records by type, id and version (stably, so equal versions keep
+     * their input order).
+     */
+    void sort() {
+        order = new int[count];
+        int[] scratch = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        // input is often mostly sorted: bottom-up merge sort, skipping merges of ordered halves
+        for (int width = 1; width < count; width *= 2) {
+            for (int start = 0; start < count - width; start += width * 2) {
+                int middle = start + width;
+                int end = Math.min(start + width * 2, count);
+
+                if (compare(order[middle - 1], order[middle]) <= 0) {
+                    continue;
+                }
+
+                System.arraycopy(order, start, scratch, start, end - start);
+
+                for (int i = start, left = start, right = middle; i < end; i++) {
+                    if (right == end || (left < middle && compare(scratch[left], scratch[right]) <= 0)) {
+                        order[i] = scratch[left++];
+                    } else {
+                        order[i] = scratch[right++];
+                    }
+                }
+            }
+        }
+    }
+
+    private int compare(int a, int b) {
+        if (types[a] != types[b]) {
+            return types[a] - types[b];
+        }
+
+        if (ids[a] != ids[b]) {
+            return Long.compare(ids[a], ids[b]);
+        }
+
+        return Long.compare(versions[a], versions[b]);
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return The start of the <code>i</code>th record in sorted order.
+     */
+    int start(int i) {
+        return offsets[order[i]];
+    }
+
+    int end(int i) {
+        int record = order[i];
+
+        return record + 1 < count ? offsets[record + 1] : size;
+    }
+
+    /**
+     * Writes sorted records, each prefixed with its length.
+     */
+    void write(OutputStream out) throws IOException {
+        for (int i = 0; i < count; i++) {
+            writeRecord(out, data, start(i), end(i));
+        }
+    }
+
+    static void writeRecord(OutputStream out, byte[] record, int start, int end) throws IOException {
+        int length = end - start;
+
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+
+        out.write(length);
+        out.write(record, start, end - start);
+    }
+
+    /**
+     * Decodes a record's key: its type ordinal, id and version.
+     */
+    static void readKey(byte[] record, int start, long[] key, Reader reader) {
+        reader.set(record, start + 1);
+        key[0] = record[start];
+        key[1] = reader.signed();
+        key[2] = reader.signed();
+    }
+
+    /**
+     * Passes a record to a handler, with strings as ranges of
+     * <code>record</code>.
+     */
+    static void replay(byte[] record, int start, int end, EntityHandler handler, Reader reader) throws IOException {
+        reader.set(record, start);
+
+        OsmType type = TYPES[record[reader.position++]];
+        long id = reader.signed();
+        long version = reader.signed();
+        long timestamp = reader.signed();
+        long changeset = reader.signed();
+        long uid = reader.signed();
+        boolean visible = record[reader.position++] != 0;
+        int userLength = (int) reader.varint();
+
+        handler.startEntity(type, id, version, timestamp, changeset, uid, record, reader.position, userLength,
+                visible);
+        reader.position += userLength;
+
+        long ref = 0;
+
+        while (reader.position < end) {
+            switch (record[reader.position++]) {
+                case TAG:
+                    int keyLength = (int) reader.varint();
+                    int keyStart = reader.position;
+                    reader.position += keyLength;
+                    int valueLength = (int) reader.varint();
+
+                    handler.addTag(record, keyStart, keyLength, record, reader.position, valueLength);
+                    reader.position += valueLength;
+                    break;
+
+                case LOCATION:
+                    long latitude = reader.signed();
+                    handler.setLocation(latitude, reader.signed());
+                    break;
+
+                case NODE_REF:
+                    ref += reader.signed();
+                    handler.addNodeRef(ref);
+                    break;
+
+                case MEMBER:
+                    OsmType memberType = TYPES[record[reader.position++]];
+                    long memberRef = reader.signed();
+                    int roleLength = (int) reader.varint();
+
+                    handler.addMember(memberType, memberRef, record, reader.position, roleLength);
+                    reader.position += roleLength;
+                    break;
+
+                default:
+                    throw new IOException("Corrupt sort record");
+            }
+        }
+    }
+
+    static class Reader {
+        private byte[] bytes;
+        int position;
+
+        void set(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        long varint() {
+            long value = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        long signed() {
+            long value = varint();
+
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package net.mojodna.osm2orc.orc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Passes entities on to another handler ordered by type, id and version,
+ * whatever order they arrive in: an external merge sort. Entities are
+ * serialized into runs (see RunBuffer) which, once full, are sorted and
+ * spilled to deflated temporary files on worker threads while the next run
+ * fills. {@link #finish()} merges the spilled runs and the last one (kept in
+ * memory) into the handler. Inputs which fit in a single run never touch the
+ * disk.
+ *
+ * Up to <code>workers + 1</code> runs are held in memory at a time.
+ */
+public class SortingHandler implements EntityHandler, Closeable {
+    public static final long DEFAULT_RUN_BYTES = 64L * 1024 * 1024;
+
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+    // runs merged at once, each with its own buffers and inflater
+    private static final int MAX_MERGE_WIDTH = 64;
+
+    private final EntityHandler handler;
+    private final Path parent;
+    private final long runBytes;
+    private final int buffers;
+    private final ExecutorService spillers;
+    private final BlockingQueue<RunBuffer> free;
+    private final List<Future<Path>> spills = new ArrayList<>();
+    private RunBuffer current = new RunBuffer();
+    private int allocated = 1;
+    private Path directory;
+    private long entities;
+
+    /**
+     * @param directory
+     *            Where to create a temporary directory for spilled runs.
+     * @param runBytes
+     *            Roughly how much memory each run takes.
+     * @param workers
+     *            Threads sorting and spilling runs.
+     */
+    public SortingHandler(EntityHandler handler, Path directory, long runBytes, int workers) {
+        this.handler = handler;
+        this.parent = directory;
+        this.runBytes = runBytes;
+        this.buffers = workers + 1;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.spillers = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "sort-spill");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The number of runs spilled to disk so far.
+     */
+    public int getSpilledRuns() {
+        return spills.size();
+    }
+
+    public long getEntities() {
+        return entities;
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) throws IOException {
+        if (current.bytes() >= runBytes) {
+            spill();
+        }
+
+        current.startEntity(type, id, version, timestamp, changeset, uid, user, userStart, userLength, visible);
+        entities++;
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        current.addTag(key, keyStart, keyLength, value, valueStart, valueLength);
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        current.setLocation(latitude, longitude);
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        current.addNodeRef(ref);
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        current.addMember(type, ref, role, roleStart, roleLength);
+    }
+
+    /**
+     * Sorts and writes the current run on a worker, moving on to a free one.
+     */
+    private void spill() throws IOException {
+        checkSpills();
+
+        if (directory == null) {
+            Files.createDirectories(parent);
+            directory = Files.createTempDirectory(parent, "osm2orc-sort");
+        }
+
+        RunBuffer run = current;
+        Path file = directory.resolve(String.format("run-%05d.bin", spills.size()));
+
+        spills.add(spillers.submit(() -> {
+            try {
+                run.sort();
+
+                try (OutputStream out = new RunOutputStream(file)) {
+                    run.write(out);
+                }
+
+                return file;
+            } finally {
+                run.clear();
+                free.add(run);
+            }
+        }));
+
+        if (free.isEmpty() && allocated < buffers) {
+            current = new RunBuffer();
+            allocated++;
+        } else {
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a run to be spilled");
+            }
+        }
+    }
+
+    /**
+     * Fails fast if a spill failed.
+     */
+    private void checkSpills() throws IOException {
+        for (Future<Path> spill : spills) {
+            if (spill.isDone()) {
+                spilled(spill);
+            }
+        }
+    }
+
+    private static Path spilled(Future<Path> spill) throws IOException {
+        try {
+            return spill.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to spill a sort run", e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a run to be spilled");
+        }
+    }
+
+    /**
+     * Passes everything received so far on to the handler, in order.
+     */
+    public void finish() throws IOException {
+        current.sort();
+
+        List<Path> runs = new ArrayList<>();
+
+        for (Future<Path> spill : spills) {
+            runs.add(spilled(spill));
+        }
+
+        List<Cursor> cursors = new ArrayList<>();
+
+        try {
+            runs = reduce(runs);
+
+            for (Path run : runs) {
+                cursors.add(new FileCursor(run));
+            }
+
+            cursors.add(new MemoryCursor(current));
+
+            RunBuffer.Reader reader = new RunBuffer.Reader();
+
+            merge(cursors, reader, cursor -> RunBuffer.replay(cursor.record, cursor.start, cursor.end, handler, reader));
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+
+            current.clear();
+            close();
+        }
+    }
+
+    /**
+     * Merges spilled runs (in parallel) until few enough are left to merge
+     * at once.
+     */
+    private List<Path> reduce(List<Path> runs) throws IOException {
+        int pass = 0;
+
+        while (runs.size() > MAX_MERGE_WIDTH) {
+            List<Future<Path>> merges = new ArrayList<>();
+
+            for (int i = 0; i < runs.size(); i += MAX_MERGE_WIDTH) {
+                List<Path> group = runs.subList(i, Math.min(i + MAX_MERGE_WIDTH, runs.size()));
+                Path file = directory.resolve(String.format("merge-%d-%05d.bin", pass, merges.size()));
+
+                merges.add(spillers.submit(() -> {
+                    List<Cursor> cursors = new ArrayList<>();
+
+                    try {
+                        for (Path run : group) {
+                            cursors.add(new FileCursor(run));
+                        }
+
+                        try (OutputStream out = new RunOutputStream(file)) {
+                            merge(cursors, new RunBuffer.Reader(),
+                                    cursor -> RunBuffer.writeRecord(out, cursor.record, cursor.start, cursor.end));
+                        }
+                    } finally {
+                        for (Cursor cursor : cursors) {
+                            cursor.close();
+                        }
+                    }
+
+                    for (Path run : group) {
+                        Files.delete(run);
+                    }
+
+                    return file;
+                }));
+            }
+
+            List<Path> merged = new ArrayList<>();
+
+            for (Future<Path> merge : merges) {
+                merged.add(spilled(merge));
+            }
+
+            runs = merged;
+            pass++;
+        }
+
+        return runs;
+    }
+
+    private interface RecordSink {
+        void accept(Cursor cursor) throws IOException;
+    }
+
+    private static void merge(List<Cursor> cursors, RunBuffer.Reader reader, RecordSink sink) throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(cursors.size(), Cursor::compareTo);
+
+        for (Cursor cursor : cursors) {
+            if (cursor.next(reader)) {
+                queue.add(cursor);
+            }
+        }
+
+        while (queue.size() > 1) {
+            Cursor cursor = queue.poll();
+            sink.accept(cursor);
+
+            if (cursor.next(reader)) {
+                queue.add(cursor);
+            }
+        }
+
+        // the rest of the last run needs no comparisons
+        Cursor last = queue.poll();
+
+        if (last != null) {
+            do {
+                sink.accept(last);
+            } while (last.next(reader));
+        }
+    }
+
+    /**
+     * Stops spilling and deletes spilled runs.
+     */
+    @Override
+    public void close() throws IOException {
+        spillers.shutdownNow();
+
+        if (directory == null) {
+            return;
+        }
+
+        try {
+            spillers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        Files.deleteIfExists(directory);
+        directory = null;
+    }
+
+    /**
+     * A position in a sorted run: the current record and its key.
+     */
+    private abstract static class Cursor implements Closeable {
+        final long[] key = new long[3];
+        byte[] record;
+        int start;
+        int end;
+
+        abstract boolean next(RunBuffer.Reader reader) throws IOException;
+
+        int compareTo(Cursor other) {
+            if (key[0] != other.key[0]) {
+                return Long.compare(key[0], other.key[0]);
+            }
+
+            if (key[1] != other.key[1]) {
+                return Long.compare(key[1], other.key[1]);
+            }
+
+            return Long.compare(key[2], other.key[2]);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class MemoryCursor extends Cursor {
+        private final RunBuffer run;
+        private int position = -1;
+
+        MemoryCursor(RunBuffer run) {
+            this.run = run;
+            this.record = run.data();
+        }
+
+        @Override
+        boolean next(RunBuffer.Reader reader) {
+            if (++position == run.count()) {
+                return false;
+            }
+
+            start = run.start(position);
+            end = run.end(position);
+            RunBuffer.readKey(record, start, key, reader);
+
+            return true;
+        }
+    }
+
+    /**
+     * Writes a deflated run file.
+     */
+    private static class RunOutputStream extends BufferedOutputStream {
+        private final Deflater deflater;
+
+        RunOutputStream(Path file) throws IOException {
+            this(file, new Deflater(Deflater.BEST_SPEED));
+        }
+
+        private RunOutputStream(Path file, Deflater deflater) throws IOException {
+            super(new DeflaterOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file), SPILL_BUFFER_SIZE), deflater,
+                    SPILL_BUFFER_SIZE), SPILL_BUFFER_SIZE);
+            this.deflater = deflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static class FileCursor extends Cursor {
+        private final Inflater inflater = new Inflater();
+        private final InputStream in;
+
+        FileCursor(Path file) throws IOException {
+            in = new BufferedInputStream(new InflaterInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), SPILL_BUFFER_SIZE), inflater,
+                    SPILL_BUFFER_SIZE), SPILL_BUFFER_SIZE);
+            record = new byte[1024];
+        }
+
+        @Override
+        boolean next(RunBuffer.Reader reader) throws IOException {
+            int length = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+
+                if (b < 0) {
+                    if (shift == 0) {
+                        return false;
+                    }
+
+                    throw new EOFException("Truncated sort run");
+                }
+
+                length |= (b & 0x7F) << shift;
+
+                if (b < 0x80) {
+                    break;
+                }
+            }
+
+            if (length > record.length) {
+                record = Arrays.copyOf(record, Math.max(length, record.length * 2));
+            }
+
+            for (int read = 0; read < length; ) {
+                int n = in.read(record, read, length - read);
+
+                if (n < 0) {
+                    throw new EOFException("Truncated sort run");
+                }
+
+                read += n;
+            }
+
+            start = 0;
+            end = length;
+            RunBuffer.readKey(record, 0, key, reader);
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package net.mojodna.osm2orc.orc.index;
+
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.util.IdSet;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The ids of the entities in an OSM ORC file, per type, and the ids they
+ * reference: node ids referenced by ways and member ids (per type) referenced
+ * by relations. Answers "which entities exist" and "which are referenced"
+ * without scanning, and finds dangling references.
+ *
+ * Stored next to the ORC file as <code>&lt;file&gt;.ids</code>.
+ */
+public class OsmIdSets {
+    public static final String SUFFIX = ".ids";
+
+    private static final byte[] MAGIC = "OSMORCID".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private final IdSet[] entities = new IdSet[OsmType.values().length];
+    private final IdSet wayNodes;
+    private final IdSet[] members = new IdSet[OsmType.values().length];
+
+    public OsmIdSets() {
+        this(null, null, null);
+    }
+
+    private OsmIdSets(IdSet[] entities, IdSet wayNodes, IdSet[] members) {
+        for (OsmType type : OsmType.values()) {
+            this.entities[type.ordinal()] = entities != null ? entities[type.ordinal()] : new IdSet();
+            this.members[type.ordinal()] = members != null ? members[type.ordinal()] : new IdSet();
+        }
+
+        this.wayNodes = wayNodes != null ? wayNodes : new IdSet();
+    }
+
+    public static Path sidecar(Path orc) {
+        return new Path(orc.getParent(), orc.getName() + SUFFIX);
+    }
+
+    public IdSet getEntities(OsmType type) {
+        return entities[type.ordinal()];
+    }
+
+    /**
+     * @return Node ids referenced by ways.
+     */
+    public IdSet getWayNodes() {
+        return wayNodes;
+    }
+
+    /**
+     * @return Ids of the given type referenced by relation members.
+     */
+    public IdSet getMembers(OsmType type) {
+        return members[type.ordinal()];
+    }
+
+    /**
+     * @return Node ids referenced by ways but not present.
+     */
+    public IdSet getDanglingWayNodes() {
+        return wayNodes.andNot(getEntities(OsmType.NODE));
+    }
+
+    /**
+     * @return Ids of the given type referenced by relations but not present.
+     */
+    public IdSet getDanglingMembers(OsmType type) {
+        return getMembers(type).andNot(getEntities(type));
+    }
+
+    public void write(Configuration conf, Path orc) throws IOException {
+        Path path = sidecar(orc);
+        FileSystem fs = path.getFileSystem(conf);
+
+        try (FSDataOutputStream stream = fs.create(path, true)) {
+            write(stream);
+        }
+    }
+
+    /**
+     * Writes the sets to a stream, which is left open.
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+
+        for (IdSet set : entities) {
+            set.write(out);
+        }
+
+        wayNodes.write(out);
+
+        for (IdSet set : members) {
+            set.write(out);
+        }
+
+        out.flush();
+    }
+
+    public static OsmIdSets read(Configuration conf, Path orc) throws IOException {
+        Path path = sidecar(orc);
+        FileSystem fs = path.getFileSystem(conf);
+
+        try (FSDataInputStream stream = fs.open(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not an osm2orc id set file");
+            }
+
+            int version = in.readInt();
+
+            if (version != VERSION) {
+                throw new IOException("Unsupported id set version: " + version);
+            }
+
+            IdSet[] entities = new IdSet[OsmType.values().length];
+            IdSet[] members = new IdSet[OsmType.values().length];
+
+            for (int i = 0; i < entities.length; i++) {
+                entities[i] = IdSet.read(in);
+            }
+
+            IdSet wayNodes = IdSet.read(in);
+
+            for (int i = 0; i < members.length; i++) {
+                members[i] = IdSet.read(in);
+            }
+
+            return new OsmIdSets(entities, wayNodes, members);
+        }
+    }
+}
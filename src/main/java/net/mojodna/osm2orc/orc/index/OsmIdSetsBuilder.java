@@ -0,0 +1,63 @@
+package net.mojodna.osm2orc.orc.index;
+
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.util.IdSet;
+import net.mojodna.osm2orc.util.MemoryBudget;
+
+import java.io.IOException;
+
+/**
+ * Collects OsmIdSets from the entities passing through to another handler.
+ */
+public class OsmIdSetsBuilder implements EntityHandler {
+    private final EntityHandler handler;
+    private final OsmIdSets sets = new OsmIdSets();
+
+    public OsmIdSetsBuilder(EntityHandler handler) {
+        this.handler = handler;
+    }
+
+    public void setMemoryBudget(MemoryBudget budget) {
+        for (OsmType type : OsmType.values()) {
+            sets.getEntities(type).setMemoryBudget(budget, type + " ids");
+            sets.getMembers(type).setMemoryBudget(budget, "Relation member " + type + " ids");
+        }
+
+        sets.getWayNodes().setMemoryBudget(budget, "Way node refs");
+    }
+
+    public OsmIdSets getSets() {
+        return sets;
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) throws IOException {
+        sets.getEntities(type).add(id);
+
+        handler.startEntity(type, id, version, timestamp, changeset, uid, user, userStart, userLength, visible);
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        handler.addTag(key, keyStart, keyLength, value, valueStart, valueLength);
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        handler.setLocation(latitude, longitude);
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        sets.getWayNodes().add(ref);
+        handler.addNodeRef(ref);
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        sets.getMembers(type).add(ref);
+        handler.addMember(type, ref, role, roleStart, roleLength);
+    }
+}
@@ -0,0 +1,263 @@
+package net.mojodna.osm2orc.orc.index;
+
+import net.mojodna.osm2orc.orc.OsmType;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sidecar index for an OSM ORC file: the id range of each type within each
+ * stripe plus a sparse (every <code>interval</code> rows) id to row number
+ * index, so that single entities can be located with one small ranged read.
+ *
+ * Stored next to the ORC file as <code>&lt;file&gt;.idx</code>.
+ */
+public class OsmOrcIndex {
+    public static final String SUFFIX = ".idx";
+
+    private static final byte[] MAGIC = "OSMORCIX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private final boolean sorted;
+    private final List<StripeEntry> stripes;
+    private final int interval;
+    private final byte[] sparseTypes;
+    private final long[] sparseIds;
+    private final long[] sparseRows;
+    private final int sparseCount;
+
+    public static class StripeEntry {
+        private final OsmType type;
+        private final long minId;
+        private final long maxId;
+        private final long offset;
+        private final long length;
+        private final long firstRow;
+        private final long rowCount;
+
+        public StripeEntry(OsmType type, long minId, long maxId, long offset, long length, long firstRow, long rowCount) {
+            this.type = type;
+            this.minId = minId;
+            this.maxId = maxId;
+            this.offset = offset;
+            this.length = length;
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+        }
+
+        public OsmType getType() {
+            return type;
+        }
+
+        public long getMinId() {
+            return minId;
+        }
+
+        public long getMaxId() {
+            return maxId;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getFirstRow() {
+            return firstRow;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+    }
+
+    OsmOrcIndex(boolean sorted, List<StripeEntry> stripes, int interval,
+                byte[] sparseTypes, long[] sparseIds, long[] sparseRows, int sparseCount) {
+        this.sorted = sorted;
+        this.stripes = stripes;
+        this.interval = interval;
+        this.sparseTypes = sparseTypes;
+        this.sparseIds = sparseIds;
+        this.sparseRows = sparseRows;
+        this.sparseCount = sparseCount;
+    }
+
+    public static Path sidecar(Path orc) {
+        return new Path(orc.getParent(), orc.getName() + SUFFIX);
+    }
+
+    /**
+     * Whether the indexed file is ordered by type, then id.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public List<StripeEntry> getStripes() {
+        return Collections.unmodifiableList(stripes);
+    }
+
+    /**
+     * @return Stripes which may contain the given entity.
+     */
+    public List<StripeEntry> candidates(OsmType type, long id) {
+        List<StripeEntry> candidates = new ArrayList<>();
+
+        for (StripeEntry stripe : stripes) {
+            if (stripe.type == type && stripe.minId <= id && id <= stripe.maxId) {
+                candidates.add(stripe);
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * @return The row to start scanning from within a stripe when looking for
+     *         an entity.
+     */
+    public long startRow(OsmType type, long id, StripeEntry stripe) {
+        if (!sorted || sparseCount == 0) {
+            return stripe.firstRow;
+        }
+
+        // last sampled row at or before (type, id)
+        int low = 0;
+        int high = sparseCount - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int order = sparseTypes[mid] != type.ordinal()
+                    ? Integer.compare(sparseTypes[mid], type.ordinal())
+                    : Long.compare(sparseIds[mid], id);
+
+            if (order < 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found < 0) {
+            return stripe.firstRow;
+        }
+
+        long row = sparseRows[found];
+
+        if (row < stripe.firstRow || row >= stripe.firstRow + stripe.rowCount) {
+            return stripe.firstRow;
+        }
+
+        return row;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public void write(Configuration conf, Path orc) throws IOException {
+        Path path = sidecar(orc);
+        FileSystem fs = path.getFileSystem(conf);
+
+        try (FSDataOutputStream stream = fs.create(path, true)) {
+            write(stream);
+        }
+    }
+
+    /**
+     * Writes the index to a stream, which is left open.
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(sorted);
+
+        out.writeInt(stripes.size());
+
+        for (StripeEntry stripe : stripes) {
+            out.writeByte(stripe.type.ordinal());
+            out.writeLong(stripe.minId);
+            out.writeLong(stripe.maxId);
+            out.writeLong(stripe.offset);
+            out.writeLong(stripe.length);
+            out.writeLong(stripe.firstRow);
+            out.writeLong(stripe.rowCount);
+        }
+
+        out.writeInt(interval);
+        out.writeInt(sparseCount);
+
+        for (int i = 0; i < sparseCount; i++) {
+            out.writeByte(sparseTypes[i]);
+            out.writeLong(sparseIds[i]);
+            out.writeLong(sparseRows[i]);
+        }
+
+        out.flush();
+    }
+
+    public static OsmOrcIndex read(Configuration conf, Path orc) throws IOException {
+        Path path = sidecar(orc);
+        FileSystem fs = path.getFileSystem(conf);
+
+        try (FSDataInputStream stream = fs.open(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not an osm2orc index");
+            }
+
+            int version = in.readInt();
+
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version: " + version);
+            }
+
+            boolean sorted = in.readBoolean();
+            int stripeCount = in.readInt();
+            List<StripeEntry> stripes = new ArrayList<>(stripeCount);
+
+            for (int i = 0; i < stripeCount; i++) {
+                stripes.add(new StripeEntry(OsmType.values()[in.readByte()], in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+
+            int interval = in.readInt();
+            int sparseCount = in.readInt();
+            byte[] sparseTypes = new byte[sparseCount];
+            long[] sparseIds = new long[sparseCount];
+            long[] sparseRows = new long[sparseCount];
+
+            for (int i = 0; i < sparseCount; i++) {
+                sparseTypes[i] = in.readByte();
+                sparseIds[i] = in.readLong();
+                sparseRows[i] = in.readLong();
+            }
+
+            return new OsmOrcIndex(sorted, stripes, interval, sparseTypes, sparseIds, sparseRows, sparseCount);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.mojodna.osm2orc.orc.index;
+
+import net.mojodna.osm2orc.orc.OsmType;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.StripeInformation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects an {@link OsmOrcIndex} while a file is being written. Rows are
+ * reported as they're added; stripe boundaries come from the ORC writer
+ * callback, which fires between row batches.
+ */
+public class OsmOrcIndexBuilder implements OrcFile.WriterCallback {
+    public static final int DEFAULT_INTERVAL = 10000;
+
+    private final int interval;
+    private final List<long[]> stripeRanges = new ArrayList<>();
+
+    // per type: min id, max id, rows in the current stripe
+    private final long[] minIds = new long[OsmType.values().length];
+    private final long[] maxIds = new long[OsmType.values().length];
+    private final long[] counts = new long[OsmType.values().length];
+
+    private long rows;
+    private long stripeFirstRow;
+    private int stripeCount;
+
+    private byte[] sparseTypes = new byte[1024];
+    private long[] sparseIds = new long[1024];
+    private long[] sparseRows = new long[1024];
+    private int sparseCount;
+
+    public OsmOrcIndexBuilder() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    public OsmOrcIndexBuilder(int interval) {
+        this.interval = interval;
+        resetStripe();
+    }
+
+    private void resetStripe() {
+        Arrays.fill(minIds, Long.MAX_VALUE);
+        Arrays.fill(maxIds, Long.MIN_VALUE);
+        Arrays.fill(counts, 0);
+    }
+
+    /**
+     * Records a row. Rows must be reported in the order they're written.
+     */
+    public void add(OsmType type, long id) {
+        int t = type.ordinal();
+        minIds[t] = Math.min(minIds[t], id);
+        maxIds[t] = Math.max(maxIds[t], id);
+        counts[t]++;
+
+        if (rows % interval == 0) {
+            if (sparseCount == sparseIds.length) {
+                sparseTypes = Arrays.copyOf(sparseTypes, sparseCount * 2);
+                sparseIds = Arrays.copyOf(sparseIds, sparseCount * 2);
+                sparseRows = Arrays.copyOf(sparseRows, sparseCount * 2);
+            }
+
+            sparseTypes[sparseCount] = (byte) t;
+            sparseIds[sparseCount] = id;
+            sparseRows[sparseCount] = rows;
+            sparseCount++;
+        }
+
+        rows++;
+    }
+
+    @Override
+    public void preStripeWrite(OrcFile.WriterContext context) {
+        // stripe ordinal, type, min id, max id, first row, row count
+        long stripeRows = rows - stripeFirstRow;
+
+        for (OsmType type : OsmType.values()) {
+            int t = type.ordinal();
+
+            if (counts[t] > 0) {
+                stripeRanges.add(new long[]{stripeCount, t, minIds[t], maxIds[t], stripeFirstRow, stripeRows});
+            }
+        }
+
+        stripeFirstRow = rows;
+        stripeCount++;
+        resetStripe();
+    }
+
+    @Override
+    public void preFooterWrite(OrcFile.WriterContext context) {
+        // nothing to add to the footer
+    }
+
+    /**
+     * Resolves stripe offsets from the finished file's footer and writes the
+     * index next to it.
+     *
+     * @param sorted
+     *            Whether rows were written in type-then-id order.
+     */
+    public OsmOrcIndex write(Configuration conf, Path orc, boolean sorted) throws IOException {
+        OsmOrcIndex index = build(conf, orc, sorted);
+        index.write(conf, orc);
+
+        return index;
+    }
+
+    /**
+     * Resolves stripe offsets from the finished file's footer, leaving
+     * writing the index to the caller.
+     *
+     * @param sorted
+     *            Whether rows were written in type-then-id order.
+     */
+    public OsmOrcIndex build(Configuration conf, Path orc, boolean sorted) throws IOException {
+        List<StripeInformation> stripes;
+
+        try (Reader reader = OrcFile.createReader(orc, OrcFile.readerOptions(conf))) {
+            stripes = reader.getStripes();
+        }
+
+        if (stripes.size() != stripeCount) {
+            throw new IllegalStateException("Expected " + stripeCount + " stripes but " + orc + " contains " + stripes.size());
+        }
+
+        List<OsmOrcIndex.StripeEntry> entries = new ArrayList<>(stripeRanges.size());
+
+        for (long[] range : stripeRanges) {
+            StripeInformation stripe = stripes.get((int) range[0]);
+
+            entries.add(new OsmOrcIndex.StripeEntry(OsmType.values()[(int) range[1]], range[2], range[3],
+                    stripe.getOffset(), stripe.getLength(), range[4], range[5]));
+        }
+
+        return new OsmOrcIndex(sorted, entries, interval, sparseTypes, sparseIds, sparseRows, sparseCount);
+    }
+}
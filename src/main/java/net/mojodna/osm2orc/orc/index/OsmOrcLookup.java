@@ -0,0 +1,124 @@
+package net.mojodna.osm2orc.orc.index;
+
+import net.mojodna.osm2orc.orc.OsmType;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Looks up entities by type and id using an {@link OsmOrcIndex}. Only the
+ * stripes whose id range covers the id are read, and ORC's row index limits
+ * that to the matching row group. Keep an instance open for repeated lookups.
+ */
+public class OsmOrcLookup implements Closeable {
+    private final Reader reader;
+    private final OsmOrcIndex index;
+
+    public interface RowCallback {
+        void call(VectorizedRowBatch batch, int row);
+    }
+
+    public OsmOrcLookup(Configuration conf, Path orc) throws IOException {
+        this.reader = OrcFile.createReader(orc, OrcFile.readerOptions(conf));
+        this.index = OsmOrcIndex.read(conf, orc);
+    }
+
+    public List<String> getFieldNames() {
+        return reader.getSchema().getFieldNames();
+    }
+
+    /**
+     * Calls back with every row (all versions, for history files) of the given
+     * entity.
+     *
+     * @return The number of matching rows.
+     */
+    public int lookup(OsmType type, long id, RowCallback callback) throws IOException {
+        SearchArgument sarg = SearchArgumentFactory.newBuilder()
+                .startAnd()
+                .equals("id", PredicateLeaf.Type.LONG, id)
+                .end()
+                .build();
+
+        int matches = 0;
+
+        for (OsmOrcIndex.StripeEntry stripe : index.candidates(type, id)) {
+            Reader.Options options = reader.options()
+                    .range(stripe.getOffset(), stripe.getLength())
+                    .searchArgument(sarg, new String[]{"id"});
+
+            try (RecordReader rows = reader.rows(options)) {
+                VectorizedRowBatch batch = reader.getSchema().createRowBatch();
+                LongColumnVector ids = (LongColumnVector) batch.cols[0];
+                ColumnVector types = batch.cols[1];
+
+                long start = index.startRow(type, id, stripe);
+
+                if (start > stripe.getFirstRow()) {
+                    rows.seekToRow(start);
+                }
+
+                scan:
+                while (rows.nextBatch(batch)) {
+                    for (int r = 0; r < batch.size; r++) {
+                        int i = ids.isRepeating ? 0 : r;
+                        int t = types.isRepeating ? 0 : r;
+
+                        if (!matches(types, t, type)) {
+                            continue;
+                        }
+
+                        if (ids.vector[i] == id) {
+                            callback.call(batch, r);
+                            matches++;
+                        } else if (index.isSorted() && ids.vector[i] > id) {
+                            break scan;
+                        }
+                    }
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    private static boolean matches(ColumnVector column, int row, OsmType type) {
+        if (column instanceof LongColumnVector) {
+            // written with OsmSchema#setTypeEnum
+            return ((LongColumnVector) column).vector[row] == type.ordinal();
+        }
+
+        BytesColumnVector types = (BytesColumnVector) column;
+        byte[] expected = type.getBytes();
+
+        if (types.length[row] != expected.length) {
+            return false;
+        }
+
+        for (int i = 0; i < expected.length; i++) {
+            if (types.vector[row][types.start[row] + i] != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,45 @@
+package net.mojodna.osm2orc.orc.stats;
+
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+
+/**
+ * Counts the entities a decoder produces, per type, for comparison with a
+ * converted file.
+ */
+public class EntityCounter implements EntityHandler {
+    private final TypeStats[] types = new TypeStats[OsmType.values().length];
+
+    public EntityCounter() {
+        for (int i = 0; i < types.length; i++) {
+            types[i] = new TypeStats();
+        }
+    }
+
+    public TypeStats getTypeStats(OsmType type) {
+        return types[type.ordinal()];
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) {
+        types[type.ordinal()].add(id);
+        types[type.ordinal()].addTimestamp(timestamp);
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+    }
+}
@@ -0,0 +1,431 @@
+package net.mojodna.osm2orc.orc.stats;
+
+import net.mojodna.osm2orc.orc.OsmType;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.ColumnStatistics;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.StripeInformation;
+import org.apache.orc.TypeDescription;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Statistics about an OSM ORC file, for checking that a conversion is
+ * complete: per-type counts, id and timestamp ranges, tag key counts and
+ * per-column null counts, optionally compared with counts from the source
+ * PBF (see EntityCounter).
+ *
+ * Stripes are scanned in parallel, reading only the id, type, tags and
+ * timestamp columns; null counts come from the file's column statistics.
+ */
+public class OsmOrcStats {
+    // tag keys listed in reports, by count
+    private static final int REPORTED_TAG_KEYS = 1000;
+
+    private final String path;
+    private final TypeStats[] types = new TypeStats[OsmType.values().length];
+    private final Map<String, Long> tagKeys = new HashMap<>();
+    private final Map<String, Long> nullCounts = new LinkedHashMap<>();
+    private final List<String> mismatches = new ArrayList<>();
+    private long rows;
+    private int stripes;
+    private String source;
+    private EntityCounter sourceCounts;
+
+    private OsmOrcStats(String path) {
+        this.path = path;
+
+        for (int i = 0; i < types.length; i++) {
+            types[i] = new TypeStats();
+        }
+    }
+
+    /**
+     * A stripe's share of the statistics.
+     */
+    private static class Partial {
+        final TypeStats[] types = new TypeStats[OsmType.values().length];
+        final TagKeyCounter tagKeys = new TagKeyCounter();
+
+        Partial() {
+            for (int i = 0; i < types.length; i++) {
+                types[i] = new TypeStats();
+            }
+        }
+    }
+
+    /**
+     * @param workers
+     *            The number of stripes to scan at once.
+     */
+    public static OsmOrcStats scan(Configuration conf, Path orc, int workers) throws IOException {
+        OsmOrcStats stats = new OsmOrcStats(orc.toString());
+        List<StripeInformation> stripes;
+
+        try (Reader reader = OrcFile.createReader(orc, OrcFile.readerOptions(conf))) {
+            TypeDescription schema = reader.getSchema();
+            List<String> fields = schema.getFieldNames();
+
+            for (String field : new String[] {"id", "type", "tags", "timestamp"}) {
+                if (!fields.contains(field)) {
+                    throw new IOException(orc + " isn't an OSM ORC file (it has no " + field + " column)");
+                }
+            }
+
+            stats.rows = reader.getNumberOfRows();
+            stripes = reader.getStripes();
+            stats.stripes = stripes.size();
+
+            ColumnStatistics[] columns = reader.getStatistics();
+
+            for (int i = 0; i < fields.size(); i++) {
+                long values = columns[schema.getChildren().get(i).getId()].getNumberOfValues();
+                stats.nullCounts.put(fields.get(i), stats.rows - values);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, stripes.size())));
+        List<Future<Partial>> partials = new ArrayList<>();
+
+        for (StripeInformation stripe : stripes) {
+            partials.add(executor.submit(() -> scan(conf, orc, stripe)));
+        }
+
+        executor.shutdown();
+
+        try {
+            for (Future<Partial> future : partials) {
+                Partial partial = future.get();
+
+                for (int i = 0; i < stats.types.length; i++) {
+                    stats.types[i].merge(partial.types[i]);
+                }
+
+                partial.tagKeys.mergeInto(stats.tagKeys);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new InterruptedIOException("Interrupted while scanning " + orc);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException("Failed to scan " + orc, e.getCause());
+        }
+
+        return stats;
+    }
+
+    private static Partial scan(Configuration conf, Path orc, StripeInformation stripe) throws IOException {
+        Partial partial = new Partial();
+
+        // readers are cheap to open, and each stripe gets its own stream
+        try (Reader reader = OrcFile.createReader(orc, OrcFile.readerOptions(conf))) {
+            TypeDescription schema = reader.getSchema();
+            List<String> fields = schema.getFieldNames();
+            int idField = fields.indexOf("id");
+            int typeField = fields.indexOf("type");
+            int tagsField = fields.indexOf("tags");
+            int timestampField = fields.indexOf("timestamp");
+
+            boolean[] include = new boolean[schema.getMaximumId() + 1];
+            include[schema.getId()] = true;
+
+            for (int field : new int[] {idField, typeField, tagsField, timestampField}) {
+                TypeDescription child = schema.getChildren().get(field);
+
+                for (int i = child.getId(); i <= child.getMaximumId(); i++) {
+                    include[i] = true;
+                }
+            }
+
+            Reader.Options options = reader.options()
+                    .range(stripe.getOffset(), stripe.getLength())
+                    .include(include);
+
+            try (RecordReader rows = reader.rows(options)) {
+                VectorizedRowBatch batch = schema.createRowBatch();
+                LongColumnVector ids = (LongColumnVector) batch.cols[idField];
+                ColumnVector types = batch.cols[typeField];
+                MapColumnVector tags = (MapColumnVector) batch.cols[tagsField];
+                BytesColumnVector tagKeys = (BytesColumnVector) tags.keys;
+                TimestampColumnVector timestamps = (TimestampColumnVector) batch.cols[timestampField];
+
+                while (rows.nextBatch(batch)) {
+                    for (int r = 0; r < batch.size; r++) {
+                        int t = types.isRepeating ? 0 : r;
+
+                        if (!types.noNulls && types.isNull[t]) {
+                            continue;
+                        }
+
+                        OsmType type = type(types, t);
+
+                        if (type == null) {
+                            continue;
+                        }
+
+                        TypeStats stats = partial.types[type.ordinal()];
+                        int i = ids.isRepeating ? 0 : r;
+
+                        if (ids.noNulls || !ids.isNull[i]) {
+                            stats.add(ids.vector[i]);
+                        }
+
+                        int ts = timestamps.isRepeating ? 0 : r;
+
+                        if (timestamps.noNulls || !timestamps.isNull[ts]) {
+                            stats.addTimestamp(timestamps.time[ts]);
+                        }
+
+                        int m = tags.isRepeating ? 0 : r;
+
+                        if (tags.noNulls || !tags.isNull[m]) {
+                            for (int j = (int) tags.offsets[m]; j < tags.offsets[m] + tags.lengths[m]; j++) {
+                                // a batch with a single distinct key comes back repeating
+                                int k = tagKeys.isRepeating ? 0 : j;
+
+                                partial.tagKeys.add(tagKeys.vector[k], tagKeys.start[k], tagKeys.length[k]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return partial;
+    }
+
+    private static OsmType type(ColumnVector column, int row) {
+        if (column instanceof LongColumnVector) {
+            // written with OsmSchema#setTypeEnum
+            long ordinal = ((LongColumnVector) column).vector[row];
+
+            return ordinal >= 0 && ordinal < OsmType.values().length ? OsmType.values()[(int) ordinal] : null;
+        }
+
+        BytesColumnVector types = (BytesColumnVector) column;
+
+        for (OsmType type : OsmType.values()) {
+            byte[] expected = type.getBytes();
+
+            if (types.length[row] == expected.length) {
+                boolean matches = true;
+
+                for (int i = 0; i < expected.length && matches; i++) {
+                    matches = types.vector[row][types.start[row] + i] == expected[i];
+                }
+
+                if (matches) {
+                    return type;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public TypeStats getTypeStats(OsmType type) {
+        return types[type.ordinal()];
+    }
+
+    public Map<String, Long> getTagKeys() {
+        return tagKeys;
+    }
+
+    /**
+     * @return Null counts by top-level column.
+     */
+    public Map<String, Long> getNullCounts() {
+        return nullCounts;
+    }
+
+    /**
+     * Compares per-type counts and id ranges with those of the source.
+     *
+     * @return Descriptions of any differences (empty if there are none).
+     */
+    public List<String> compare(String source, EntityCounter counts) {
+        this.source = source;
+        this.sourceCounts = counts;
+        mismatches.clear();
+
+        for (OsmType type : OsmType.values()) {
+            TypeStats converted = getTypeStats(type);
+            TypeStats expected = counts.getTypeStats(type);
+
+            if (converted.getCount() != expected.getCount()) {
+                mismatches.add(String.format("%s count: %d in %s, %d in %s",
+                        type, converted.getCount(), path, expected.getCount(), source));
+            }
+
+            if (converted.getMinId() != expected.getMinId() || converted.getMaxId() != expected.getMaxId()) {
+                mismatches.add(String.format("%s ids: %s in %s, %s in %s",
+                        type, range(converted), path, range(expected), source));
+            }
+        }
+
+        return mismatches;
+    }
+
+    private static String range(TypeStats stats) {
+        return stats.getCount() > 0 ? stats.getMinId() + ".." + stats.getMaxId() : "none";
+    }
+
+    /**
+     * Writes the statistics (and comparison, if any) as JSON.
+     */
+    public void writeJson(Appendable out) throws IOException {
+        out.append("{\n");
+        out.append("  \"file\": ").append(quote(path)).append(",\n");
+        out.append("  \"rows\": ").append(Long.toString(rows)).append(",\n");
+        out.append("  \"stripes\": ").append(Integer.toString(stripes)).append(",\n");
+        out.append("  \"types\": ");
+        writeTypes(out, types, "  ");
+        out.append(",\n");
+
+        out.append("  \"null_counts\": {");
+        String separator = "\n";
+
+        for (Map.Entry<String, Long> entry : nullCounts.entrySet()) {
+            out.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue().toString());
+            separator = ",\n";
+        }
+
+        out.append(nullCounts.isEmpty() ? "},\n" : "\n  },\n");
+
+        List<Map.Entry<String, Long>> keys = new ArrayList<>(tagKeys.entrySet());
+        keys.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey()) : Long.compare(b.getValue(), a.getValue()));
+
+        out.append("  \"distinct_tag_keys\": ").append(Integer.toString(keys.size())).append(",\n");
+        out.append("  \"tag_keys\": {");
+        separator = "\n";
+
+        for (Map.Entry<String, Long> entry : keys.subList(0, Math.min(REPORTED_TAG_KEYS, keys.size()))) {
+            out.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue().toString());
+            separator = ",\n";
+        }
+
+        out.append(keys.isEmpty() ? "}" : "\n  }");
+
+        if (sourceCounts != null) {
+            TypeStats[] expected = new TypeStats[types.length];
+
+            for (OsmType type : OsmType.values()) {
+                expected[type.ordinal()] = sourceCounts.getTypeStats(type);
+            }
+
+            out.append(",\n  \"source\": {\n");
+            out.append("    \"file\": ").append(quote(source)).append(",\n");
+            out.append("    \"types\": ");
+            writeTypes(out, expected, "    ");
+            out.append("\n  },\n");
+
+            out.append("  \"mismatches\": [");
+            separator = "\n";
+
+            for (String mismatch : mismatches) {
+                out.append(separator).append("    ").append(quote(mismatch));
+                separator = ",\n";
+            }
+
+            out.append(mismatches.isEmpty() ? "],\n" : "\n  ],\n");
+            out.append("  \"ok\": ").append(Boolean.toString(mismatches.isEmpty()));
+        }
+
+        out.append("\n}\n");
+    }
+
+    private static void writeTypes(Appendable out, TypeStats[] types, String indent) throws IOException {
+        out.append("{");
+        String separator = "\n";
+
+        for (OsmType type : OsmType.values()) {
+            TypeStats stats = types[type.ordinal()];
+
+            out.append(separator).append(indent).append("  ").append(quote(type.toString())).append(": {");
+            out.append("\"count\": ").append(Long.toString(stats.getCount()));
+
+            if (stats.getCount() > 0) {
+                out.append(", \"min_id\": ").append(Long.toString(stats.getMinId()));
+                out.append(", \"max_id\": ").append(Long.toString(stats.getMaxId()));
+            }
+
+            if (stats.getMinTimestamp() <= stats.getMaxTimestamp()) {
+                out.append(", \"min_timestamp\": ").append(quote(Instant.ofEpochMilli(stats.getMinTimestamp()).toString()));
+                out.append(", \"max_timestamp\": ").append(quote(Instant.ofEpochMilli(stats.getMaxTimestamp()).toString()));
+            }
+
+            out.append("}");
+            separator = ",\n";
+        }
+
+        out.append("\n").append(indent).append("}");
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+
+                case '\n':
+                    sb.append("\\n");
+                    break;
+
+                case '\r':
+                    sb.append("\\r");
+                    break;
+
+                case '\t':
+                    sb.append("\\t");
+                    break;
+
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+
+        return sb.append('"').toString();
+    }
+}
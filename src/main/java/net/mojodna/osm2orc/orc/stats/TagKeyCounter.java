@@ -0,0 +1,96 @@
+package net.mojodna.osm2orc.orc.stats;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Counts tag keys given as UTF-8 byte ranges, only copying (and decoding)
+ * keys the first time they're seen: an open-addressing table of key bytes,
+ * since there are few distinct keys but very many tags.
+ */
+class TagKeyCounter {
+    private byte[][] keys = new byte[1024][];
+    private int[] hashes = new int[1024];
+    private long[] counts = new long[1024];
+    private int size;
+
+    public void add(byte[] bytes, int start, int length) {
+        int hash = 1;
+
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        int mask = keys.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && equals(keys[slot], bytes, start, length)) {
+                counts[slot]++;
+                return;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = Arrays.copyOfRange(bytes, start, start + length);
+        hashes[slot] = hash;
+        counts[slot] = 1;
+
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int start, int length) {
+        if (key.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        long[] oldCounts = counts;
+
+        keys = new byte[oldKeys.length * 2][];
+        hashes = new int[keys.length];
+        counts = new long[keys.length];
+
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Adds the counts to a map of counts by key.
+     */
+    public void mergeInto(Map<String, Long> target) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                target.merge(new String(keys[i], StandardCharsets.UTF_8), counts[i], Long::sum);
+            }
+        }
+    }
+}
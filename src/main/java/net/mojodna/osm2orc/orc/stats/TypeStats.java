@@ -0,0 +1,63 @@
+package net.mojodna.osm2orc.orc.stats;
+
+/**
+ * Counts and ranges for the entities (or versions) of one type.
+ */
+public class TypeStats {
+    private long count;
+    private long minId = Long.MAX_VALUE;
+    private long maxId = Long.MIN_VALUE;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    public void add(long id) {
+        count++;
+        minId = Math.min(minId, id);
+        maxId = Math.max(maxId, id);
+    }
+
+    public void addTimestamp(long timestamp) {
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+
+    public void merge(TypeStats other) {
+        count += other.count;
+        minId = Math.min(minId, other.minId);
+        maxId = Math.max(maxId, other.maxId);
+        minTimestamp = Math.min(minTimestamp, other.minTimestamp);
+        maxTimestamp = Math.max(maxTimestamp, other.maxTimestamp);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The smallest id, or Long.MAX_VALUE if there are none.
+     */
+    public long getMinId() {
+        return minId;
+    }
+
+    /**
+     * @return The largest id, or Long.MIN_VALUE if there are none.
+     */
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * @return Epoch milliseconds, or Long.MAX_VALUE if there are none.
+     */
+    public long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    /**
+     * @return Epoch milliseconds, or Long.MIN_VALUE if there are none.
+     */
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+}
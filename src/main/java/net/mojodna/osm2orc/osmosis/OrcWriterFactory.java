@@ -1,22 +1,39 @@
 package net.mojodna.osm2orc.osmosis;
 
+import net.mojodna.osm2orc.orc.OsmSchema;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
 import org.openstreetmap.osmosis.core.pipeline.v0_6.SinkManager;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class OrcWriterFactory extends TaskManagerFactory {
     private static final String ARG_FILE_NAME = "file";
     private static final String DEFAULT_FILE_NAME = "dump.osm.orc";
+    private static final String ARG_PROMOTE_KEYS = "promoteKeys";
+    private static final String ARG_TYPE_ENUM = "typeEnum";
+    private static final String ARG_MEMBER_TYPE_ENUM = "memberTypeEnum";
+    private static final String ARG_REFS = "refs";
     private static final Logger LOG = Logger.getLogger(OrcWriterFactory.class.getName());
 
     protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
         String filename = getStringArgument(taskConfig, ARG_FILE_NAME,
                 getDefaultStringArgument(taskConfig, DEFAULT_FILE_NAME));
 
-        OrcWriter task = new OrcWriter(filename);
+        OsmSchema schema = new OsmSchema()
+                .setTypeEnum(getBooleanArgument(taskConfig, ARG_TYPE_ENUM, false))
+                .setMemberTypeEnum(getBooleanArgument(taskConfig, ARG_MEMBER_TYPE_ENUM, false))
+                .setRefEncoding(OsmSchema.RefEncoding.valueOf(
+                        getStringArgument(taskConfig, ARG_REFS, "list").toUpperCase()));
+        String promoteKeys = getStringArgument(taskConfig, ARG_PROMOTE_KEYS, "");
+
+        if (!promoteKeys.isEmpty()) {
+            schema.setPromotedKeys(Arrays.asList(promoteKeys.split(",")));
+        }
+
+        OrcWriter task = new OrcWriter(filename, schema);
 
         return new SinkManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
     }
@@ -0,0 +1,209 @@
+package net.mojodna.osm2orc.service;
+
+import net.mojodna.osm2orc.Osm2Orc;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-running conversion service, so that converting many small inputs
+ * doesn't pay for JVM startup, class loading, JIT warm-up and Hadoop
+ * Configuration loading each time.
+ *
+ * Clients connect to a loopback port and send one job per line, written as
+ * osm2orc's command-line arguments (separated by whitespace), e.g.
+ * <code>--type-enum delaware.osm.pbf delaware.orc</code>. Each job is answered
+ * when it completes (possibly out of order) with its line number and either
+ * <code>OK</code> and the elapsed time or <code>FAILED</code> and the error.
+ * The connection is closed once the client has stopped sending and all of its
+ * jobs have been answered.
+ *
+ * Jobs run concurrently (on virtual threads when the JVM supports them), but
+ * at most <code>maxWriters</code> at a time, as each holds read-ahead buffers
+ * and ORC stripes in memory.
+ */
+public class ConversionService {
+    private static final Logger LOG = Logger.getLogger(ConversionService.class.getName());
+
+    public static final int DEFAULT_PORT = 7470;
+
+    // loaded once and shared by every job: converters copy their writer settings
+    // from it, as loading a fresh Configuration (parsing its XML resources) can
+    // take longer than converting a small input
+    private final Configuration conf = new Configuration();
+    private final Semaphore writers;
+    private final ExecutorService executor = newExecutor();
+
+    public ConversionService(int maxWriters) {
+        this.writers = new Semaphore(maxWriters, true);
+    }
+
+    /**
+     * Creates a virtual thread per task executor when available (Java 21+),
+     * falling back to a cached thread pool.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Accepts connections on a loopback port until the process is stopped.
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            LOG.info("Accepting conversion jobs on " + server.getLocalSocketAddress());
+
+            while (true) {
+                Socket socket = server.accept();
+                executor.submit(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) {
+        List<Future<?>> jobs = new ArrayList<>();
+
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+
+            while ((line = in.readLine()) != null) {
+                String job = line.trim();
+                number++;
+
+                if (job.isEmpty() || job.startsWith("#")) {
+                    continue;
+                }
+
+                int n = number;
+                jobs.add(executor.submit(() -> run(n, job, out)));
+            }
+
+            for (Future<?> job : jobs) {
+                job.get();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Connection failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.log(Level.WARNING, "Job failed", e.getCause());
+        }
+    }
+
+    private void run(int number, String job, Writer out) {
+        String[] args = job.split("\\s+");
+        String result;
+
+        try {
+            check(args);
+            writers.acquire();
+
+            try {
+                long start = System.nanoTime();
+                int status = Osm2Orc.run(args, conf);
+                long elapsed = (System.nanoTime() - start) / 1000000;
+
+                result = status == 0 ? "OK " + elapsed + "ms" : "FAILED exit status " + status;
+            } finally {
+                writers.release();
+            }
+        } catch (Osm2Orc.UsageException e) {
+            result = "FAILED " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = "FAILED interrupted";
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Job " + number + " (" + job + ") failed", e);
+            result = "FAILED " + e;
+        }
+
+        LOG.info("Job " + number + " (" + job + "): " + result);
+
+        synchronized (out) {
+            try {
+                out.write(number + " " + result + "\n");
+                out.flush();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't report job " + number, e);
+            }
+        }
+    }
+
+    private static void check(String[] args) {
+        boolean stats = false;
+        boolean report = false;
+        boolean follow = false;
+        boolean once = false;
+
+        for (String arg : args) {
+            switch (arg) {
+                case "--serve":
+                case "--lookup":
+                    throw new Osm2Orc.UsageException(arg + " can't be used in a job");
+
+                case "-":
+                    throw new Osm2Orc.UsageException("Jobs can't read from stdin");
+
+                case "--stats":
+                    stats = true;
+                    break;
+
+                case "--report":
+                    report = true;
+                    break;
+
+                case "--follow":
+                    follow = true;
+                    break;
+
+                case "--once":
+                    once = true;
+                    break;
+            }
+        }
+
+        // following never finishes, so it would hold a writer permit (and the connection) forever
+        if (follow && !once) {
+            throw new Osm2Orc.UsageException("--follow jobs require --once");
+        }
+
+        // otherwise the report goes to the service's stdout rather than the client
+        if (stats && !report) {
+            throw new Osm2Orc.UsageException("--stats jobs require --report");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package net.mojodna.osm2orc.standalone;
+
+import net.mojodna.osm2orc.orc.DeduplicatingHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.standalone.io.Inputs;
+import net.mojodna.osm2orc.util.ConcurrentIdBitmap;
+import net.mojodna.osm2orc.util.MemoryBudget;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts many PBFs (e.g. regional extracts) into a single dataset: a
+ * directory of ORC files with the same schema, one per input
+ * (<code>part-00000.orc</code>, ... in input order). Inputs are converted
+ * concurrently; entities present in more than one input (where extracts
+ * overlap) are written only by whichever conversion reaches them first.
+ *
+ * That makes a failed input's entities go missing from the whole dataset
+ * (they're claimed, so other inputs skip them), so the batch stops at the
+ * first failure: the failed part is discarded and the rest are cancelled,
+ * and the batch has to be re-run.
+ */
+public class BatchConverter {
+    private static final Logger LOG = Logger.getLogger(BatchConverter.class.getName());
+
+    private final List<String> inputs;
+    private final String outputDirectory;
+    private final ConcurrentIdBitmap[] claimed = DeduplicatingHandler.newClaims();
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private Configuration conf;
+    private MemoryBudget memoryBudget;
+
+    /**
+     * Sets up each input's converter (schema options, etc.), which must
+     * produce the same schema for every input.
+     */
+    public interface Configurer {
+        void configure(String input, OsmPbf2Orc converter) throws IOException;
+    }
+
+    public BatchConverter(List<String> inputs, String outputDirectory) {
+        this.inputs = inputs;
+        this.outputDirectory = outputDirectory;
+    }
+
+    public BatchConverter setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    public BatchConverter setConfiguration(Configuration conf) {
+        this.conf = conf;
+        return this;
+    }
+
+    /**
+     * Splits a memory budget between the workers, each of which gets a share
+     * (reserved while converting) of 1 / (workers + 1). The rest is left for
+     * the id bitmaps used for deduplication.
+     */
+    public BatchConverter setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+
+        for (OsmType type : OsmType.values()) {
+            claimed[type.ordinal()].setMemoryBudget(memoryBudget, "Converted " + type + " ids");
+        }
+
+        return this;
+    }
+
+    /**
+     * Expands input arguments: <code>@file</code> reads a list of inputs (one
+     * per line) and paths containing <code>*</code> or <code>?</code> are
+     * matched against the files in their directory.
+     */
+    public static List<String> expand(List<String> args) throws IOException {
+        List<String> inputs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("@")) {
+                for (String line : Files.readAllLines(Paths.get(arg.substring(1)), StandardCharsets.UTF_8)) {
+                    line = line.trim();
+
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        inputs.add(line);
+                    }
+                }
+            } else if (!arg.contains("://") && (arg.contains("*") || arg.contains("?"))) {
+                Path path = Paths.get(arg);
+                Path directory = path.getParent() != null ? path.getParent() : Paths.get(".");
+                List<String> matches = new ArrayList<>();
+
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, path.getFileName().toString())) {
+                    for (Path file : files) {
+                        matches.add(file.toString());
+                    }
+                }
+
+                matches.sort(null);
+                inputs.addAll(matches);
+            } else {
+                inputs.add(arg);
+            }
+        }
+
+        return inputs;
+    }
+
+    public static String partName(int index) {
+        return String.format("part-%05d.orc", index);
+    }
+
+    /**
+     * @return The number of inputs that failed to convert; once one has,
+     *         conversions still running are cancelled and the rest skipped.
+     */
+    public int convert(Configurer configurer) throws InterruptedException {
+        if (memoryBudget != null) {
+            memoryBudget.checkHeap();
+        }
+
+        int threads = Math.max(1, Math.min(workers, inputs.size()));
+        long share = memoryBudget != null ? memoryBudget.getLimit() / (threads + 1) : 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> conversions = new ArrayList<>();
+
+        for (int i = 0; i < inputs.size(); i++) {
+            String input = inputs.get(i);
+            String output = outputDirectory + "/" + partName(i);
+
+            conversions.add(completion.submit(() -> {
+                convert(input, output, share, configurer);
+                return null;
+            }));
+        }
+
+        executor.shutdown();
+
+        int failures = 0;
+
+        for (int i = 0; i < conversions.size(); i++) {
+            Future<Void> conversion = completion.take();
+
+            try {
+                conversion.get();
+            } catch (CancellationException e) {
+                // stopped after an earlier failure
+            } catch (ExecutionException e) {
+                if (failures++ > 0) {
+                    LOG.log(Level.FINE, "Failed to convert " + inputs.get(conversions.indexOf(conversion)), e.getCause());
+                    continue;
+                }
+
+                LOG.log(Level.SEVERE, "Failed to convert " + inputs.get(conversions.indexOf(conversion))
+                        + "; stopping, since entities it claimed are missing from other parts", e.getCause());
+
+                for (Future<Void> other : conversions) {
+                    other.cancel(true);
+                }
+            }
+        }
+
+        // cancelled conversions discard their parts as they stop
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.info("Waiting for cancelled conversions to stop");
+        }
+
+        return failures;
+    }
+
+    private void convert(String input, String output, long share, Configurer configurer) throws IOException {
+        long start = System.nanoTime();
+        MemoryBudget budget = null;
+
+        if (memoryBudget != null) {
+            memoryBudget.reserve(share, "Converting " + input);
+            budget = new MemoryBudget(share);
+        }
+
+        try (InputStream in = Inputs.open(input, budget)) {
+            OsmPbf2Orc converter = new OsmPbf2Orc(in, output)
+                    .setConfiguration(conf)
+                    .setMemoryBudget(budget)
+                    .setDeduplication(claimed);
+
+            configurer.configure(input, converter);
+            converter.convert();
+
+            LOG.info(String.format("Converted %s to %s in %ds (%d duplicate entities skipped)", input, output,
+                    (System.nanoTime() - start) / 1000000000, converter.getDuplicates()));
+        } finally {
+            if (memoryBudget != null) {
+                memoryBudget.release(share);
+            }
+        }
+    }
+}
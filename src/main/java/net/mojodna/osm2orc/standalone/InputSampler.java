@@ -0,0 +1,218 @@
+package net.mojodna.osm2orc.standalone;
+
+
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.EntityType;
+import de.topobyte.osm4j.core.model.iface.OsmEntity;
+import de.topobyte.osm4j.core.model.iface.OsmRelation;
+import de.topobyte.osm4j.core.model.iface.OsmTag;
+import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import net.mojodna.osm2orc.orc.OsmSchema;
+import net.mojodna.osm2orc.standalone.io.Inputs;
+import net.mojodna.osm2orc.util.LinearCounter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A pass over a PBF input that gathers statistics used to plan the output
+ * layout. Only tagged entities are sampled, up to a limit per type, so that
+ * nodes (which vastly outnumber everything else) don't drown out ways and
+ * relations.
+ *
+ * PBFs can't be read selectively, so unless every type reaches the limit the
+ * pass reads the input through to its last relation.
+ */
+public class InputSampler {
+    private static final Logger LOG = Logger.getLogger(InputSampler.class.getName());
+
+    public static final long DEFAULT_LIMIT = 1000000;
+
+    /**
+     * Columns whose estimated distinct values per value exceed this are
+     * written with direct encoding; ORC's per-stripe heuristic uses the same
+     * default.
+     */
+    public static final double DIRECT_ENCODING_THRESHOLD = 0.8;
+
+    // distinct values are tracked for keys once they've been seen this often
+    private static final int KEY_CANDIDATE_COUNT = 100;
+    private static final int MAX_KEY_COUNTERS = 256;
+    private static final int COUNTER_BITS = 20;
+
+    private final String input;
+    private long limit = DEFAULT_LIMIT;
+
+    private final Map<String, long[]> keyCounts = new HashMap<>();
+    private final Map<String, LinearCounter> keyValues = new HashMap<>();
+    private final LinearCounter tagKeys = new LinearCounter(COUNTER_BITS);
+    private final LinearCounter tagValues = new LinearCounter(COUNTER_BITS);
+    private final LinearCounter memberRoles = new LinearCounter(COUNTER_BITS);
+    private final LinearCounter users = new LinearCounter(COUNTER_BITS);
+    private long sampled;
+
+    /**
+     * @param input
+     *            A path or URL which can be opened again for conversion
+     *            (stdin won't do).
+     */
+    public InputSampler(String input) {
+        if (input.equals("-")) {
+            throw new IllegalArgumentException("Sampling reads the input ahead of conversion and can't read from stdin");
+        }
+
+        this.input = input;
+    }
+
+    /**
+     * Sets the number of tagged entities of each type to sample.
+     */
+    public InputSampler setLimit(long limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public void sample() throws IOException {
+        Map<EntityType, long[]> typeCounts = new EnumMap<>(EntityType.class);
+        int saturated = 0;
+
+        try (InputStream in = Inputs.open(input)) {
+            PbfIterator iterator = new PbfIterator(in, true);
+
+            while (iterator.hasNext() && saturated < 3) {
+                EntityContainer container = iterator.next();
+                OsmEntity entity = container.getEntity();
+
+                if (entity.getNumberOfTags() == 0) {
+                    continue;
+                }
+
+                long[] count = typeCounts.computeIfAbsent(container.getType(), k -> new long[1]);
+
+                if (count[0] >= limit) {
+                    continue;
+                }
+
+                if (++count[0] == limit) {
+                    saturated++;
+                }
+
+                sampled++;
+
+                if (entity.getMetadata() != null && entity.getMetadata().getUser() != null) {
+                    users.add(entity.getMetadata().getUser());
+                }
+
+                for (int i = 0; i < entity.getNumberOfTags(); i++) {
+                    addTag(entity.getTag(i));
+                }
+
+                if (container.getType() == EntityType.Relation) {
+                    OsmRelation relation = (OsmRelation) entity;
+
+                    for (int i = 0; i < relation.getNumberOfMembers(); i++) {
+                        memberRoles.add(relation.getMember(i).getRole());
+                    }
+                }
+            }
+        }
+
+        LOG.info("Sampled " + sampled + " tagged entities, " + keyCounts.size() + " distinct keys");
+    }
+
+    private void addTag(OsmTag tag) {
+        String key = tag.getKey();
+        long count = ++keyCounts.computeIfAbsent(key, k -> new long[1])[0];
+
+        tagKeys.add(key);
+        tagValues.add(tag.getValue());
+
+        LinearCounter values = keyValues.get(key);
+
+        if (values == null && count >= KEY_CANDIDATE_COUNT && keyValues.size() < MAX_KEY_COUNTERS) {
+            values = new LinearCounter(COUNTER_BITS);
+            keyValues.put(key, values);
+        }
+
+        if (values != null) {
+            values.add(tag.getValue());
+        }
+    }
+
+    /**
+     * @return The share of sampled entities which have a key.
+     */
+    public double getKeyFrequency(String key) {
+        long[] count = keyCounts.get(key);
+
+        return count == null || sampled == 0 ? 0 : (double) count[0] / sampled;
+    }
+
+    /**
+     * @return The most frequent keys, most frequent first, suitable for
+     *         promotion to columns: keys mapping to the same column name as a
+     *         more frequent key are skipped.
+     */
+    public List<String> getTopKeys(int n) {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(keyCounts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        List<String> keys = new ArrayList<>();
+        Set<String> columns = new HashSet<>();
+
+        for (Map.Entry<String, long[]> entry : entries) {
+            if (keys.size() == n) {
+                break;
+            }
+
+            if (columns.add(OsmSchema.tagColumn(entry.getKey()))) {
+                keys.add(entry.getKey());
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Plans string column encodings from the sample: dictionary encoding is
+     * forced everywhere (so that ORC doesn't have to rediscover it stripe by
+     * stripe), except for columns whose values are mostly distinct, which get
+     * direct encoding. ORC decides encodings per top-level column, so tag
+     * keys and values (and member types and roles) are judged together.
+     */
+    public void planEncodings(OsmSchema schema) {
+        Map<String, Double> ratios = new HashMap<>();
+
+        ratios.put("tags", (double) (tagKeys.estimate() + tagValues.estimate())
+                / Math.max(1, tagKeys.getCount() + tagValues.getCount()));
+        ratios.put("members", memberRoles.ratio());
+        ratios.put("user", users.ratio());
+
+        for (String key : schema.getPromotedKeys()) {
+            LinearCounter values = keyValues.get(key);
+
+            // keys too rare to have been tracked would be mostly null
+            ratios.put(OsmSchema.tagColumn(key), values == null ? 0 : values.ratio());
+        }
+
+        List<String> direct = new ArrayList<>();
+
+        for (Map.Entry<String, Double> ratio : ratios.entrySet()) {
+            LOG.info(String.format("Estimated distinct values per value in %s: %.3f", ratio.getKey(), ratio.getValue()));
+
+            if (ratio.getValue() > DIRECT_ENCODING_THRESHOLD) {
+                direct.add(ratio.getKey());
+            }
+        }
+
+        schema.setEncodings(1.0, direct);
+    }
+}
@@ -2,9 +2,10 @@ package net.mojodna.osm2orc.standalone;
 
 
 import net.mojodna.osm2orc.standalone.model.Changeset;
+import net.mojodna.osm2orc.standalone.io.Outputs;
 import net.mojodna.osm2orc.standalone.parser.ChangesetXmlHandler;
+import net.mojodna.osm2orc.util.Timestamps;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.common.type.HiveDecimal;
 import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.DecimalColumnVector;
@@ -59,135 +60,154 @@ public class OsmChangesetXml2Orc {
 
     private InputStream inputStream;
     private String outputOrc;
+    private Configuration baseConf;
 
     public OsmChangesetXml2Orc(InputStream inputStream, String outputOrc) {
         this.inputStream = inputStream;
         this.outputOrc = outputOrc;
     }
 
+    /**
+     * Copies writer settings from <code>conf</code> (null for the defaults).
+     */
+    public OsmChangesetXml2Orc setConfiguration(Configuration conf) {
+        this.baseConf = conf;
+        return this;
+    }
+
     public void convert() throws Exception {
         // Setup ORC writer
-        Configuration conf = new Configuration();
+        Configuration conf = Outputs.configuration(baseConf, outputOrc);
         conf.setBoolean(OrcConf.BLOCK_PADDING.getAttribute(), false);
-        Writer writer = OrcFile.createWriter(new Path(outputOrc),
-                OrcFile.writerOptions(conf).setSchema(SCHEMA));
-
-        // Setup ORC vectors
-        VectorizedRowBatch batch = SCHEMA.createRowBatch();
-        LongColumnVector id = (LongColumnVector) batch.cols[0];
-        MapColumnVector tags = (MapColumnVector) batch.cols[1];
-        TimestampColumnVector createdAt = (TimestampColumnVector) batch.cols[2];
-        LongColumnVector open = (LongColumnVector) batch.cols[3];
-        TimestampColumnVector closedAt = (TimestampColumnVector) batch.cols[4];
-        LongColumnVector commentsCount = (LongColumnVector) batch.cols[5];
-        DecimalColumnVector minLat = (DecimalColumnVector) batch.cols[6];
-        DecimalColumnVector maxLat = (DecimalColumnVector) batch.cols[7];
-        DecimalColumnVector minLon = (DecimalColumnVector) batch.cols[8];
-        DecimalColumnVector maxLon = (DecimalColumnVector) batch.cols[9];
-        LongColumnVector numChanges = (LongColumnVector) batch.cols[10];
-        LongColumnVector uid = (LongColumnVector) batch.cols[11];
-        BytesColumnVector user = (BytesColumnVector) batch.cols[12];
-
-        // Parse Changeset XML
-        SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
-
-        parser.parse(new InputSource(new InputStreamReader(inputStream, "UTF-8")), new ChangesetXmlHandler(changeset -> {
-            int row;
-            if (batch.size == batch.getMaxSize()) {
-                try {
-                    writer.addRowBatch(batch);
-                    batch.reset();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        Outputs.configure(conf);
+        Writer writer = Outputs.createWriter(outputOrc, OrcFile.writerOptions(conf).setSchema(SCHEMA), conf, null);
+
+        try {
+            // Setup ORC vectors
+            VectorizedRowBatch batch = SCHEMA.createRowBatch();
+            LongColumnVector id = (LongColumnVector) batch.cols[0];
+            MapColumnVector tags = (MapColumnVector) batch.cols[1];
+            TimestampColumnVector createdAt = (TimestampColumnVector) batch.cols[2];
+            LongColumnVector open = (LongColumnVector) batch.cols[3];
+            TimestampColumnVector closedAt = (TimestampColumnVector) batch.cols[4];
+            LongColumnVector commentsCount = (LongColumnVector) batch.cols[5];
+            DecimalColumnVector minLat = (DecimalColumnVector) batch.cols[6];
+            DecimalColumnVector maxLat = (DecimalColumnVector) batch.cols[7];
+            DecimalColumnVector minLon = (DecimalColumnVector) batch.cols[8];
+            DecimalColumnVector maxLon = (DecimalColumnVector) batch.cols[9];
+            LongColumnVector numChanges = (LongColumnVector) batch.cols[10];
+            LongColumnVector uid = (LongColumnVector) batch.cols[11];
+            BytesColumnVector user = (BytesColumnVector) batch.cols[12];
+
+            // Parse Changeset XML
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+
+            parser.parse(new InputSource(new InputStreamReader(inputStream, "UTF-8")), new ChangesetXmlHandler(changeset -> {
+                int row;
+                if (batch.size == batch.getMaxSize()) {
+                    try {
+                        writer.addRowBatch(batch);
+                        batch.reset();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                row = batch.size++;
+                id.vector[row] = changeset.getId();
+
+                setTimestamp(createdAt, row, changeset.getCreatedAt());
+                setTimestamp(closedAt, row, changeset.getClosedAt());
+
+                if (changeset.isOpen()) {
+                    open.vector[row] = 1;
+                } else {
+                    open.vector[row] = 0;
+                }
+                numChanges.vector[row] = changeset.getNumChanges();
+
+                if (changeset.getUser() != null) {
+                    user.setVal(row, changeset.getUser().getBytes());
+                } else {
+                    user.setVal(row, new byte[0]);
+                    user.isNull[row] = true;
+                    user.noNulls = false;
+                }
+                if (changeset.getUid() != null) {
+                    uid.vector[row] = changeset.getUid();
+                } else {
+                    uid.isNull[row] = true;
+                    uid.noNulls = false;
+                }
+
+                // We've kept these parsed values as string
+                // to guarantee no double precision loss.
+                String minLatStr = changeset.getMinLat();
+                String maxLatStr = changeset.getMaxLat();
+                String minLonStr = changeset.getMinLon();
+                String maxLonStr = changeset.getMaxLon();
+                if (minLatStr != null) {
+                    minLat.set(row, HiveDecimal.create(new BigDecimal(minLatStr)));
+                } else {
+                    minLat.set(row, (HiveDecimal) null);
+                    minLat.isNull[row] = true;
+                    minLat.noNulls = false;
+                }
+                if (maxLatStr != null) {
+                    maxLat.set(row, HiveDecimal.create(new BigDecimal(maxLatStr)));
+                } else {
+                    maxLat.set(row, (HiveDecimal) null);
+                    maxLat.isNull[row] = true;
+                    maxLat.noNulls = false;
+                }
+                if (minLonStr != null) {
+                    minLon.set(row, HiveDecimal.create(new BigDecimal(minLonStr)));
+                } else {
+                    minLon.set(row, (HiveDecimal) null);
+                    minLon.isNull[row] = true;
+                    minLon.noNulls = false;
+                }
+                if (maxLonStr != null) {
+                    maxLon.set(row, HiveDecimal.create(new BigDecimal(maxLonStr)));
+                } else {
+                    maxLon.set(row, (HiveDecimal) null);
+                    maxLon.isNull[row] = true;
+                    maxLon.noNulls = false;
                 }
-            }
-            row = batch.size++;
-            id.vector[row] = changeset.getId();
-
-            try {
-                createdAt.time[row] = changeset.getCreatedAt().getTimestamp().getTime();
-            } catch (Exception e) {
-                createdAt.time[row] = 0;
-                createdAt.isNull[row] = true;
-            }
-            createdAt.nanos[row] = 0;
-
-            try {
-                closedAt.time[row] = changeset.getClosedAt().getTimestamp().getTime();
-            } catch (Exception e) {
-                closedAt.time[row] = 0;
-                closedAt.isNull[row] = true;
-            }
-            closedAt.nanos[row] = 0;
-
-            if (changeset.isOpen()) {
-                open.vector[row] = 1;
-            } else {
-                open.vector[row] = 0;
-            }
-            numChanges.vector[row] = changeset.getNumChanges();
-
-            if (changeset.getUser() != null) {
-                user.setVal(row, changeset.getUser().getBytes());
-            } else {
-                user.setVal(row, new byte[0]);
-                user.isNull[row] = true;
-            }
-            if (changeset.getUid() != null) {
-                uid.vector[row] = changeset.getUid();
-            } else {
-                uid.isNull[row] = true;
-            }
-
-            // We've kept these parsed values as string
-            // to guarantee no double precision loss.
-            String minLatStr = changeset.getMinLat();
-            String maxLatStr = changeset.getMaxLat();
-            String minLonStr = changeset.getMinLon();
-            String maxLonStr = changeset.getMaxLon();
-            if (minLatStr != null) {
-                minLat.set(row, HiveDecimal.create(new BigDecimal(minLatStr)));
-            } else {
-                minLat.set(row, (HiveDecimal) null);
-                minLat.isNull[row] = true;
-            }
-            if (maxLatStr != null) {
-                maxLat.set(row, HiveDecimal.create(new BigDecimal(maxLatStr)));
-            } else {
-                maxLat.set(row, (HiveDecimal) null);
-                maxLat.isNull[row] = true;
-            }
-            if (minLonStr != null) {
-                minLon.set(row, HiveDecimal.create(new BigDecimal(minLonStr)));
-            } else {
-                minLon.set(row, (HiveDecimal) null);
-                minLon.isNull[row] = true;
-            }
-            if (maxLonStr != null) {
-                maxLon.set(row, HiveDecimal.create(new BigDecimal(maxLonStr)));
-            } else {
-                maxLon.set(row, (HiveDecimal) null);
-                maxLon.isNull[row] = true;
-            }
-            commentsCount.vector[row] = changeset.getCommentsCount();
-
-            // tags
-            tags.offsets[row] = tags.childCount;
-            Map<String, String> _tags = changeset.getTags();
-            tags.lengths[row] = _tags.size();
-            tags.childCount += tags.lengths[row];
-            tags.keys.ensureSize(tags.childCount, tags.offsets[row] != 0);
-            tags.values.ensureSize(tags.childCount, tags.offsets[row] != 0);
-            int i = 0;
-            for (Map.Entry<String, String> kv : _tags.entrySet()) {
-                ((BytesColumnVector) tags.keys).setVal((int) tags.offsets[row] + i, kv.getKey().getBytes());
-                ((BytesColumnVector) tags.values).setVal((int) tags.offsets[row] + i, kv.getValue().getBytes());
-                ++i;
-            }
-        }));
-
-        // flush any pending rows
-        writer.addRowBatch(batch);
-        writer.close();
+                commentsCount.vector[row] = changeset.getCommentsCount();
+
+                // tags
+                tags.offsets[row] = tags.childCount;
+                Map<String, String> _tags = changeset.getTags();
+                tags.lengths[row] = _tags.size();
+                tags.childCount += tags.lengths[row];
+                tags.keys.ensureSize(tags.childCount, tags.offsets[row] != 0);
+                tags.values.ensureSize(tags.childCount, tags.offsets[row] != 0);
+                int i = 0;
+                for (Map.Entry<String, String> kv : _tags.entrySet()) {
+                    ((BytesColumnVector) tags.keys).setVal((int) tags.offsets[row] + i, kv.getKey().getBytes());
+                    ((BytesColumnVector) tags.values).setVal((int) tags.offsets[row] + i, kv.getValue().getBytes());
+                    ++i;
+                }
+            }));
+
+            // flush any pending rows
+            writer.addRowBatch(batch);
+            writer.close();
+        } catch (Throwable t) {
+            Outputs.abort(writer);
+            throw t;
+        }
+    }
+
+    private static void setTimestamp(TimestampColumnVector column, int row, long timestamp) {
+        if (timestamp != Timestamps.NONE) {
+            column.time[row] = timestamp;
+        } else {
+            column.time[row] = 0;
+            column.isNull[row] = true;
+            column.noNulls = false;
+        }
+
+        column.nanos[row] = 0;
     }
 }
@@ -0,0 +1,417 @@
+package net.mojodna.osm2orc.standalone;
+
+
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.EntityType;
+import de.topobyte.osm4j.core.model.iface.OsmEntity;
+import de.topobyte.osm4j.core.model.iface.OsmMetadata;
+import de.topobyte.osm4j.core.model.iface.OsmNode;
+import de.topobyte.osm4j.core.model.iface.OsmRelation;
+import de.topobyte.osm4j.core.model.iface.OsmRelationMember;
+import de.topobyte.osm4j.core.model.iface.OsmTag;
+import de.topobyte.osm4j.core.model.iface.OsmWay;
+import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import net.mojodna.osm2orc.orc.ByteArena;
+import net.mojodna.osm2orc.standalone.area.MultipolygonBuilder;
+import net.mojodna.osm2orc.standalone.io.Inputs;
+import net.mojodna.osm2orc.standalone.io.Outputs;
+import net.mojodna.osm2orc.util.MemoryBudget;
+import net.mojodna.osm2orc.util.OffHeapLongArray;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.OrcConf;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+import static org.apache.orc.TypeDescription.createBinary;
+import static org.apache.orc.TypeDescription.createLong;
+import static org.apache.orc.TypeDescription.createMap;
+import static org.apache.orc.TypeDescription.createString;
+import static org.apache.orc.TypeDescription.createStruct;
+import static org.apache.orc.TypeDescription.createTimestamp;
+
+/**
+ * Assembles multipolygon and boundary relations into area geometries (WKB
+ * MultiPolygons) and writes them to ORC.
+ *
+ * The input is read four times, keeping only what later passes need:
+ * <ol>
+ *     <li>relations: ids of member ways</li>
+ *     <li>ways: node refs of those ways, and the ids of those nodes</li>
+ *     <li>nodes: locations of those nodes</li>
+ *     <li>relations: assemble and write</li>
+ * </ol>
+ * Ids, refs and locations are held in sorted off-heap arrays, so heap usage
+ * doesn't grow with the input. Relations with missing members (e.g. at the
+ * edges of extracts) or without a closed ring are skipped.
+ */
+public class OsmPbf2Areas {
+    private static final Logger LOG = Logger.getLogger(OsmPbf2Areas.class.getName());
+
+    private static final TypeDescription SCHEMA = createStruct()
+            .addField("id", createLong())
+            .addField("tags", createMap(
+                    createString(),
+                    createString()
+            ))
+            .addField("geometry", createBinary())
+            .addField("changeset", createLong())
+            .addField("timestamp", createTimestamp())
+            .addField("version", createLong());
+
+    private static final long MISSING = Long.MIN_VALUE;
+    private static final long DEFAULT_STRIPE_SIZE = 64L * 1024 * 1024;
+    private static final double SCALE = 1e7;
+
+    private final String input;
+    private final String outputOrc;
+
+    // sorted member way ids, and for each: offset and length within wayRefs
+    private final OffHeapLongArray wayIds = new OffHeapLongArray();
+    private final OffHeapLongArray wayOffsets = new OffHeapLongArray();
+    private final OffHeapLongArray wayLengths = new OffHeapLongArray();
+    private final OffHeapLongArray wayRefs = new OffHeapLongArray();
+
+    // sorted ids of nodes referenced by member ways, and their packed locations
+    private final OffHeapLongArray nodeIds = new OffHeapLongArray();
+    private final OffHeapLongArray nodeLocations = new OffHeapLongArray();
+
+    private MemoryBudget memoryBudget;
+    private Configuration baseConf;
+
+    /**
+     * @param input
+     *            A path or URL which can be opened repeatedly (stdin won't do).
+     */
+    public OsmPbf2Areas(String input, String outputOrc) {
+        if (input.equals("-")) {
+            throw new IllegalArgumentException("Area assembly reads its input several times and can't read from stdin");
+        }
+
+        this.input = input;
+        this.outputOrc = outputOrc;
+    }
+
+    /**
+     * Bounds memory use: the node and way caches count against the budget
+     * (failing conversion once it's exhausted), as do read-ahead buffers.
+     */
+    public OsmPbf2Areas setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+
+        wayIds.setMemoryBudget(memoryBudget, "Member way ids");
+        wayOffsets.setMemoryBudget(memoryBudget, "Member way offsets");
+        wayLengths.setMemoryBudget(memoryBudget, "Member way lengths");
+        wayRefs.setMemoryBudget(memoryBudget, "Member way node refs");
+        nodeIds.setMemoryBudget(memoryBudget, "Member way node ids");
+        nodeLocations.setMemoryBudget(memoryBudget, "Member way node locations");
+
+        return this;
+    }
+
+    private static boolean isArea(OsmEntity entity) {
+        for (int i = 0; i < entity.getNumberOfTags(); i++) {
+            OsmTag tag = entity.getTag(i);
+
+            if (tag.getKey().equals("type")) {
+                return tag.getValue().equals("multipolygon") || tag.getValue().equals("boundary");
+            }
+        }
+
+        return false;
+    }
+
+    private static long pack(double lat, double lon) {
+        return ((long) (int) Math.round(lat * SCALE) << 32) | ((int) Math.round(lon * SCALE) & 0xffffffffL);
+    }
+
+    private static double lat(long location) {
+        return (int) (location >> 32) / SCALE;
+    }
+
+    private static double lon(long location) {
+        return (int) location / SCALE;
+    }
+
+    /**
+     * Copies writer settings from <code>conf</code> (null for the defaults).
+     */
+    public OsmPbf2Areas setConfiguration(Configuration conf) {
+        this.baseConf = conf;
+        return this;
+    }
+
+    public void convert() throws IOException {
+        // set the active timezone to UTC to avoid unexpected conversions
+        TimeZone.setDefault(TimeZone.getTimeZone("Etc/UTC"));
+
+        try {
+            collectWayIds();
+            LOG.info("Member ways: " + wayIds.size());
+
+            collectWays();
+            LOG.info("Member way nodes: " + nodeIds.size());
+
+            collectNodes();
+
+            assemble();
+        } finally {
+            wayIds.clear();
+            wayOffsets.clear();
+            wayLengths.clear();
+            wayRefs.clear();
+            nodeIds.clear();
+            nodeLocations.clear();
+        }
+    }
+
+    private void collectWayIds() throws IOException {
+        try (InputStream in = Inputs.open(input, memoryBudget)) {
+            PbfIterator iterator = new PbfIterator(in, false);
+
+            while (iterator.hasNext()) {
+                EntityContainer container = iterator.next();
+
+                if (container.getType() != EntityType.Relation || !isArea(container.getEntity())) {
+                    continue;
+                }
+
+                OsmRelation relation = (OsmRelation) container.getEntity();
+
+                for (int i = 0; i < relation.getNumberOfMembers(); i++) {
+                    OsmRelationMember member = relation.getMember(i);
+
+                    if (member.getType() == EntityType.Way) {
+                        wayIds.add(member.getId());
+                    }
+                }
+            }
+        }
+
+        wayIds.sortUnique();
+        wayOffsets.fill(wayIds.size(), MISSING);
+        wayLengths.fill(wayIds.size(), 0);
+    }
+
+    private void collectWays() throws IOException {
+        try (InputStream in = Inputs.open(input, memoryBudget)) {
+            PbfIterator iterator = new PbfIterator(in, false);
+
+            while (iterator.hasNext()) {
+                EntityContainer container = iterator.next();
+
+                if (container.getType() != EntityType.Way) {
+                    continue;
+                }
+
+                OsmWay way = (OsmWay) container.getEntity();
+                long index = wayIds.binarySearch(way.getId());
+
+                if (index < 0) {
+                    continue;
+                }
+
+                wayOffsets.set(index, wayRefs.size());
+                wayLengths.set(index, way.getNumberOfNodes());
+
+                for (int i = 0; i < way.getNumberOfNodes(); i++) {
+                    wayRefs.add(way.getNodeId(i));
+                    nodeIds.add(way.getNodeId(i));
+                }
+            }
+        }
+
+        nodeIds.sortUnique();
+        nodeLocations.fill(nodeIds.size(), MISSING);
+    }
+
+    private void collectNodes() throws IOException {
+        try (InputStream in = Inputs.open(input, memoryBudget)) {
+            PbfIterator iterator = new PbfIterator(in, false);
+
+            while (iterator.hasNext()) {
+                EntityContainer container = iterator.next();
+
+                if (container.getType() != EntityType.Node) {
+                    continue;
+                }
+
+                OsmNode node = (OsmNode) container.getEntity();
+                long index = nodeIds.binarySearch(node.getId());
+
+                if (index >= 0) {
+                    nodeLocations.set(index, pack(node.getLatitude(), node.getLongitude()));
+                }
+            }
+        }
+    }
+
+    private void assemble() throws IOException {
+        Configuration conf = Outputs.configuration(baseConf, outputOrc);
+        conf.setBoolean(OrcConf.BLOCK_PADDING.getAttribute(), false);
+
+        long reserved = 0;
+
+        if (memoryBudget != null) {
+            long stripeSize = Math.min(DEFAULT_STRIPE_SIZE, memoryBudget.getLimit() / 4);
+            memoryBudget.reserve(stripeSize * 2, "ORC stripe buffers");
+            reserved = stripeSize * 2;
+            OrcConf.STRIPE_SIZE.setLong(conf, stripeSize);
+        }
+
+        try {
+            Outputs.configure(conf);
+            write(conf);
+        } finally {
+            if (memoryBudget != null) {
+                memoryBudget.release(reserved);
+            }
+        }
+    }
+
+    private void write(Configuration conf) throws IOException {
+        Writer writer = Outputs.createWriter(outputOrc, OrcFile.writerOptions(conf).setSchema(SCHEMA), conf, memoryBudget);
+        long areas = 0;
+        long incomplete = 0;
+        long invalid = 0;
+
+        try {
+            writer.addUserMetadata("osm.schema.version", ByteBuffer.wrap("0.6".getBytes()));
+
+            VectorizedRowBatch batch = SCHEMA.createRowBatch();
+            LongColumnVector id = (LongColumnVector) batch.cols[0];
+            MapColumnVector tags = (MapColumnVector) batch.cols[1];
+            BytesColumnVector tagKeys = (BytesColumnVector) tags.keys;
+            BytesColumnVector tagValues = (BytesColumnVector) tags.values;
+            BytesColumnVector geometry = (BytesColumnVector) batch.cols[2];
+            LongColumnVector changeset = (LongColumnVector) batch.cols[3];
+            TimestampColumnVector timestamp = (TimestampColumnVector) batch.cols[4];
+            LongColumnVector version = (LongColumnVector) batch.cols[5];
+
+            ByteArena arena = new ByteArena();
+            MultipolygonBuilder builder = new MultipolygonBuilder();
+
+            try (InputStream in = Inputs.open(input, memoryBudget)) {
+                PbfIterator iterator = new PbfIterator(in, true);
+
+                while (iterator.hasNext()) {
+                    EntityContainer container = iterator.next();
+
+                    if (container.getType() != EntityType.Relation || !isArea(container.getEntity())) {
+                        continue;
+                    }
+
+                    OsmRelation relation = (OsmRelation) container.getEntity();
+
+                    if (!addMembers(relation, builder)) {
+                        incomplete++;
+                        continue;
+                    }
+
+                    byte[] wkb = builder.build();
+
+                    if (wkb == null) {
+                        invalid++;
+                        continue;
+                    }
+
+                    if (batch.size == batch.getMaxSize()) {
+                        writer.addRowBatch(batch);
+                        batch.reset();
+                        arena.reset();
+                    }
+
+                    int row = batch.size++;
+                    OsmMetadata metadata = relation.getMetadata();
+
+                    id.vector[row] = relation.getId();
+                    geometry.setRef(row, wkb, 0, wkb.length);
+                    changeset.vector[row] = metadata.getChangeset();
+                    timestamp.time[row] = metadata.getTimestamp();
+                    timestamp.nanos[row] = 0;
+                    version.vector[row] = metadata.getVersion();
+
+                    tags.offsets[row] = tags.childCount;
+                    tags.lengths[row] = relation.getNumberOfTags();
+                    tags.childCount += relation.getNumberOfTags();
+
+                    if (tags.childCount > tagKeys.isNull.length) {
+                        // grow geometrically; ensureSize() allocates exactly what's asked for
+                        tagKeys.ensureSize(Math.max(tags.childCount, tagKeys.isNull.length * 2), true);
+                        tagValues.ensureSize(Math.max(tags.childCount, tagValues.isNull.length * 2), true);
+                    }
+
+                    for (int i = 0; i < relation.getNumberOfTags(); i++) {
+                        OsmTag tag = relation.getTag(i);
+                        int j = (int) tags.offsets[row] + i;
+
+                        arena.setRef(tagKeys, j, tag.getKey());
+                        arena.setRef(tagValues, j, tag.getValue());
+                    }
+
+                    areas++;
+                }
+            }
+
+            // flush any pending rows
+            writer.addRowBatch(batch);
+            writer.close();
+        } catch (Throwable t) {
+            Outputs.abort(writer);
+            throw t;
+        }
+
+        LOG.info("Areas: " + areas + ", incomplete relations: " + incomplete + ", without closed rings: " + invalid);
+    }
+
+    /**
+     * Feeds a relation's member ways to the builder.
+     *
+     * @return false if a member way or node is missing from the input.
+     */
+    private boolean addMembers(OsmRelation relation, MultipolygonBuilder builder) {
+        builder.reset();
+
+        for (int i = 0; i < relation.getNumberOfMembers(); i++) {
+            OsmRelationMember member = relation.getMember(i);
+
+            if (member.getType() != EntityType.Way) {
+                continue;
+            }
+
+            long index = wayIds.binarySearch(member.getId());
+            long offset = wayOffsets.get(index);
+
+            if (offset == MISSING) {
+                return false;
+            }
+
+            int length = (int) wayLengths.get(index);
+            builder.startWay(length);
+
+            for (long j = offset; j < offset + length; j++) {
+                long ref = wayRefs.get(j);
+                long location = nodeLocations.get(nodeIds.binarySearch(ref));
+
+                if (location == MISSING) {
+                    return false;
+                }
+
+                builder.addNode(ref, lon(location), lat(location));
+            }
+        }
+
+        return true;
+    }
+}
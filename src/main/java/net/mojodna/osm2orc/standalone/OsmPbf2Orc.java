@@ -1,27 +1,27 @@
 package net.mojodna.osm2orc.standalone;
 
 
-import de.topobyte.osm4j.core.access.OsmIterator;
-import de.topobyte.osm4j.core.model.iface.EntityContainer;
-import de.topobyte.osm4j.core.model.iface.OsmBounds;
-import de.topobyte.osm4j.core.model.iface.OsmEntity;
-import de.topobyte.osm4j.core.model.iface.OsmMetadata;
-import de.topobyte.osm4j.core.model.iface.OsmNode;
-import de.topobyte.osm4j.core.model.iface.OsmRelation;
-import de.topobyte.osm4j.core.model.iface.OsmWay;
-import de.topobyte.osm4j.core.model.util.OsmModelUtil;
-import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import net.mojodna.osm2orc.orc.ChangesetTagStore;
+import net.mojodna.osm2orc.orc.DeduplicatingHandler;
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmRowWriter;
+import net.mojodna.osm2orc.orc.OsmSchema;
+import net.mojodna.osm2orc.orc.SortingHandler;
+import net.mojodna.osm2orc.orc.index.OsmIdSets;
+import net.mojodna.osm2orc.orc.index.OsmIdSetsBuilder;
+import net.mojodna.osm2orc.orc.index.OsmOrcIndex;
+import net.mojodna.osm2orc.orc.index.OsmOrcIndexBuilder;
+import net.mojodna.osm2orc.standalone.extract.ExtractFilter;
+import net.mojodna.osm2orc.standalone.extract.ExtractPlanner;
+import net.mojodna.osm2orc.standalone.extract.Region;
+import net.mojodna.osm2orc.standalone.io.Outputs;
+import net.mojodna.osm2orc.standalone.pbf.PbfDecoder;
+import net.mojodna.osm2orc.standalone.pbf.PbfHeader;
+import net.mojodna.osm2orc.util.ConcurrentIdBitmap;
+import net.mojodna.osm2orc.util.MemoryBudget;
+import net.mojodna.osm2orc.util.Timestamps;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hive.common.type.HiveDecimal;
-import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.DecimalColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.ListColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.StructColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
-import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
 import org.apache.orc.OrcConf;
 import org.apache.orc.OrcFile;
 import org.apache.orc.TypeDescription;
@@ -29,259 +29,381 @@ import org.apache.orc.Writer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.TimeZone;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
-
-import static org.apache.orc.TypeDescription.createBoolean;
-import static org.apache.orc.TypeDescription.createDecimal;
-import static org.apache.orc.TypeDescription.createList;
-import static org.apache.orc.TypeDescription.createLong;
-import static org.apache.orc.TypeDescription.createMap;
-import static org.apache.orc.TypeDescription.createString;
-import static org.apache.orc.TypeDescription.createStruct;
-import static org.apache.orc.TypeDescription.createTimestamp;
 
 public class OsmPbf2Orc {
     private static final Logger LOG = Logger.getLogger(OsmPbf2Orc.class.getName());
-    private static final byte[] NODE_BYTES = "node".getBytes();
-    private static final byte[] WAY_BYTES = "way".getBytes();
-    private static final byte[] RELATION_BYTES = "relation".getBytes();
+    private static final long DEFAULT_STRIPE_SIZE = 64L * 1024 * 1024;
+
+    private final InputStream input;
+    private final String outputOrc;
+    private final OsmSchema schema = new OsmSchema();
+    private boolean index;
+    private MemoryBudget memoryBudget;
+    private ConcurrentIdBitmap[] claimed;
+    private boolean collectIds;
+    private boolean writeIds;
+    private OsmIdSets idSets;
+    private long duplicates;
+    private Configuration baseConf;
+    private Region region;
+    private String regionInput;
+    private ChangesetTagStore changesetTags;
+    private String sortDirectory;
+    private int sortWorkers;
+    private long sortRunBytes = SortingHandler.DEFAULT_RUN_BYTES;
+
+    public OsmPbf2Orc(InputStream input, String outputOrc) {
+        this.input = input;
+        this.outputOrc = outputOrc;
+    }
 
     public static void convert(InputStream input, String outputOrc) throws IOException {
-        // set the active timezone to UTC to avoid unexpected conversions
-        TimeZone.setDefault(TimeZone.getTimeZone("Etc/UTC"));
+        new OsmPbf2Orc(input, outputOrc).convert();
+    }
 
-        TypeDescription schema = createStruct()
-                .addField("id", createLong())
-                .addField("type", createString())
-                .addField("tags", createMap(
-                        createString(),
-                        createString()
-                ))
-                .addField("lat", createDecimal().withScale(7).withPrecision(9))
-                .addField("lon", createDecimal().withScale(7).withPrecision(10))
-                .addField("nds", createList(
-                        createStruct()
-                                .addField("ref", createLong())
-                ))
-                .addField("members", createList(
-                        createStruct()
-                                .addField("type", createString())
-                                .addField("ref", createLong())
-                                .addField("role", createString())
-                ))
-                .addField("changeset", createLong())
-                .addField("timestamp", createTimestamp())
-                .addField("uid", createLong())
-                .addField("user", createString())
-                .addField("version", createLong())
-                .addField("visible", createBoolean());
-
-        Configuration conf = new Configuration();
-        conf.setBoolean(OrcConf.BLOCK_PADDING.getAttribute(), false);
-//        conf.set(OrcConf.BLOOM_FILTER_COLUMNS.getAttribute(), "tags");
-        Writer writer = OrcFile.createWriter(new Path(outputOrc),
-                OrcFile.writerOptions(conf).setSchema(schema));
-
-        writer.addUserMetadata("osm.schema.version", ByteBuffer.wrap("0.6".getBytes()));
-
-//        writer.addUserMetadata("HistoricalInformation", null);
-//        writer.addUserMetadata("Sort.Type_then_ID", null);
-//        writer.addUserMetadata("Sort.Geographic", null);
-//        // see "What are the replication fields for?" in https://wiki.openstreetmap.org/wiki/PBF_Format
-//        writer.addUserMetadata("replication_timestamp", null);
-//        writer.addUserMetadata("replication_sequence_number", null);
-//        writer.addUserMetadata("replication_base_url", null);
-
-        VectorizedRowBatch batch = schema.createRowBatch();
-
-        LongColumnVector id = (LongColumnVector) batch.cols[0];
-        BytesColumnVector type = (BytesColumnVector) batch.cols[1];
-        MapColumnVector tags = (MapColumnVector) batch.cols[2];
-        DecimalColumnVector lat = (DecimalColumnVector) batch.cols[3];
-        DecimalColumnVector lon = (DecimalColumnVector) batch.cols[4];
-        ListColumnVector nds = (ListColumnVector) batch.cols[5];
-        StructColumnVector ndsStruct = (StructColumnVector) nds.child;
-        ListColumnVector members = (ListColumnVector) batch.cols[6];
-        StructColumnVector membersStruct = (StructColumnVector) members.child;
-        LongColumnVector changeset = (LongColumnVector) batch.cols[7];
-        TimestampColumnVector timestamp = (TimestampColumnVector) batch.cols[8];
-        LongColumnVector uid = (LongColumnVector) batch.cols[9];
-        BytesColumnVector user = (BytesColumnVector) batch.cols[10];
-        LongColumnVector version = (LongColumnVector) batch.cols[11];
-        LongColumnVector visible = (LongColumnVector) batch.cols[12];
-
-        OsmIterator iterator = new PbfIterator(input, true);
-        // parallel will make it faster but will produce bigger output files
-        Stream<EntityContainer> entityStream = StreamSupport.stream(iterator.spliterator(), false);
-
-        if (iterator.hasBounds()) {
-            OsmBounds bounds = iterator.getBounds();
-            writer.addUserMetadata("bounds", ByteBuffer.wrap((bounds.getLeft() + ", " + bounds.getBottom() + ", " + bounds.getRight() + ", " + bounds.getTop()).getBytes()));
-        }
+    /**
+     * Treats the input as a full-history PBF: adds valid_from / valid_to
+     * columns and requires entities to be ordered by type, id and version.
+     */
+    public OsmPbf2Orc setHistory(boolean history) {
+        schema.setHistory(history);
+        return this;
+    }
 
-        entityStream.forEach(container -> {
-            OsmEntity entity = container.getEntity();
-            OsmMetadata metadata = entity.getMetadata();
+    public OsmSchema getSchema() {
+        return schema;
+    }
 
-            int row;
+    /**
+     * Writes <code>type</code> as a TINYINT enum (see OsmSchema#setTypeEnum).
+     */
+    public OsmPbf2Orc setTypeEnum(boolean typeEnum) {
+        schema.setTypeEnum(typeEnum);
+        return this;
+    }
 
-            synchronized (batch) {
-                if (batch.size == batch.getMaxSize()) {
-                    try {
-                        writer.addRowBatch(batch);
-                        batch.reset();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+    /**
+     * Writes member <code>type</code>s as a TINYINT enum (see
+     * OsmSchema#setMemberTypeEnum).
+     */
+    public OsmPbf2Orc setMemberTypeEnum(boolean memberTypeEnum) {
+        schema.setMemberTypeEnum(memberTypeEnum);
+        return this;
+    }
 
-                row = batch.size++;
-            }
+    /**
+     * Sets how way node refs and relation member refs are stored.
+     */
+    public OsmPbf2Orc setRefEncoding(OsmSchema.RefEncoding refEncoding) {
+        schema.setRefEncoding(refEncoding);
+        return this;
+    }
+
+    /**
+     * Writes the values of the given tag keys to their own columns (see
+     * OsmSchema#setPromotedKeys) in addition to the tags map.
+     */
+    public OsmPbf2Orc setPromotedKeys(Collection<String> keys) {
+        schema.setPromotedKeys(keys);
+        return this;
+    }
+
+    /**
+     * Adds the tags of each entity's changeset as columns (see
+     * OsmSchema#setChangesetTags). The store may be shared between
+     * conversions.
+     */
+    public OsmPbf2Orc setChangesetTags(ChangesetTagStore changesetTags) {
+        this.changesetTags = changesetTags;
+        schema.setChangesetTags(changesetTags.getKeys());
+        return this;
+    }
 
-            id.vector[row] = entity.getId();
-            changeset.vector[row] = metadata.getChangeset();
+    /**
+     * Writes a sidecar id index (see OsmOrcIndex) next to the output.
+     */
+    public OsmPbf2Orc setIndex(boolean index) {
+        this.index = index;
+        return this;
+    }
 
-            synchronized (tags) {
-                tags.offsets[row] = tags.childCount;
-                tags.lengths[row] = entity.getNumberOfTags(); // number of key/value pairings
-                tags.childCount += tags.lengths[row];
-                tags.keys.ensureSize(tags.childCount, tags.offsets[row] != 0);
-                tags.values.ensureSize(tags.childCount, tags.offsets[row] != 0);
+    /**
+     * Bounds memory use: the ORC stripe size and batch sizes are derived from
+     * the budget, and conversion fails early if it can't fit.
+     */
+    public OsmPbf2Orc setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
 
-                int i = 0;
-                for (Map.Entry<String, String> kv : OsmModelUtil.getTagsAsMap(entity).entrySet()) {
-                    byte[] key = kv.getKey().getBytes();
-                    byte[] val = kv.getValue().getBytes();
-                    ((BytesColumnVector) tags.keys).setRef((int) tags.offsets[row] + i, key, 0, key.length);
-                    ((BytesColumnVector) tags.values).setRef((int) tags.offsets[row] + i, val, 0, val.length);
+    /**
+     * Copies writer settings from <code>conf</code> (null for the defaults).
+     */
+    public OsmPbf2Orc setConfiguration(Configuration conf) {
+        this.baseConf = conf;
+        return this;
+    }
 
-                    ++i;
-                }
-            }
+    /**
+     * Writes id sets (see OsmIdSets) next to the output.
+     */
+    public OsmPbf2Orc setIdSets(boolean writeIds) {
+        this.writeIds = writeIds;
+        this.collectIds |= writeIds;
+        return this;
+    }
 
-            timestamp.time[row] = metadata.getTimestamp();
-            timestamp.nanos[row] = 0;
+    /**
+     * Collects id sets during conversion, for {@link #getIdSets()}.
+     */
+    public OsmPbf2Orc setCollectIds(boolean collectIds) {
+        this.collectIds = collectIds || writeIds;
+        return this;
+    }
 
-            uid.vector[row] = metadata.getUid();
+    /**
+     * @return Ids of converted and referenced entities, if collected.
+     */
+    public OsmIdSets getIdSets() {
+        return idSets;
+    }
+
+    /**
+     * Skips entities whose ids have already been claimed (see
+     * DeduplicatingHandler), claiming the rest.
+     */
+    public OsmPbf2Orc setDeduplication(ConcurrentIdBitmap[] claimed) {
+        this.claimed = claimed;
+        return this;
+    }
+
+    /**
+     * Converts only the part of the input within a region (see
+     * ExtractPlanner), which is scanned beforehand to decide what to keep.
+     *
+     * @param inputPath
+     *            The input, which must be readable more than once.
+     */
+    public OsmPbf2Orc setExtract(Region region, String inputPath) {
+        this.region = region;
+        this.regionInput = inputPath;
+        return this;
+    }
+
+    /**
+     * Sorts entities by type, id and version before writing them (see
+     * SortingHandler), for inputs that aren't already, spilling to
+     * <code>directory</code>. Outputs are then always marked as sorted, and
+     * history inputs needn't be ordered.
+     *
+     * @param workers
+     *            Threads sorting and spilling runs; 0 for the default.
+     */
+    public OsmPbf2Orc setSort(String directory, int workers) {
+        this.sortDirectory = directory;
+        this.sortWorkers = workers > 0 ? workers
+                : Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        return this;
+    }
+
+    /**
+     * @return The number of entities skipped by deduplication.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
 
-            byte[] userBytes = metadata.getUser().getBytes();
-            user.setRef(row, userBytes, 0, userBytes.length);
+    public void convert() throws IOException {
+        // set the active timezone to UTC to avoid unexpected conversions
+        TimeZone.setDefault(TimeZone.getTimeZone("Etc/UTC"));
 
-            version.vector[row] = metadata.getVersion();
+        TypeDescription description = schema.createTypeDescription();
 
-            if (!metadata.isVisible()) {
-                visible.vector[row] = 0;
-            } else {
-                visible.vector[row] = 1;
+        Configuration conf = Outputs.configuration(baseConf, outputOrc);
+        conf.setBoolean(OrcConf.BLOCK_PADDING.getAttribute(), false);
+        Outputs.configure(conf);
+//        conf.set(OrcConf.BLOOM_FILTER_COLUMNS.getAttribute(), "tags");
+        schema.configure(conf);
+
+        long batchBudget = 0;
+        long reserved = 0;
+
+        try {
+            if (memoryBudget != null) {
+                memoryBudget.checkHeap();
+
+                // ORC buffers roughly a stripe per writer, plus dictionaries
+                long stripeSize = Math.min(DEFAULT_STRIPE_SIZE, memoryBudget.getLimit() / 4);
+                memoryBudget.reserve(stripeSize * 2, "ORC stripe buffers");
+                reserved = stripeSize * 2;
+                OrcConf.STRIPE_SIZE.setLong(conf, stripeSize);
+
+                batchBudget = memoryBudget.getLimit() / 8;
+                memoryBudget.reserve(batchBudget, "Row batches");
+                reserved += batchBudget;
+
+                if (sortDirectory != null) {
+                    // runs may grow to twice their size while filling
+                    sortRunBytes = Math.min(SortingHandler.DEFAULT_RUN_BYTES,
+                            memoryBudget.getLimit() / 16 / (sortWorkers + 1));
+                    memoryBudget.reserve(sortRunBytes * 2 * (sortWorkers + 1), "Sort runs");
+                    reserved += sortRunBytes * 2 * (sortWorkers + 1);
+                }
             }
 
-            synchronized (nds) {
-                nds.offsets[row] = nds.childCount;
-                nds.lengths[row] = 0;
+            ExtractPlanner planner = null;
+
+            if (region != null) {
+                planner = new ExtractPlanner(region);
+                planner.setMemoryBudget(memoryBudget);
+                planner.plan(regionInput, memoryBudget);
             }
 
-            synchronized (members) {
-                members.offsets[row] = members.childCount;
-                members.lengths[row] = 0;
+            write(conf, description, batchBudget, planner);
+        } finally {
+            if (memoryBudget != null) {
+                memoryBudget.release(reserved);
             }
+        }
+    }
 
-            // TODO changeset, in which case lat/lon need to be zeroed out
-            // changesets also include discussion, which is a list of comments (date, uid, user, text)
-            // changesets can be open/closed, have a created_at (same as timestamp?), and a bbox (4 values)
-            switch (container.getType()) {
-                default:
-                    break;
+    private void write(Configuration conf, TypeDescription description, long batchBudget, ExtractPlanner planner)
+            throws IOException {
+        OrcFile.WriterOptions options = OrcFile.writerOptions(conf).setSchema(description);
+        OsmOrcIndexBuilder indexBuilder = null;
 
-                case Node:
-                    type.setRef(row, NODE_BYTES, 0, NODE_BYTES.length);
+        if (index) {
+            indexBuilder = new OsmOrcIndexBuilder();
+            options.callback(indexBuilder);
+        }
 
-                    OsmNode node = (OsmNode) entity;
+        Writer writer = Outputs.createWriter(outputOrc, options, conf, memoryBudget);
+        OsmRowWriter rows;
+        DeduplicatingHandler deduplicator = null;
+        OsmIdSetsBuilder idSetsBuilder = null;
+        SortingHandler sorter = null;
 
-                    if (Double.isNaN(node.getLatitude())) {
-                        lat.set(row, (HiveDecimal) null);
-                    } else {
-                        lat.set(row, HiveDecimal.create(node.getLatitude()));
-                    }
+        try {
+            writer.addUserMetadata("osm.schema.version", ByteBuffer.wrap("0.6".getBytes()));
+            schema.writeMetadata(writer);
 
-                    if (Double.isNaN(node.getLongitude())) {
-                        lon.set(row, (HiveDecimal) null);
-                    } else {
-                        lon.set(row, HiveDecimal.create(node.getLongitude()));
-                    }
+//            writer.addUserMetadata("Sort.Geographic", null);
+
+            rows = new OsmRowWriter(writer, schema);
+            rows.setIndex(indexBuilder);
+            rows.setBatchBudget(batchBudget);
+
+            if (changesetTags != null) {
+                rows.setChangesetTags(changesetTags);
+            }
+
+            EntityHandler handler = rows;
+
+            if (collectIds) {
+                idSetsBuilder = new OsmIdSetsBuilder(handler);
+                idSetsBuilder.setMemoryBudget(memoryBudget);
+                handler = idSetsBuilder;
+            }
+
+            if (claimed != null) {
+                deduplicator = new DeduplicatingHandler(handler, claimed);
+                handler = deduplicator;
+            }
 
-                    break;
+            // deduplication relies on versions of an entity being adjacent, so it sees sorted entities
+            if (sortDirectory != null) {
+                sorter = new SortingHandler(handler, Paths.get(sortDirectory), sortRunBytes, sortWorkers);
+                handler = sorter;
+            }
 
-                case Way:
-                    type.setRef(row, WAY_BYTES, 0, WAY_BYTES.length);
+            if (planner != null) {
+                handler = new ExtractFilter(handler, planner);
+            }
 
-                    OsmWay way = (OsmWay) entity;
+            PbfDecoder decoder = new PbfDecoder(input, handler);
+            PbfHeader header = decoder.readHeader();
 
-                    lat.set(row, (HiveDecimal) null);
-                    lon.set(row, (HiveDecimal) null);
+            if (region != null) {
+                double[] bounds = region.getBounds();
+                writer.addUserMetadata("bounds", ByteBuffer.wrap((bounds[0] + ", " + bounds[1] + ", " + bounds[2] + ", " + bounds[3]).getBytes()));
+            } else if (header.hasBounds()) {
+                writer.addUserMetadata("bounds", ByteBuffer.wrap((header.getLeft() + ", " + header.getBottom() + ", " + header.getRight() + ", " + header.getTop()).getBytes()));
+            }
 
-                    synchronized (nds) {
-                        nds.lengths[row] = way.getNumberOfNodes();
-                        nds.childCount += nds.lengths[row];
-                        ndsStruct.ensureSize(nds.childCount, nds.offsets[row] != 0);
+            // see "What are the replication fields for?" in https://wiki.openstreetmap.org/wiki/PBF_Format
+            if (header.getReplicationTimestamp() != Timestamps.NONE) {
+                writer.addUserMetadata("replication_timestamp", ByteBuffer.wrap(Instant.ofEpochMilli(header.getReplicationTimestamp()).toString().getBytes()));
+            }
 
-                        for (int j = 0; j < way.getNumberOfNodes(); j++) {
-                            ((LongColumnVector) ndsStruct.fields[0]).vector[(int) nds.offsets[row] + j] = way.getNodeId(j);
-                        }
-                    }
+            if (header.getReplicationSequenceNumber() >= 0) {
+                writer.addUserMetadata("replication_sequence_number", ByteBuffer.wrap(Long.toString(header.getReplicationSequenceNumber()).getBytes()));
+            }
 
-                    break;
+            if (header.getReplicationBaseUrl() != null) {
+                writer.addUserMetadata("replication_base_url", ByteBuffer.wrap(header.getReplicationBaseUrl().getBytes()));
+            }
 
-                case Relation:
-                    type.setRef(row, RELATION_BYTES, 0, RELATION_BYTES.length);
+            decoder.decode();
 
-                    OsmRelation relation = (OsmRelation) entity;
+            if (sorter != null) {
+                long start = System.nanoTime();
+                int runs = sorter.getSpilledRuns();
 
-                    lat.set(row, (HiveDecimal) null);
-                    lon.set(row, (HiveDecimal) null);
+                sorter.finish();
 
-                    synchronized (members) {
-                        members.lengths[row] = relation.getNumberOfMembers();
-                        members.childCount += members.lengths[row];
-                        membersStruct.ensureSize(members.childCount, members.offsets[row] != 0);
+                LOG.info(String.format("Sorted %d entities (%d runs spilled) in %ds", sorter.getEntities(), runs,
+                        (System.nanoTime() - start) / 1000000000));
+            }
 
-                        for (int j = 0; j < relation.getNumberOfMembers(); j++) {
-                            final byte[] typeBytes;
-                            switch (relation.getMember(j).getType()) {
-                                case Node:
-                                    typeBytes = NODE_BYTES;
-                                    break;
+            if (deduplicator != null) {
+                duplicates = deduplicator.getDuplicates();
+            }
 
-                                case Way:
-                                    typeBytes = WAY_BYTES;
-                                    break;
+            // flush any pending rows
+            rows.finish();
 
-                                case Relation:
-                                    typeBytes = RELATION_BYTES;
-                                    break;
+            if (schema.isHistory()) {
+                writer.addUserMetadata("HistoricalInformation", ByteBuffer.wrap("true".getBytes()));
+            }
 
-                                default:
-                                    throw new RuntimeException("Unsupported member type: " + relation.getMember(j).getType());
-                            }
+            if (rows.isSorted()) {
+                writer.addUserMetadata("Sort.Type_then_ID", ByteBuffer.wrap("true".getBytes()));
+            }
 
-                            ((BytesColumnVector) membersStruct.fields[0]).setRef((int) members.offsets[row] + j, typeBytes, 0, typeBytes.length);
-                            ((LongColumnVector) membersStruct.fields[1]).vector[(int) members.offsets[row] + j] = relation.getMember(j).getId();
+            writer.close();
+        } catch (Throwable t) {
+            // closing would complete a truncated file (or S3 upload)
+            Outputs.abort(writer);
+            throw t;
+        } finally {
+            if (sorter != null) {
+                sorter.close();
+            }
+        }
 
-                            byte[] roleBytes = relation.getMember(j).getRole().getBytes();
-                            ((BytesColumnVector) membersStruct.fields[2]).setRef((int) members.offsets[row] + j, roleBytes, 0, roleBytes.length);
-                        }
-                    }
+        if (indexBuilder != null) {
+            OsmOrcIndex index = indexBuilder.build(conf, new Path(outputOrc), rows.isSorted());
 
-                    break;
+            try (OutputStream out = Outputs.create(OsmOrcIndex.sidecar(new Path(outputOrc)).toString(), conf)) {
+                index.write(out);
             }
-        });
+        }
 
-        // flush any pending rows
-        writer.addRowBatch(batch);
-        writer.close();
+        if (idSetsBuilder != null) {
+            idSets = idSetsBuilder.getSets();
+
+            if (writeIds) {
+                try (OutputStream out = Outputs.create(OsmIdSets.sidecar(new Path(outputOrc)).toString(), conf)) {
+                    idSets.write(out);
+                }
+            }
+        }
     }
 }
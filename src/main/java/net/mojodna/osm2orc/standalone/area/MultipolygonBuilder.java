@@ -0,0 +1,305 @@
+package net.mojodna.osm2orc.standalone.area;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles the member ways of a multipolygon (or boundary) relation into
+ * rings and encodes the result as a WKB MultiPolygon.
+ *
+ * Rings are joined from ways end to end regardless of role; whether a ring is
+ * an outer or an inner is decided by nesting, since member roles are often
+ * wrong or missing. Outer rings are wound counter-clockwise and inner rings
+ * clockwise.
+ */
+public class MultipolygonBuilder {
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOLYGON = 6;
+
+    private final List<Ring> ways = new ArrayList<>();
+
+    private static class Ring {
+        long[] ids;
+        double[] xs;
+        double[] ys;
+        int size;
+        double area;
+        Ring parent;
+        int depth;
+        List<Ring> holes = new ArrayList<>();
+
+        Ring(int capacity) {
+            ids = new long[capacity];
+            xs = new double[capacity];
+            ys = new double[capacity];
+        }
+
+        void add(long id, double x, double y) {
+            if (size == ids.length) {
+                int capacity = Math.max(4, size * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+            }
+
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        long first() {
+            return ids[0];
+        }
+
+        long last() {
+            return ids[size - 1];
+        }
+
+        boolean isClosed() {
+            return size >= 4 && first() == last();
+        }
+
+        /**
+         * Appends another way, reversed if necessary, sharing this ring's
+         * last node.
+         */
+        void append(Ring way) {
+            if (size == 0) {
+                for (int i = 0; i < way.size; i++) {
+                    add(way.ids[i], way.xs[i], way.ys[i]);
+                }
+            } else if (way.first() == last()) {
+                for (int i = 1; i < way.size; i++) {
+                    add(way.ids[i], way.xs[i], way.ys[i]);
+                }
+            } else {
+                for (int i = way.size - 2; i >= 0; i--) {
+                    add(way.ids[i], way.xs[i], way.ys[i]);
+                }
+            }
+        }
+
+        /**
+         * Signed area (shoelace formula); positive when counter-clockwise.
+         */
+        double signedArea() {
+            double sum = 0;
+
+            for (int i = 0; i < size - 1; i++) {
+                sum += xs[i] * ys[i + 1] - xs[i + 1] * ys[i];
+            }
+
+            return sum / 2;
+        }
+
+        void reverse() {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                long id = ids[i];
+                ids[i] = ids[j];
+                ids[j] = id;
+
+                double x = xs[i];
+                xs[i] = xs[j];
+                xs[j] = x;
+
+                double y = ys[i];
+                ys[i] = ys[j];
+                ys[j] = y;
+            }
+        }
+
+        /**
+         * Whether the ring contains another ring, tested with the midpoint of
+         * the other ring's first edge (vertices are frequently shared between
+         * touching rings).
+         */
+        boolean contains(Ring other) {
+            double x = (other.xs[0] + other.xs[1]) / 2;
+            double y = (other.ys[0] + other.ys[1]) / 2;
+            boolean inside = false;
+
+            for (int i = 0, j = size - 1; i < size; j = i++) {
+                if ((ys[i] > y) != (ys[j] > y)
+                        && x < (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+                    inside = !inside;
+                }
+            }
+
+            return inside;
+        }
+    }
+
+    public void reset() {
+        ways.clear();
+    }
+
+    /**
+     * Starts a member way. Follow with {@link #addNode(long, double, double)}
+     * for each of its nodes.
+     */
+    public void startWay(int nodeCount) {
+        ways.add(new Ring(nodeCount));
+    }
+
+    public void addNode(long id, double lon, double lat) {
+        ways.get(ways.size() - 1).add(id, lon, lat);
+    }
+
+    /**
+     * @return A WKB MultiPolygon, or null if the ways don't form at least one
+     *         closed ring.
+     */
+    public byte[] build() {
+        List<Ring> rings = join();
+
+        if (rings.isEmpty()) {
+            return null;
+        }
+
+        for (Ring ring : rings) {
+            ring.area = Math.abs(ring.signedArea());
+        }
+
+        // place larger rings first so that a ring's container has always been
+        // seen by the time the ring is
+        rings.sort((a, b) -> Double.compare(b.area, a.area));
+
+        List<Ring> outers = new ArrayList<>();
+
+        for (int i = 0; i < rings.size(); i++) {
+            Ring ring = rings.get(i);
+
+            // the smallest containing ring is the last one found
+            for (int j = i - 1; j >= 0; j--) {
+                if (rings.get(j).contains(ring)) {
+                    ring.parent = rings.get(j);
+                    break;
+                }
+            }
+
+            ring.depth = ring.parent == null ? 0 : ring.parent.depth + 1;
+
+            if (ring.depth % 2 == 0) {
+                if (ring.signedArea() < 0) {
+                    ring.reverse();
+                }
+
+                outers.add(ring);
+            } else {
+                if (ring.signedArea() > 0) {
+                    ring.reverse();
+                }
+
+                ring.parent.holes.add(ring);
+            }
+        }
+
+        return encode(outers);
+    }
+
+    /**
+     * Joins ways into closed rings. Ways that can't be closed are dropped.
+     */
+    private List<Ring> join() {
+        List<Ring> rings = new ArrayList<>();
+        Map<Long, List<Ring>> endpoints = new HashMap<>();
+
+        for (Ring way : ways) {
+            if (way.size < 2) {
+                continue;
+            }
+
+            if (way.isClosed()) {
+                rings.add(way);
+            } else {
+                endpoints.computeIfAbsent(way.first(), k -> new ArrayList<>(2)).add(way);
+                endpoints.computeIfAbsent(way.last(), k -> new ArrayList<>(2)).add(way);
+            }
+        }
+
+        for (Ring way : ways) {
+            if (way.size < 2 || way.isClosed() || !remove(endpoints, way)) {
+                continue;
+            }
+
+            Ring ring = new Ring(way.size * 2);
+            ring.append(way);
+
+            while (ring.first() != ring.last()) {
+                List<Ring> candidates = endpoints.get(ring.last());
+
+                if (candidates == null || candidates.isEmpty()) {
+                    break;
+                }
+
+                Ring next = candidates.get(0);
+                remove(endpoints, next);
+                ring.append(next);
+            }
+
+            if (ring.isClosed()) {
+                rings.add(ring);
+            }
+        }
+
+        return rings;
+    }
+
+    private static boolean remove(Map<Long, List<Ring>> endpoints, Ring way) {
+        List<Ring> first = endpoints.get(way.first());
+
+        if (first == null || !first.remove(way)) {
+            // already used
+            return false;
+        }
+
+        endpoints.get(way.last()).remove(way);
+
+        return true;
+    }
+
+    private static byte[] encode(List<Ring> outers) {
+        int size = 1 + 4 + 4;
+
+        for (Ring outer : outers) {
+            size += 1 + 4 + 4 + 4 + outer.size * 16;
+
+            for (Ring hole : outer.holes) {
+                size += 4 + hole.size * 16;
+            }
+        }
+
+        ByteBuffer wkb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        wkb.put((byte) 1);
+        wkb.putInt(WKB_MULTIPOLYGON);
+        wkb.putInt(outers.size());
+
+        for (Ring outer : outers) {
+            wkb.put((byte) 1);
+            wkb.putInt(WKB_POLYGON);
+            wkb.putInt(1 + outer.holes.size());
+            encode(wkb, outer);
+
+            for (Ring hole : outer.holes) {
+                encode(wkb, hole);
+            }
+        }
+
+        return wkb.array();
+    }
+
+    private static void encode(ByteBuffer wkb, Ring ring) {
+        wkb.putInt(ring.size);
+
+        for (int i = 0; i < ring.size; i++) {
+            wkb.putDouble(ring.xs[i]);
+            wkb.putDouble(ring.ys[i]);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.mojodna.osm2orc.standalone.extract;
+
+public class BoundingBox implements Region {
+    private final double left;
+    private final double bottom;
+    private final double right;
+    private final double top;
+
+    public BoundingBox(double left, double bottom, double right, double top) {
+        if (left > right || bottom > top) {
+            throw new IllegalArgumentException("Invalid bounding box: " + left + "," + bottom + "," + right + "," + top);
+        }
+
+        this.left = left;
+        this.bottom = bottom;
+        this.right = right;
+        this.top = top;
+    }
+
+    /**
+     * Parses "left,bottom,right,top" (as Osmosis' --bounding-box orders them).
+     */
+    public static BoundingBox parse(String bbox) {
+        String[] parts = bbox.split(",");
+
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Expected left,bottom,right,top: " + bbox);
+        }
+
+        return new BoundingBox(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()),
+                Double.parseDouble(parts[2].trim()), Double.parseDouble(parts[3].trim()));
+    }
+
+    @Override
+    public boolean contains(double lon, double lat) {
+        return lon >= left && lon <= right && lat >= bottom && lat <= top;
+    }
+
+    @Override
+    public double[] getBounds() {
+        return new double[] {left, bottom, right, top};
+    }
+}
@@ -0,0 +1,59 @@
+package net.mojodna.osm2orc.standalone.extract;
+
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+
+import java.io.IOException;
+
+/**
+ * Passes on only the entities an ExtractPlanner has decided to keep.
+ */
+public class ExtractFilter implements EntityHandler {
+    private final EntityHandler handler;
+    private final ExtractPlanner planner;
+
+    private boolean skipping;
+
+    public ExtractFilter(EntityHandler handler, ExtractPlanner planner) {
+        this.handler = handler;
+        this.planner = planner;
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) throws IOException {
+        skipping = !planner.isKept(type, id);
+
+        if (!skipping) {
+            handler.startEntity(type, id, version, timestamp, changeset, uid, user, userStart, userLength, visible);
+        }
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        if (!skipping) {
+            handler.addTag(key, keyStart, keyLength, value, valueStart, valueLength);
+        }
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        if (!skipping) {
+            handler.setLocation(latitude, longitude);
+        }
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        if (!skipping) {
+            handler.addNodeRef(ref);
+        }
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        if (!skipping) {
+            handler.addMember(type, ref, role, roleStart, roleLength);
+        }
+    }
+}
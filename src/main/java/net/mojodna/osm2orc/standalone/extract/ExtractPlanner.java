@@ -0,0 +1,207 @@
+package net.mojodna.osm2orc.standalone.extract;
+
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.standalone.io.Inputs;
+import net.mojodna.osm2orc.standalone.pbf.PbfDecoder;
+import net.mojodna.osm2orc.util.IdSet;
+import net.mojodna.osm2orc.util.MemoryBudget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Decides which entities belong to a regional extract, by scanning the input
+ * before it's converted: nodes inside the region, ways referencing any of
+ * them (with all of their nodes, so that ways are complete) and relations
+ * with members among either, or among other relations being kept.
+ *
+ * Input ordered by type (nodes, then ways, then relations, as PBFs usually
+ * are) needs a single pass; otherwise, passes are repeated until nothing
+ * else is added.
+ */
+public class ExtractPlanner implements EntityHandler {
+    private static final Logger LOG = Logger.getLogger(ExtractPlanner.class.getName());
+
+    private final Region region;
+    // nodes within the region
+    private final IdSet inside = new IdSet();
+    // nodes within the region or referenced by kept ways
+    private final IdSet nodes = new IdSet();
+    private final IdSet ways = new IdSet();
+    private final IdSet relations = new IdSet();
+
+    private OsmType type;
+    private long id;
+    private boolean keep;
+    private long[] refs = new long[256];
+    private int refCount;
+
+    // (parent, child) pairs of relations that are members of relations
+    private long[] parents = new long[64];
+    private long[] children = new long[64];
+    private int relationMemberCount;
+
+    private OsmType lastType;
+    private boolean ordered;
+    private long added;
+
+    public ExtractPlanner(Region region) {
+        this.region = region;
+    }
+
+    public void setMemoryBudget(MemoryBudget budget) {
+        inside.setMemoryBudget(budget, "Extracted node ids");
+        nodes.setMemoryBudget(budget, "Extracted node ids");
+        ways.setMemoryBudget(budget, "Extracted way ids");
+        relations.setMemoryBudget(budget, "Extracted relation ids");
+    }
+
+    /**
+     * Scans an input (which will be opened again for each pass) until every
+     * entity in the extract has been found.
+     *
+     * @param budget
+     *            May be null.
+     */
+    public void plan(String path, MemoryBudget budget) throws IOException {
+        int passes = 0;
+
+        do {
+            ordered = true;
+            added = 0;
+            lastType = null;
+            relationMemberCount = 0;
+
+            try (InputStream in = Inputs.open(path, budget)) {
+                new PbfDecoder(in, this).decode();
+            }
+
+            finishPass();
+
+            passes++;
+        } while (!ordered && added > 0);
+
+        LOG.info(String.format("Extracting %d nodes, %d ways and %d relations (%d passes)",
+                nodes.cardinality(), ways.cardinality(), relations.cardinality(), passes));
+    }
+
+    public boolean isKept(OsmType type, long id) {
+        switch (type) {
+            case NODE:
+                return nodes.contains(id);
+
+            case WAY:
+                return ways.contains(id);
+
+            default:
+                return relations.contains(id);
+        }
+    }
+
+    private void add(IdSet set, long id) {
+        if (set.add(id)) {
+            added++;
+        }
+    }
+
+    /**
+     * Records the decision about the entity being scanned.
+     */
+    private void finishEntity() {
+        if (type == OsmType.WAY && keep) {
+            add(ways, id);
+
+            for (int i = 0; i < refCount; i++) {
+                add(nodes, refs[i]);
+            }
+        } else if (type == OsmType.RELATION && keep) {
+            add(relations, id);
+        }
+
+        type = null;
+        refCount = 0;
+    }
+
+    /**
+     * Keeps relations containing kept relations, which may come later in the
+     * input.
+     */
+    private void finishPass() {
+        finishEntity();
+
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            for (int i = 0; i < relationMemberCount; i++) {
+                if (relations.contains(children[i]) && relations.add(parents[i])) {
+                    added++;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) throws IOException {
+        finishEntity();
+
+        if (lastType != null && type.ordinal() < lastType.ordinal()) {
+            ordered = false;
+        }
+
+        this.type = lastType = type;
+        this.id = id;
+        this.keep = false;
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        if (type == OsmType.NODE && region.contains(longitude * 1e-9, latitude * 1e-9)) {
+            add(inside, id);
+            add(nodes, id);
+        }
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        if (refCount == refs.length) {
+            refs = Arrays.copyOf(refs, refCount * 2);
+        }
+
+        refs[refCount++] = ref;
+        keep |= inside.contains(ref);
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        switch (type) {
+            case NODE:
+                keep |= inside.contains(ref);
+                break;
+
+            case WAY:
+                keep |= ways.contains(ref);
+                break;
+
+            default:
+                if (relationMemberCount == parents.length) {
+                    parents = Arrays.copyOf(parents, relationMemberCount * 2);
+                    children = Arrays.copyOf(children, relationMemberCount * 2);
+                }
+
+                parents[relationMemberCount] = id;
+                children[relationMemberCount++] = ref;
+                keep |= relations.contains(ref);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package net.mojodna.osm2orc.standalone.extract;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A (multi)polygon region, read from an Osmosis polygon filter file (see
+ * https://wiki.openstreetmap.org/wiki/Osmosis/Polygon_Filter_File_Format).
+ * Points are inside if they're within an odd number of rings, so holes
+ * (sections whose names start with "!") are excluded.
+ *
+ * Lookups are accelerated by a grid over the polygon's bounding box: cells
+ * that no edge passes through are classified as inside or outside up front,
+ * so most points are answered with an array lookup. Points in cells that an
+ * edge passes through are tested by casting a ray against the edges that
+ * overlap the cell's row only.
+ */
+public class PolygonRegion implements Region {
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BOUNDARY = 2;
+
+    private final double[] x1;
+    private final double[] y1;
+    private final double[] x2;
+    private final double[] y2;
+    private final double left;
+    private final double bottom;
+    private final double right;
+    private final double top;
+    private final int gridSize;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int[][] rowEdges;
+    private final byte[] cells;
+
+    /**
+     * @param rings
+     *            Rings as interleaved lon, lat pairs; closing them is optional.
+     */
+    public PolygonRegion(List<double[]> rings) {
+        int edgeCount = 0;
+
+        for (double[] ring : rings) {
+            edgeCount += ring.length / 2;
+        }
+
+        if (edgeCount < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+        }
+
+        x1 = new double[edgeCount];
+        y1 = new double[edgeCount];
+        x2 = new double[edgeCount];
+        y2 = new double[edgeCount];
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        int e = 0;
+
+        for (double[] ring : rings) {
+            int points = ring.length / 2;
+
+            for (int i = 0; i < points; i++) {
+                int j = (i + 1) % points;
+
+                x1[e] = ring[i * 2];
+                y1[e] = ring[i * 2 + 1];
+                x2[e] = ring[j * 2];
+                y2[e] = ring[j * 2 + 1];
+                e++;
+
+                minX = Math.min(minX, ring[i * 2]);
+                maxX = Math.max(maxX, ring[i * 2]);
+                minY = Math.min(minY, ring[i * 2 + 1]);
+                maxY = Math.max(maxY, ring[i * 2 + 1]);
+            }
+        }
+
+        left = minX;
+        bottom = minY;
+        right = maxX;
+        top = maxY;
+
+        // roughly a handful of edges per row
+        gridSize = (int) Math.max(64, Math.min(2048, Math.ceil(Math.sqrt(edgeCount)) * 4));
+        cellWidth = Math.max(right - left, 1e-9) / gridSize;
+        cellHeight = Math.max(top - bottom, 1e-9) / gridSize;
+
+        int[] counts = new int[gridSize];
+
+        for (e = 0; e < edgeCount; e++) {
+            for (int row = row(Math.min(y1[e], y2[e])); row <= row(Math.max(y1[e], y2[e])); row++) {
+                counts[row]++;
+            }
+        }
+
+        rowEdges = new int[gridSize][];
+
+        for (int row = 0; row < gridSize; row++) {
+            rowEdges[row] = new int[counts[row]];
+        }
+
+        Arrays.fill(counts, 0);
+        cells = new byte[gridSize * gridSize];
+
+        for (e = 0; e < edgeCount; e++) {
+            double low = Math.min(y1[e], y2[e]);
+            double high = Math.max(y1[e], y2[e]);
+
+            for (int row = row(low); row <= row(high); row++) {
+                rowEdges[row][counts[row]++] = e;
+
+                // the part of the edge within this row
+                double ya = Math.max(low, bottom + row * cellHeight);
+                double yb = Math.min(high, bottom + (row + 1) * cellHeight);
+                double xa = y1[e] == y2[e] ? x1[e] : x(e, ya);
+                double xb = y1[e] == y2[e] ? x2[e] : x(e, yb);
+
+                for (int column = column(Math.min(xa, xb)); column <= column(Math.max(xa, xb)); column++) {
+                    cells[row * gridSize + column] = BOUNDARY;
+                }
+            }
+        }
+
+        for (int row = 0; row < gridSize; row++) {
+            for (int column = 0; column < gridSize; column++) {
+                if (cells[row * gridSize + column] != BOUNDARY) {
+                    boolean inside = crosses(left + (column + 0.5) * cellWidth, bottom + (row + 0.5) * cellHeight, row);
+                    cells[row * gridSize + column] = inside ? INSIDE : OUTSIDE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an Osmosis polygon filter file.
+     */
+    public static PolygonRegion read(String path) throws IOException {
+        List<double[]> rings = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            // the first line names the polygon
+            String line = reader.readLine();
+
+            if (line == null) {
+                throw new IOException(path + " is empty");
+            }
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                if (line.equals("END")) {
+                    break;
+                }
+
+                // a section: its name, then coordinates until END
+                double[] ring = new double[64];
+                int length = 0;
+
+                while ((line = reader.readLine()) != null && !line.trim().equals("END")) {
+                    String[] parts = line.trim().split("\\s+");
+
+                    if (parts.length < 2) {
+                        continue;
+                    }
+
+                    if (length + 2 > ring.length) {
+                        ring = Arrays.copyOf(ring, ring.length * 2);
+                    }
+
+                    ring[length++] = Double.parseDouble(parts[0]);
+                    ring[length++] = Double.parseDouble(parts[1]);
+                }
+
+                if (line == null) {
+                    throw new IOException(path + ": unterminated section");
+                }
+
+                if (length >= 6) {
+                    rings.add(Arrays.copyOf(ring, length));
+                }
+            }
+        }
+
+        return new PolygonRegion(rings);
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(gridSize - 1, (int) ((y - bottom) / cellHeight)));
+    }
+
+    private int column(double x) {
+        return Math.max(0, Math.min(gridSize - 1, (int) ((x - left) / cellWidth)));
+    }
+
+    /**
+     * @return The x coordinate at which edge <code>e</code> (which mustn't be
+     *         horizontal) reaches <code>y</code>.
+     */
+    private double x(int e, double y) {
+        return x1[e] + (y - y1[e]) * (x2[e] - x1[e]) / (y2[e] - y1[e]);
+    }
+
+    /**
+     * Counts crossings of a ray from (x, y) towards +x.
+     *
+     * @return Whether the count is odd.
+     */
+    private boolean crosses(double x, double y, int row) {
+        boolean inside = false;
+
+        for (int e : rowEdges[row]) {
+            if ((y1[e] > y) != (y2[e] > y) && x < x(e, y)) {
+                inside = !inside;
+            }
+        }
+
+        return inside;
+    }
+
+    @Override
+    public boolean contains(double lon, double lat) {
+        if (lon < left || lon > right || lat < bottom || lat > top) {
+            return false;
+        }
+
+        int row = row(lat);
+
+        switch (cells[row * gridSize + column(lon)]) {
+            case INSIDE:
+                return true;
+
+            case OUTSIDE:
+                return false;
+
+            default:
+                return crosses(lon, lat, row);
+        }
+    }
+
+    @Override
+    public double[] getBounds() {
+        return new double[] {left, bottom, right, top};
+    }
+}
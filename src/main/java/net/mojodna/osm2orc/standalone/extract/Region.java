@@ -0,0 +1,13 @@
+package net.mojodna.osm2orc.standalone.extract;
+
+/**
+ * An area to extract.
+ */
+public interface Region {
+    boolean contains(double lon, double lat);
+
+    /**
+     * @return The bounding box, as left, bottom, right, top.
+     */
+    double[] getBounds();
+}
@@ -0,0 +1,101 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * Streams an HTTP(S) resource, resuming with a <code>Range</code> request from
+ * the current position when the connection drops part-way through.
+ */
+public class HttpRangeInputStream extends InputStream {
+    private static final Logger LOG = Logger.getLogger(HttpRangeInputStream.class.getName());
+    private static final int MAX_RETRIES = 5;
+
+    private final URL url;
+    private InputStream in;
+    private long position;
+    private boolean rangeSupported;
+
+    public HttpRangeInputStream(URL url) throws IOException {
+        this.url = url;
+        this.in = connect();
+    }
+
+    private InputStream connect() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        if (position > 0) {
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+        }
+
+        int status = connection.getResponseCode();
+
+        if (position > 0 && status != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Server does not support resuming " + url + " (HTTP " + status + ")");
+        }
+
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Unable to fetch " + url + " (HTTP " + status + ")");
+        }
+
+        rangeSupported = "bytes".equals(connection.getHeaderField("Accept-Ranges")) || status == HttpURLConnection.HTTP_PARTIAL;
+
+        return connection.getInputStream();
+    }
+
+    private void reconnect(IOException cause, int attempt) throws IOException {
+        if (!rangeSupported || attempt >= MAX_RETRIES) {
+            throw cause;
+        }
+
+        LOG.warning("Connection to " + url + " failed at byte " + position + ", resuming: " + cause.getMessage());
+
+        try {
+            in.close();
+        } catch (IOException e) {
+            // already broken
+        }
+
+        in = connect();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                int n = in.read(b, off, len);
+
+                if (n > 0) {
+                    position += n;
+                }
+
+                return n;
+            } catch (IOException e) {
+                reconnect(e, attempt);
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
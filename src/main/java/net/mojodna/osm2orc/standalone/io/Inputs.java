@@ -0,0 +1,161 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import net.mojodna.osm2orc.util.MemoryBudget;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens converter inputs. Reading happens on a dedicated read-ahead thread and
+ * compressed inputs (detected by their magic bytes) are decompressed on
+ * separate threads (bzip2 on all available cores), so neither I/O stalls nor
+ * decompression block parsing.
+ */
+public final class Inputs {
+    private static final int DECOMPRESSION_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_CHUNK_COUNT = 4;
+    // a bzip2 decoder's working memory plus queued compressed and decoded blocks
+    private static final long BZIP2_THREAD_BYTES = 12L * 1024 * 1024;
+
+    private Inputs() {
+    }
+
+    /**
+     * Opens an input.
+     *
+     * @param path
+     *            A local path, an http(s) URL, or "-" for stdin.
+     * @return A buffered, decompressed stream.
+     */
+    public static InputStream open(String path) throws IOException {
+        return open(path, null);
+    }
+
+    /**
+     * Opens an input, sizing read-ahead buffers to fit a memory budget (a
+     * sixteenth of it for each of reading and decompression, at most the
+     * default). The reservation is released when the stream is closed.
+     *
+     * @param path
+     *            A local path, an http(s) URL, or "-" for stdin.
+     * @param budget
+     *            May be null.
+     * @return A buffered, decompressed stream.
+     */
+    public static InputStream open(String path, MemoryBudget budget) throws IOException {
+        int chunkCount = ReadAheadInputStream.DEFAULT_CHUNK_COUNT;
+        // bytes reserved from the budget, added to as buffers are sized
+        long[] reserved = new long[1];
+
+        if (budget != null) {
+            chunkCount = (int) Math.max(MIN_CHUNK_COUNT, Math.min(chunkCount,
+                    budget.getLimit() / 16 / ReadAheadInputStream.DEFAULT_CHUNK_SIZE));
+            reserved[0] = 2L * chunkCount * ReadAheadInputStream.DEFAULT_CHUNK_SIZE;
+            budget.reserve(reserved[0], "Read-ahead buffers");
+        }
+
+        InputStream raw = null;
+        InputStream input;
+
+        try {
+            if (path.equals("-")) {
+                raw = System.in;
+            } else if (path.startsWith("http://") || path.startsWith("https://")) {
+                raw = new HttpRangeInputStream(new URL(path));
+            } else {
+                raw = new FileInputStream(path);
+            }
+
+            raw = new ReadAheadInputStream(raw, "input", ReadAheadInputStream.DEFAULT_CHUNK_SIZE, chunkCount);
+            input = decompress(raw, chunkCount, budget, reserved);
+        } catch (Throwable t) {
+            // the caller never gets a stream to close, so stop reading ahead and give the memory back here
+            try {
+                if (raw != null) {
+                    raw.close();
+                }
+            } catch (IOException e) {
+                t.addSuppressed(e);
+            } finally {
+                if (budget != null) {
+                    budget.release(reserved[0]);
+                }
+            }
+
+            throw t;
+        }
+
+        if (budget == null) {
+            return input;
+        }
+
+        return new FilterInputStream(input) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+
+                if (!closed) {
+                    closed = true;
+                    budget.release(reserved[0]);
+                }
+            }
+        };
+    }
+
+    private static InputStream decompress(InputStream input, int chunkCount, MemoryBudget budget, long[] reserved)
+            throws IOException {
+        PushbackInputStream in = new PushbackInputStream(input, 3);
+        byte[] magic = new byte[3];
+        int length = 0;
+
+        while (length < magic.length) {
+            int n = in.read(magic, length, magic.length - length);
+
+            if (n < 0) {
+                break;
+            }
+
+            length += n;
+        }
+
+        in.unread(magic, 0, length);
+
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return new ReadAheadInputStream(new GZIPInputStream(in, DECOMPRESSION_BUFFER_SIZE), "gzip",
+                    ReadAheadInputStream.DEFAULT_CHUNK_SIZE, chunkCount);
+        }
+
+        if (length == 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+            int threads = Runtime.getRuntime().availableProcessors();
+
+            if (budget != null) {
+                // leave at least 1/8 of the budget for everything else
+                threads = (int) Math.max(1, Math.min(threads, budget.getLimit() / 8 / BZIP2_THREAD_BYTES));
+            }
+
+            if (threads > 1) {
+                if (budget != null) {
+                    budget.reserve(threads * BZIP2_THREAD_BYTES, "Parallel bzip2 decoders");
+                    reserved[0] += threads * BZIP2_THREAD_BYTES;
+                }
+
+                // decoded blocks are already produced ahead of the consumer
+                return new ParallelBzip2InputStream(in, threads);
+            }
+
+            // decompressConcatenated handles multistream (e.g. pbzip2-produced) files
+            return new ReadAheadInputStream(new BZip2CompressorInputStream(in, true), "bzip2",
+                    ReadAheadInputStream.DEFAULT_CHUNK_SIZE, chunkCount);
+        }
+
+        return in;
+    }
+}
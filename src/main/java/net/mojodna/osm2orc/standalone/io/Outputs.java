@@ -0,0 +1,373 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import net.mojodna.osm2orc.util.MemoryBudget;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Writer;
+import org.apache.orc.impl.PhysicalFsWriter;
+import org.apache.orc.impl.writer.WriterEncryptionVariant;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates ORC writers for converter outputs. <code>s3://bucket/key</code>
+ * outputs are streamed to S3 as multipart uploads (see
+ * S3MultipartOutputStream) instead of going through a Hadoop FileSystem,
+ * which stages the whole file on local disk and uploads it on close. Local
+ * paths are written directly with java.nio, skipping FileSystem lookup (and
+ * its service loading) and checksum files. Anything else
+ * (<code>s3a://</code>, <code>hdfs://</code>) is written with Hadoop.
+ *
+ * Neither local nor Hadoop outputs touch the AWS SDK, so the slim
+ * distribution (which leaves it out) can write them.
+ *
+ * Sidecar files (indexes, id sets) are created with {@link #create(String,
+ * Configuration)}, which likewise writes local paths with java.nio.
+ *
+ * Converters that fail part way through call {@link #abort(Writer)} rather
+ * than closing their writer, which would complete a truncated file.
+ */
+public final class Outputs {
+    public static final String PART_SIZE = "osm2orc.s3.part.size";
+    public static final String UPLOAD_THREADS = "osm2orc.s3.upload.threads";
+    public static final int DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+
+    private static final String S3_PREFIX = "s3://";
+    private static final String FILE_PREFIX = "file:";
+    private static final Logger LOG = Logger.getLogger(Outputs.class.getName());
+
+    // how to discard each writer's output (values mustn't refer to their writers, or they'd never be collected)
+    private static final Map<Writer, Discard> DISCARDS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Outputs() {
+    }
+
+    public static boolean isStreamed(String path) {
+        return path.startsWith(S3_PREFIX);
+    }
+
+    /**
+     * Whether a path is on the local filesystem: no scheme, or
+     * <code>file:</code>.
+     */
+    public static boolean isLocal(String path) {
+        if (path.startsWith(FILE_PREFIX)) {
+            return true;
+        }
+
+        int colon = path.indexOf(':');
+        int slash = path.indexOf('/');
+
+        // a lone drive letter (C:\...) isn't a scheme
+        return colon < 0 || (slash >= 0 && slash < colon) || colon == 1;
+    }
+
+    /**
+     * Converts a local path (see {@link #isLocal(String)}), which may be a
+     * <code>file:</code> URI.
+     */
+    public static java.nio.file.Path localPath(String path) {
+        if (!path.startsWith(FILE_PREFIX)) {
+            return Paths.get(path);
+        }
+
+        String location = path.substring(FILE_PREFIX.length());
+
+        // file:///tmp/x and file:/tmp/x
+        while (location.startsWith("//")) {
+            location = location.substring(1);
+        }
+
+        return Paths.get(location);
+    }
+
+    /**
+     * A Configuration for writing <code>output</code>. Copies
+     * <code>base</code> if given; otherwise local outputs skip Hadoop's
+     * default resources (core-default.xml is large and slow to parse) and
+     * only pick up a core-site.xml on the classpath, if there is one.
+     */
+    public static Configuration configuration(Configuration base, String output) {
+        if (base != null) {
+            return new Configuration(base);
+        }
+
+        if (output != null && isLocal(output)) {
+            Configuration conf = new Configuration(false);
+            conf.addResource("core-site.xml");
+
+            return conf;
+        }
+
+        return new Configuration();
+    }
+
+    /**
+     * Lets sidecar files (indexes, id sets) next to <code>s3://</code>
+     * outputs be written with S3A, since Hadoop has no <code>s3://</code>
+     * FileSystem of its own.
+     */
+    public static void configure(Configuration conf) {
+        conf.setIfUnset("fs.s3.impl", "org.apache.hadoop.fs.s3a.S3AFileSystem");
+    }
+
+    /**
+     * @param budget
+     *            May be null; upload buffers are reserved from it until the
+     *            writer is closed.
+     */
+    public static Writer createWriter(String path, OrcFile.WriterOptions options, Configuration conf,
+                                      MemoryBudget budget) throws IOException {
+        if (isLocal(path)) {
+            return createLocalWriter(path, options);
+        }
+
+        if (!isStreamed(path)) {
+            Path output = new Path(path);
+            Writer writer = OrcFile.createWriter(output, options);
+
+            // Hadoop's streams can't be abandoned, so the file is completed and then deleted
+            DISCARDS.put(writer, w -> {
+                try {
+                    w.close();
+                } finally {
+                    output.getFileSystem(conf).delete(output, false);
+                }
+            });
+
+            return writer;
+        }
+
+        String location = path.substring(S3_PREFIX.length());
+        int slash = location.indexOf('/');
+
+        if (slash <= 0 || slash == location.length() - 1) {
+            throw new IOException("Expected s3://<bucket>/<key>: " + path);
+        }
+
+        int partSize = (int) Math.max(S3MultipartOutputStream.MIN_PART_SIZE,
+                Math.min(Integer.MAX_VALUE - 8, conf.getLongBytes(PART_SIZE, DEFAULT_PART_SIZE)));
+        int threads = Math.max(1, conf.getInt(UPLOAD_THREADS, DEFAULT_UPLOAD_THREADS));
+        long reserved = (long) partSize * (threads + 1);
+
+        if (budget != null) {
+            budget.reserve(reserved, "S3 upload buffers");
+        }
+
+        S3MultipartOutputStream upload;
+
+        try {
+            upload = S3MultipartOutputStream.open(conf, location.substring(0, slash),
+                    location.substring(slash + 1), partSize, threads + 1);
+        } catch (RuntimeException | NoClassDefFoundError e) {
+            if (budget != null) {
+                budget.release(reserved);
+            }
+
+            if (e instanceof NoClassDefFoundError) {
+                throw new IOException("s3:// outputs need the AWS SDK, which the slim jar leaves out", e);
+            }
+
+            throw e;
+        }
+
+        return createWriter(path, upload(upload, budget, reserved), options);
+    }
+
+    /**
+     * Completes the upload when closed, or aborts it if discarded, releasing
+     * its buffers' reservation either way.
+     */
+    static DiscardableOutputStream upload(S3MultipartOutputStream upload, MemoryBudget budget, long reserved) {
+        return new DiscardableOutputStream(upload) {
+            @Override
+            void complete() throws IOException {
+                try {
+                    upload.close();
+                } finally {
+                    if (budget != null) {
+                        budget.release(reserved);
+                    }
+                }
+            }
+
+            @Override
+            void discard() {
+                try {
+                    upload.abort();
+                } finally {
+                    if (budget != null) {
+                        budget.release(reserved);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates (or replaces) a file that isn't an ORC file, such as a sidecar
+     * index: local paths with java.nio, so without checksum files, and
+     * anything else with Hadoop.
+     */
+    public static OutputStream create(String path, Configuration conf) throws IOException {
+        if (isLocal(path)) {
+            java.nio.file.Path file = localPath(path).toAbsolutePath();
+
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+
+            return Files.newOutputStream(file);
+        }
+
+        Path output = new Path(path);
+
+        return output.getFileSystem(conf).create(output, true);
+    }
+
+    private static Writer createLocalWriter(String path, OrcFile.WriterOptions options) throws IOException {
+        java.nio.file.Path file = localPath(path).toAbsolutePath();
+
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+
+        OutputStream stream = options.getOverwrite()
+                ? Files.newOutputStream(file)
+                : Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        return createWriter(file.toString(), new DiscardableOutputStream(new BufferedOutputStream(stream, 256 * 1024)) {
+            @Override
+            void complete() throws IOException {
+                out.close();
+            }
+
+            @Override
+            void discard() throws IOException {
+                try {
+                    out.close();
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }, options);
+    }
+
+    private static Writer createWriter(String path, DiscardableOutputStream out, OrcFile.WriterOptions options)
+            throws IOException {
+        // ORC only uses the FileSystem to open the path, which the physical writer already has; an
+        // unconfigured one avoids FileSystem.get's scheme lookup
+        options.fileSystem(new RawLocalFileSystem())
+                .physicalWriter(new PhysicalFsWriter(new FSDataOutputStream(out, null), options,
+                        new WriterEncryptionVariant[0]));
+
+        Writer writer = OrcFile.createWriter(new Path(path), options);
+
+        DISCARDS.put(writer, w -> {
+            out.discarded = true;
+
+            try {
+                // releases the writer's memory; what it writes goes nowhere
+                w.close();
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.FINE, "Failed to close a discarded writer for " + path, e);
+            } finally {
+                out.close();
+            }
+        });
+
+        return writer;
+    }
+
+    /**
+     * Discards a writer's output after a failure instead of closing it:
+     * <code>s3://</code> uploads are aborted (leaving no parts behind) and
+     * other outputs are deleted. Failures to do so are logged rather than
+     * thrown, so as not to hide the original failure.
+     */
+    public static void abort(Writer writer) {
+        Discard discard = DISCARDS.remove(writer);
+
+        if (discard == null) {
+            return;
+        }
+
+        try {
+            discard.discard(writer);
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to discard a partial output", e);
+        }
+    }
+
+    private interface Discard {
+        void discard(Writer writer) throws IOException;
+    }
+
+    /**
+     * Passes writes on until discarded, then drops them; closing completes
+     * or discards the output accordingly.
+     */
+    abstract static class DiscardableOutputStream extends FilterOutputStream {
+        volatile boolean discarded;
+        private boolean closed;
+
+        DiscardableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        abstract void complete() throws IOException;
+
+        abstract void discard() throws IOException;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!discarded) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!discarded) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!discarded) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (discarded) {
+                discard();
+            } else {
+                complete();
+            }
+        }
+    }
+}
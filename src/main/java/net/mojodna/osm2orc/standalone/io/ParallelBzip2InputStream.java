@@ -0,0 +1,564 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Decompresses (multistream) bzip2 using several cores.
+ *
+ * bzip2 blocks are independent but bit-aligned, so a scanner thread locates
+ * block boundaries by their 48-bit magic numbers and hands the raw bits of
+ * each block to a pool of decoders, which re-wrap them as standalone
+ * single-block streams. Decoded blocks are returned in their original order.
+ *
+ * The block magic may occasionally occur inside compressed data; a block that
+ * fails to decode is merged with its successor and retried.
+ */
+public class ParallelBzip2InputStream extends InputStream {
+    private static final Logger LOG = Logger.getLogger(ParallelBzip2InputStream.class.getName());
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+    private static final int STREAM_HEADER = ('B' << 16) | ('Z' << 8) | 'h';
+    private static final int MAX_MERGES = 4;
+
+    private static final Segment END = new Segment(null, 0, 0, 0);
+
+    private final InputStream in;
+    private final ExecutorService decoders;
+    private final BlockingQueue<Segment> segments;
+    private final Thread scanner;
+
+    private volatile IOException failure;
+
+    private Segment pending;
+    private boolean finished;
+    private byte[] output = new byte[0];
+    private int position;
+
+    private static class Segment {
+        private final byte[] data;
+        private final int offset;
+        private final long length;
+        private final int level;
+        private Future<byte[]> result;
+
+        Segment(byte[] data, int offset, long length, int level) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.level = level;
+        }
+
+        BitBuffer bits() {
+            return BitBuffer.extract(data, offset, length);
+        }
+    }
+
+    public ParallelBzip2InputStream(InputStream in, int threads) {
+        this.in = in;
+        this.segments = new ArrayBlockingQueue<>(threads * 2);
+        this.decoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "osm2orc-bzip2-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scanner = new Thread(this::scan, "osm2orc-bzip2-scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    private void scan() {
+        try {
+            new BlockScanner().run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                segments.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int level(long header) {
+        int level = (int) (header & 0xff) - '0';
+
+        if ((header >>> 8) != STREAM_HEADER || level < 1 || level > 9) {
+            return 0;
+        }
+
+        return level;
+    }
+
+    /**
+     * Splits the input into blocks. All positions are absolute bit offsets.
+     */
+    private final class BlockScanner {
+        private final List<Long> deferred = new ArrayList<>();
+        private byte[] buffer = new byte[4 * 1024 * 1024];
+        // absolute byte offset of buffer[0]
+        private long base;
+        private int length;
+        private long window;
+        private int windowBits;
+        private int level;
+        private boolean complete;
+        // where the current block's magic starts; nothing is a boundary until the first header is read
+        private long segmentStart = Long.MAX_VALUE / 2;
+        // start of an end-of-stream magic that hasn't been confirmed by a trailer yet
+        private long pendingEnd = -1;
+
+        void run() throws IOException, InterruptedException {
+            while (true) {
+                makeRoom();
+
+                int n = in.read(buffer, length, buffer.length - length);
+
+                if (n < 0) {
+                    break;
+                }
+
+                for (int i = length; i < length + n; i++) {
+                    window = (window << 8) | (buffer[i] & 0xff);
+                    windowBits += 8;
+
+                    long end = (base + i + 1) * 8;
+
+                    if (end == 32) {
+                        level = level(window & 0xffffffffL);
+
+                        if (level == 0) {
+                            throw new IOException("Not a bzip2 stream");
+                        }
+
+                        segmentStart = 32;
+                        continue;
+                    }
+
+                    // a magic may end at any of the 8 bit positions in this byte
+                    for (int k = 7; k >= 0; k--) {
+                        if (windowBits < 48 + k) {
+                            continue;
+                        }
+
+                        long candidate = (window >>> k) & MAGIC_MASK;
+
+                        if (candidate == BLOCK_MAGIC) {
+                            candidate(true, end - k - 48);
+                        } else if (candidate == EOS_MAGIC) {
+                            candidate(false, end - k - 48);
+                        }
+                    }
+
+                    if (pendingEnd >= 0) {
+                        resolve(end, false);
+                    }
+                }
+
+                length += n;
+            }
+
+            long end = (base + length) * 8;
+
+            if (end == 0) {
+                return;
+            }
+
+            while (pendingEnd >= 0 && !complete) {
+                resolve(end, true);
+            }
+
+            if (!complete) {
+                throw new EOFException("Unexpected end of bzip2 stream");
+            }
+        }
+
+        private void makeRoom() {
+            if (length < buffer.length) {
+                return;
+            }
+
+            int keep = (int) (Math.min(segmentStart >>> 3, base + length) - base);
+
+            if (keep > buffer.length / 2) {
+                System.arraycopy(buffer, keep, buffer, 0, length - keep);
+                base += keep;
+                length -= keep;
+            } else {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        private void candidate(boolean block, long start) throws IOException, InterruptedException {
+            if (pendingEnd >= 0) {
+                deferred.add(block ? start : -start - 1);
+                return;
+            }
+
+            if (start == segmentStart) {
+                if (!block) {
+                    // empty stream
+                    pendingEnd = start;
+                }
+
+                return;
+            }
+
+            if (start < segmentStart + 48) {
+                // overlaps the current magic (or precedes the stream)
+                return;
+            }
+
+            if (block) {
+                emit(segmentStart, start);
+                segmentStart = start;
+            } else {
+                pendingEnd = start;
+            }
+        }
+
+        /**
+         * Confirms or rejects a pending end-of-stream magic once its trailer
+         * (combined CRC, padding and the next stream's header) is available.
+         */
+        private void resolve(long end, boolean eof) throws IOException, InterruptedException {
+            long aligned = (pendingEnd + 48 + 32 + 7) & ~7L;
+
+            if (!eof && end < aligned + 32) {
+                return;
+            }
+
+            int next = 0;
+
+            if (end >= aligned + 32) {
+                next = level(bits(aligned, 32));
+            }
+
+            if (next > 0 || (eof && end == aligned)) {
+                if (pendingEnd > segmentStart) {
+                    emit(segmentStart, pendingEnd);
+                }
+
+                deferred.clear();
+                pendingEnd = -1;
+
+                if (next == 0) {
+                    complete = true;
+                } else {
+                    level = next;
+                    segmentStart = aligned + 32;
+                }
+
+                return;
+            }
+
+            // the end-of-stream magic occurred within block data
+            if (pendingEnd == segmentStart) {
+                throw new IOException("Invalid bzip2 stream trailer");
+            }
+
+            pendingEnd = -1;
+
+            List<Long> replay = new ArrayList<>(deferred);
+            deferred.clear();
+
+            for (long candidate : replay) {
+                candidate(candidate >= 0, candidate >= 0 ? candidate : -candidate - 1);
+            }
+        }
+
+        private long bits(long start, int count) {
+            long value = 0;
+
+            for (long i = start; i < start + count; i++) {
+                int b = buffer[(int) ((i >>> 3) - base)];
+                value = (value << 1) | ((b >>> (7 - (i & 7))) & 1);
+            }
+
+            return value;
+        }
+
+        private void emit(long start, long end) throws InterruptedException {
+            int from = (int) ((start >>> 3) - base);
+            int to = (int) (((end + 7) >>> 3) - base);
+
+            submit(new Segment(Arrays.copyOfRange(buffer, from, to), (int) (start & 7), end - start, level));
+        }
+    }
+
+    private void submit(Segment segment) throws InterruptedException {
+        segment.result = decoders.submit(() -> decode(segment.bits(), segment.level));
+        segments.put(segment);
+    }
+
+    private static byte[] decode(BitBuffer block, int level) throws IOException {
+        // wrap the block as a single-block stream; its combined CRC is the block CRC
+        BitBuffer stream = new BitBuffer(block.byteLength() + 16);
+        stream.appendBits(((long) STREAM_HEADER << 8) | ('0' + level), 32);
+        stream.append(block);
+        stream.appendBits(EOS_MAGIC, 48);
+        stream.appendBits(block.getBits(48, 32), 32);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(level * 100000);
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream decoder = new BZip2CompressorInputStream(
+                new ByteArrayInputStream(stream.bytes(), 0, stream.byteLength()), false)) {
+            int n;
+
+            while ((n = decoder.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (RuntimeException e) {
+            // garbage input can surface as runtime exceptions from the decoder
+            throw new IOException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    private Segment take() throws IOException {
+        if (pending != null) {
+            Segment segment = pending;
+            pending = null;
+            return segment;
+        }
+
+        try {
+            return segments.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bzip2 blocks");
+        }
+    }
+
+    private boolean nextOutput() throws IOException {
+        while (!finished) {
+            Segment segment = take();
+
+            if (segment == END) {
+                finished = true;
+
+                if (failure != null) {
+                    throw failure;
+                }
+
+                return false;
+            }
+
+            try {
+                output = segment.result.get();
+            } catch (ExecutionException e) {
+                output = recover(segment, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decoding bzip2 blocks");
+            }
+
+            position = 0;
+
+            if (output.length > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private byte[] recover(Segment segment, Throwable cause) throws IOException {
+        BitBuffer merged = segment.bits();
+
+        for (int i = 0; i < MAX_MERGES; i++) {
+            Segment next = take();
+
+            if (next == END) {
+                pending = END;
+                break;
+            }
+
+            next.result.cancel(true);
+            merged = merged.concat(next.bits());
+
+            try {
+                byte[] decoded = decode(merged, segment.level);
+                LOG.fine("Recovered from a false bzip2 block boundary");
+
+                return decoded;
+            } catch (IOException e) {
+                cause = e;
+            }
+        }
+
+        throw new IOException("Corrupt bzip2 block", cause);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == output.length && !nextOutput()) {
+            return -1;
+        }
+
+        return output[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (position == output.length && !nextOutput()) {
+            return -1;
+        }
+
+        int n = Math.min(len, output.length - position);
+        System.arraycopy(output, position, b, off, n);
+        position += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return output.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scanner.interrupt();
+        decoders.shutdownNow();
+        in.close();
+    }
+
+    private static final class BitBuffer {
+        private byte[] data;
+        private long length;
+
+        BitBuffer(int capacity) {
+            data = new byte[Math.max(capacity, 16)];
+        }
+
+        /**
+         * Copies bits starting at a bit offset within the first byte into a
+         * byte-aligned buffer.
+         */
+        static BitBuffer extract(byte[] source, int offset, long length) {
+            int bytes = (int) ((length + 7) >>> 3);
+            BitBuffer buffer = new BitBuffer(bytes);
+
+            if (offset == 0) {
+                System.arraycopy(source, 0, buffer.data, 0, bytes);
+            } else {
+                for (int i = 0; i < bytes; i++) {
+                    int hi = (source[i] << offset) & 0xff;
+                    int lo = i + 1 < source.length ? (source[i + 1] & 0xff) >>> (8 - offset) : 0;
+                    buffer.data[i] = (byte) (hi | lo);
+                }
+            }
+
+            buffer.length = (long) bytes * 8;
+            buffer.truncate(length);
+
+            return buffer;
+        }
+
+        private void ensureCapacity(long bits) {
+            int bytes = (int) ((bits + 7) >>> 3);
+
+            if (bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(bytes, data.length * 2));
+            }
+        }
+
+        void appendBit(int bit) {
+            ensureCapacity(length + 1);
+
+            if (bit != 0) {
+                data[(int) (length >>> 3)] |= (byte) (0x80 >>> (length & 7));
+            }
+
+            length++;
+        }
+
+        void appendBits(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                appendBit((int) (value >>> i) & 1);
+            }
+        }
+
+        void append(BitBuffer other) {
+            if ((length & 7) == 0) {
+                // byte-aligned; bits past other's length are always zero
+                ensureCapacity(length + other.length);
+                System.arraycopy(other.data, 0, data, (int) (length >>> 3), other.byteLength());
+                length += other.length;
+                return;
+            }
+
+            for (long i = 0; i < other.length; i++) {
+                appendBit(other.getBit(i));
+            }
+        }
+
+        BitBuffer concat(BitBuffer other) {
+            BitBuffer merged = new BitBuffer(byteLength() + other.byteLength() + 1);
+            merged.append(this);
+            merged.append(other);
+
+            return merged;
+        }
+
+        int getBit(long index) {
+            return (data[(int) (index >>> 3)] >>> (7 - (index & 7))) & 1;
+        }
+
+        long getBits(long offset, int n) {
+            long value = 0;
+
+            for (int i = 0; i < n; i++) {
+                value = (value << 1) | getBit(offset + i);
+            }
+
+            return value;
+        }
+
+        void truncate(long bits) {
+            for (long i = bits; i < length && (i & 7) != 0; i++) {
+                data[(int) (i >>> 3)] &= (byte) ~(0x80 >>> (i & 7));
+            }
+
+            Arrays.fill(data, (int) ((bits + 7) >>> 3), byteLength(), (byte) 0);
+            length = bits;
+        }
+
+        int byteLength() {
+            return (int) ((length + 7) >>> 3);
+        }
+
+        byte[] bytes() {
+            return data;
+        }
+    }
+}
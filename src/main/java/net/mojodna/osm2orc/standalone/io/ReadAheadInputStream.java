@@ -0,0 +1,167 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads from an underlying stream on a dedicated thread, keeping a ring of
+ * fixed-size chunks filled ahead of the consumer so that stalls in the source
+ * (pipes, network, decompression) overlap with parsing.
+ */
+public class ReadAheadInputStream extends InputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_CHUNK_COUNT = 64;
+
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final InputStream in;
+    private final BlockingQueue<byte[]> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread reader;
+
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    private Chunk current;
+    private int position;
+    private boolean eof;
+
+    private static class Chunk {
+        private final byte[] data;
+        private final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    public ReadAheadInputStream(InputStream in, String name) {
+        this(in, name, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+    }
+
+    public ReadAheadInputStream(InputStream in, String name, int chunkSize, int chunkCount) {
+        this.in = in;
+        this.free = new ArrayBlockingQueue<>(chunkCount);
+        // one extra slot for the end marker
+        this.filled = new ArrayBlockingQueue<>(chunkCount + 1);
+
+        for (int i = 0; i < chunkCount; i++) {
+            free.add(new byte[chunkSize]);
+        }
+
+        reader = new Thread(this::fill, "osm2orc-read-ahead-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void fill() {
+        try {
+            boolean done = false;
+
+            while (!closed && !done) {
+                byte[] buffer = free.take();
+                int length = 0;
+
+                // fill the chunk, but hand over what we have rather than block on a slow source
+                while (length < buffer.length && (length == 0 || in.available() > 0)) {
+                    int n = in.read(buffer, length, buffer.length - length);
+
+                    if (n < 0) {
+                        done = true;
+                        break;
+                    }
+
+                    length += n;
+                }
+
+                if (length > 0) {
+                    filled.put(new Chunk(buffer, length));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            // the queue always has room for the end marker
+            filled.offer(END);
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (eof) {
+            return false;
+        }
+
+        if (current != null && current != END) {
+            free.offer(current.data);
+        }
+
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+
+        position = 0;
+
+        if (current == END) {
+            eof = true;
+
+            if (failure != null) {
+                throw new IOException("Failed reading input", failure);
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((current == null || position == current.length) && !nextChunk()) {
+            return -1;
+        }
+
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if ((current == null || position == current.length) && !nextChunk()) {
+            return -1;
+        }
+
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() {
+        if (current == null || current == END) {
+            return 0;
+        }
+
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        reader.interrupt();
+        in.close();
+    }
+}
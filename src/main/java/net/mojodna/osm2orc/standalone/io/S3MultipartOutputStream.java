@@ -0,0 +1,309 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes an S3 object as a multipart upload, uploading each part (on a pool
+ * of threads) as soon as it's full rather than staging the whole object on
+ * local disk first, so little is left to upload when the stream is closed.
+ *
+ * At most <code>buffers</code> parts are held in memory (one being filled,
+ * the rest uploading); writes block until a buffer is free. Objects smaller
+ * than a part are uploaded with a single PUT when closed. If anything fails
+ * while closing, the upload is aborted so that no parts are left behind;
+ * writers which fail before then call {@link #abort()} instead of closing.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+    private static final Logger LOG = Logger.getLogger(S3MultipartOutputStream.class.getName());
+
+    // S3's minimum for all but the last part
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final int buffers;
+    private final ExecutorService uploads;
+    private final BlockingQueue<byte[]> free;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] current;
+    private int position;
+    private int allocated;
+    private String uploadId;
+    private volatile Throwable failure;
+    private boolean closed;
+    private boolean ownsClient;
+
+    /**
+     * @param buffers
+     *            Parts to hold in memory (at least 2); parts are uploaded on
+     *            <code>buffers - 1</code> threads.
+     */
+    public S3MultipartOutputStream(AmazonS3 s3, String bucket, String key, int partSize, int buffers) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Parts must be at least " + MIN_PART_SIZE + " bytes");
+        }
+
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least 2 buffers are needed");
+        }
+
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.buffers = buffers;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.uploads = Executors.newFixedThreadPool(buffers - 1, r -> {
+            Thread thread = new Thread(r, "s3-upload-" + key);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.current = new byte[partSize];
+        allocated = 1;
+    }
+
+    /**
+     * Opens a stream with its own client, configured with S3A's settings:
+     * <code>fs.s3a.endpoint</code> (e.g. a local S3-compatible server),
+     * <code>fs.s3a.endpoint.region</code>, <code>fs.s3a.path.style.access</code>
+     * and <code>fs.s3a.access.key</code> / <code>fs.s3a.secret.key</code>
+     * (otherwise the default AWS credential chain). The client is shut down
+     * when the stream is closed.
+     */
+    public static S3MultipartOutputStream open(Configuration conf, String bucket, String key, int partSize,
+                                               int buffers) {
+        S3MultipartOutputStream out = new S3MultipartOutputStream(client(conf), bucket, key, partSize, buffers);
+        out.ownsClient = true;
+
+        return out;
+    }
+
+    private static AmazonS3 client(Configuration conf) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withPathStyleAccessEnabled(conf.getBoolean("fs.s3a.path.style.access", false));
+        String endpoint = conf.getTrimmed("fs.s3a.endpoint", "");
+        String region = conf.getTrimmed("fs.s3a.endpoint.region", "us-east-1");
+
+        if (!endpoint.isEmpty()) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        } else {
+            builder.withRegion(region).withForceGlobalBucketAccessEnabled(true);
+        }
+
+        String accessKey = conf.getTrimmed("fs.s3a.access.key", "");
+
+        if (!accessKey.isEmpty()) {
+            builder.withCredentials(new AWSStaticCredentialsProvider(
+                    new BasicAWSCredentials(accessKey, conf.getTrimmed("fs.s3a.secret.key", ""))));
+        }
+
+        return builder.build();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == partSize) {
+            submit();
+        }
+
+        current[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (position == partSize) {
+                submit();
+            }
+
+            int n = Math.min(len, partSize - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to upload part of s3://" + bucket + "/" + key, failure);
+        }
+    }
+
+    /**
+     * Starts uploading the current buffer and moves on to a free one.
+     */
+    private void submit() throws IOException {
+        checkFailure();
+
+        if (uploadId == null) {
+            uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        }
+
+        byte[] data = current;
+        int length = position;
+        int partNumber = parts.size() + 1;
+
+        parts.add(uploads.submit(() -> {
+            try {
+                return s3.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(new ByteArrayInputStream(data, 0, length)))
+                        .getPartETag();
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                free.add(data);
+            }
+        }));
+
+        position = 0;
+
+        if (free.isEmpty() && allocated < buffers) {
+            current = new byte[partSize];
+            allocated++;
+        } else {
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for an upload");
+            }
+        }
+    }
+
+    /**
+     * Parts can't be smaller than the minimum, so nothing is sent until the
+     * current part is full.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            if (uploadId == null) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(position);
+
+                s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(current, 0, position), metadata));
+                return;
+            }
+
+            if (position > 0) {
+                submit();
+            }
+
+            List<PartETag> etags = new ArrayList<>();
+
+            for (Future<PartETag> part : parts) {
+                etags.add(part.get());
+            }
+
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+        } catch (IOException | RuntimeException e) {
+            abortUpload();
+            throw e;
+        } catch (ExecutionException e) {
+            abortUpload();
+            throw new IOException("Failed to upload part of s3://" + bucket + "/" + key, e.getCause());
+        } catch (InterruptedException e) {
+            abortUpload();
+            throw new InterruptedIOException("Interrupted while waiting for uploads to s3://" + bucket + "/" + key);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Discards everything written instead of completing the object: nothing
+     * is created, and parts already uploaded are deleted.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            abortUpload();
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        uploads.shutdownNow();
+        current = null;
+        free.clear();
+
+        if (ownsClient) {
+            s3.shutdown();
+        }
+    }
+
+    private void abortUpload() {
+        if (uploadId == null) {
+            return;
+        }
+
+        uploads.shutdownNow();
+
+        try {
+            // parts still uploading would outlive the abort
+            uploads.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to abort the upload to s3://" + bucket + "/" + key + " (" + uploadId + ")", e);
+        }
+    }
+}
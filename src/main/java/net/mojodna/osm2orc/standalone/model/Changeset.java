@@ -1,8 +1,6 @@
 package net.mojodna.osm2orc.standalone.model;
 
 
-import org.openstreetmap.osmosis.core.domain.common.TimestampContainer;
-
 import java.util.HashMap;
 import java.util.Map;
 
@@ -23,8 +21,8 @@ public class Changeset {
     public static final String TAG = "tag";
 
     private long id;
-    private TimestampContainer createdAt;
-    private TimestampContainer closedAt;
+    private long createdAt;
+    private long closedAt;
     private boolean open;
     private long numChanges;
     private String user;
@@ -36,7 +34,13 @@ public class Changeset {
     private long commentsCount;
     private Map<String, String> tags = new HashMap<>();
 
-    public Changeset(long id, TimestampContainer createdAt, TimestampContainer closedAt,
+    /**
+     * @param createdAt
+     *            Epoch milliseconds, or Timestamps.NONE.
+     * @param closedAt
+     *            Epoch milliseconds, or Timestamps.NONE.
+     */
+    public Changeset(long id, long createdAt, long closedAt,
                      boolean open, long numChanges, String user,
                      Long uid, String minLat, String maxLat,
                      String minLon, String maxLon, long commentsCount) {
@@ -58,11 +62,17 @@ public class Changeset {
         return id;
     }
 
-    public TimestampContainer getCreatedAt() {
+    /**
+     * @return Epoch milliseconds, or Timestamps.NONE if absent.
+     */
+    public long getCreatedAt() {
         return createdAt;
     }
 
-    public TimestampContainer getClosedAt() {
+    /**
+     * @return Epoch milliseconds, or Timestamps.NONE if absent.
+     */
+    public long getClosedAt() {
         return closedAt;
     }
 
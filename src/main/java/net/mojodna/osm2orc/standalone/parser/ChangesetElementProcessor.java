@@ -2,7 +2,7 @@ package net.mojodna.osm2orc.standalone.parser;
 
 
 import net.mojodna.osm2orc.standalone.model.Changeset;
-import org.openstreetmap.osmosis.core.domain.common.TimestampContainer;
+import net.mojodna.osm2orc.util.Timestamps;
 import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
 import org.openstreetmap.osmosis.xml.common.BaseElementProcessor;
 import org.openstreetmap.osmosis.xml.common.ElementProcessor;
@@ -26,10 +26,8 @@ public class ChangesetElementProcessor extends BaseElementProcessor implements T
     @Override
     public void begin(Attributes attributes) {
         long id;
-        String createdAtStr;
-        String closedAtStr;
-        TimestampContainer createdAt = null;
-        TimestampContainer closedAt = null;
+        long createdAt;
+        long closedAt;
         boolean open;
         long numChanges;
         String user;
@@ -43,23 +41,23 @@ public class ChangesetElementProcessor extends BaseElementProcessor implements T
         id = Long.parseLong(attributes.getValue(Changeset.ID));
 
         // Created / closed at timestamps are not guaranteed.
-        createdAtStr = attributes.getValue(Changeset.CREATED_AT);
-        closedAtStr = attributes.getValue(Changeset.CLOSED_AT);
-        if (createdAtStr != null) {
-            createdAt = createTimestampContainer(createdAtStr);
-        }
-        if (closedAtStr != null) {
-            closedAt = createTimestampContainer(closedAtStr);
-        }
+        createdAt = Timestamps.parse(attributes.getValue(Changeset.CREATED_AT));
+        closedAt = Timestamps.parse(attributes.getValue(Changeset.CLOSED_AT));
 
         open = attributes.getValue(Changeset.OPEN).equals("true");
         numChanges = Long.parseLong(attributes.getValue(Changeset.NUM_CHANGES));
         user = attributes.getValue(Changeset.USER);
 
-        try {
-            uid = Long.parseLong(attributes.getValue(Changeset.UID));
-        } catch (Exception e) {
-            uid = null;
+        String uidStr = attributes.getValue(Changeset.UID);
+        uid = null;
+
+        // anonymous changesets have no uid, which shouldn't cost an exception each
+        if (uidStr != null) {
+            try {
+                uid = Long.parseLong(uidStr);
+            } catch (NumberFormatException e) {
+                // malformed uids are stored as null
+            }
         }
 
         minLat = attributes.getValue(Changeset.MIN_LAT);
@@ -0,0 +1,178 @@
+package net.mojodna.osm2orc.standalone.parser;
+
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.util.Timestamps;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses osmChange (.osc) documents, as published by replication, into an
+ * EntityHandler: every created, modified or deleted entity becomes a version,
+ * with deletions marked invisible. Missing attributes get the same defaults
+ * as PbfDecoder's.
+ */
+public class OsmChangeHandler extends DefaultHandler {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final EntityHandler handler;
+    private boolean root;
+    private boolean visible = true;
+    private long entities;
+
+    public OsmChangeHandler(EntityHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return The number of entities parsed so far.
+     */
+    public long getEntities() {
+        return entities;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        if (!root) {
+            if (!qName.equals("osmChange")) {
+                throw new SAXException("This does not appear to be an osmChange file.");
+            }
+
+            root = true;
+            return;
+        }
+
+        try {
+            switch (qName) {
+                case "create":
+                case "modify":
+                    visible = true;
+                    break;
+
+                case "delete":
+                    visible = false;
+                    break;
+
+                case "node":
+                    startEntity(OsmType.NODE, attributes);
+
+                    String lat = attributes.getValue("lat");
+                    String lon = attributes.getValue("lon");
+
+                    if (lat != null && lon != null) {
+                        handler.setLocation(nanodegrees(lat), nanodegrees(lon));
+                    }
+
+                    break;
+
+                case "way":
+                    startEntity(OsmType.WAY, attributes);
+                    break;
+
+                case "relation":
+                    startEntity(OsmType.RELATION, attributes);
+                    break;
+
+                case "tag":
+                    byte[] key = bytes(attributes.getValue("k"));
+                    byte[] value = bytes(attributes.getValue("v"));
+
+                    handler.addTag(key, 0, key.length, value, 0, value.length);
+                    break;
+
+                case "nd":
+                    handler.addNodeRef(Long.parseLong(attributes.getValue("ref")));
+                    break;
+
+                case "member":
+                    byte[] role = bytes(attributes.getValue("role"));
+
+                    handler.addMember(OsmType.valueOf(attributes.getValue("type").toUpperCase()),
+                            Long.parseLong(attributes.getValue("ref")), role, 0, role.length);
+                    break;
+
+                default:
+                    // e.g. bounds
+            }
+        } catch (IOException e) {
+            throw new SAXException(e);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new SAXException("Invalid " + qName + " element", e);
+        }
+    }
+
+    private void startEntity(OsmType type, Attributes attributes) throws IOException {
+        byte[] user = bytes(attributes.getValue("user"));
+        long timestamp = Timestamps.parse(attributes.getValue("timestamp"));
+
+        handler.startEntity(type,
+                Long.parseLong(attributes.getValue("id")),
+                longValue(attributes.getValue("version"), -1),
+                timestamp != Timestamps.NONE ? timestamp : 0,
+                longValue(attributes.getValue("changeset"), 0),
+                longValue(attributes.getValue("uid"), 0),
+                user, 0, user.length, visible);
+
+        entities++;
+    }
+
+    private static long longValue(String value, long defaultValue) {
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : EMPTY;
+    }
+
+    /**
+     * Parses a coordinate in decimal degrees exactly, truncating beyond
+     * nanodegrees.
+     */
+    static long nanodegrees(String value) {
+        int i = 0;
+        boolean negative = false;
+
+        if (value.startsWith("-")) {
+            negative = true;
+            i++;
+        }
+
+        long result = 0;
+        int scale = -1;
+        boolean digits = false;
+
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+
+                if (scale < 9) {
+                    result = result * 10 + (c - '0');
+
+                    if (scale >= 0) {
+                        scale++;
+                    }
+                }
+            } else {
+                throw new NumberFormatException("Invalid coordinate: " + value);
+            }
+        }
+
+        if (!digits) {
+            throw new NumberFormatException("Invalid coordinate: " + value);
+        }
+
+        for (scale = Math.max(scale, 0); scale < 9; scale++) {
+            result *= 10;
+        }
+
+        return negative ? -result : result;
+    }
+}
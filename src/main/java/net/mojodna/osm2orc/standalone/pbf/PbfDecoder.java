@@ -0,0 +1,952 @@
+package net.mojodna.osm2orc.standalone.pbf;
+
+import net.mojodna.osm2orc.orc.EntityHandler;
+import net.mojodna.osm2orc.orc.OsmType;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes OSM PBF files (see https://wiki.openstreetmap.org/wiki/PBF_Format)
+ * straight into an {@link EntityHandler}. The protobuf wire format is walked
+ * in place: blocks are inflated into a reused buffer, strings are passed as
+ * ranges of their block's string table and packed fields (DenseNodes, way
+ * refs, relation members) are delta-decoded as they're read, so nothing is
+ * allocated per entity.
+ */
+public class PbfDecoder {
+    // spec limits, which guard against reading garbage as lengths
+    private static final int MAX_BLOB_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<>(Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes", "HistoricalInformation"));
+
+    private static final OsmType[] MEMBER_TYPES = {OsmType.NODE, OsmType.WAY, OsmType.RELATION};
+
+    private final DataInputStream input;
+    private final EntityHandler handler;
+    private final Inflater inflater = new Inflater();
+
+    // the current blob (header, then data) and its decompressed contents
+    private byte[] blob = new byte[64 * 1024];
+    private byte[] inflated = new byte[1024 * 1024];
+    private byte[] data;
+    private String blobType;
+    private int dataStart;
+    private int dataEnd;
+    private PbfHeader header;
+
+    // per-block state
+    private int[] stringStarts = new int[1024];
+    private int[] stringLengths = new int[1024];
+    private int stringCount;
+    private int[] groupStarts = new int[16];
+    private int[] groupEnds = new int[16];
+    private int groupCount;
+    private long granularity;
+    private long dateGranularity;
+    private long latOffset;
+    private long lonOffset;
+
+    // per-entity Info
+    private long version;
+    private long timestamp;
+    private long changeset;
+    private long uid;
+    private int userSid;
+    private boolean visible;
+
+    private final Cursor message = new Cursor();
+    private final Cursor group = new Cursor();
+    private final Cursor entity = new Cursor();
+    private final Cursor info = new Cursor();
+    private final Cursor keys = new Cursor();
+    private final Cursor values = new Cursor();
+    private final Cursor ids = new Cursor();
+    private final Cursor lats = new Cursor();
+    private final Cursor lons = new Cursor();
+    private final Cursor versions = new Cursor();
+    private final Cursor timestamps = new Cursor();
+    private final Cursor changesets = new Cursor();
+    private final Cursor uids = new Cursor();
+    private final Cursor userSids = new Cursor();
+    private final Cursor visibles = new Cursor();
+    private final Cursor refs = new Cursor();
+    private final Cursor roles = new Cursor();
+    private final Cursor types = new Cursor();
+
+    /**
+     * A position within a message or packed field.
+     */
+    private static final class Cursor {
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        Cursor set(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.pos = start;
+            this.end = end;
+            return this;
+        }
+
+        void clear() {
+            pos = end = 0;
+        }
+
+        boolean hasNext() {
+            return pos < end;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw new IOException("Truncated varint");
+                }
+
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed varint");
+        }
+
+        long sint() throws IOException {
+            long value = varint();
+
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Reads a length prefix, checking that the value fits.
+         */
+        int length() throws IOException {
+            long length = varint();
+
+            if (length < 0 || length > end - pos) {
+                throw new IOException("Truncated field");
+            }
+
+            return (int) length;
+        }
+
+        /**
+         * Points another cursor at the length-delimited field that follows
+         * and moves past it.
+         */
+        void field(Cursor into) throws IOException {
+            int length = length();
+            into.set(buf, pos, pos + length);
+            pos += length;
+        }
+
+        String string() throws IOException {
+            int length = length();
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+
+            return value;
+        }
+
+        void skip(int wireType) throws IOException {
+            switch (wireType) {
+                case VARINT:
+                    varint();
+                    break;
+
+                case FIXED64:
+                    pos += 8;
+                    break;
+
+                case LENGTH_DELIMITED:
+                    pos += length();
+                    break;
+
+                case FIXED32:
+                    pos += 4;
+                    break;
+
+                default:
+                    throw new IOException("Unsupported wire type: " + wireType);
+            }
+        }
+    }
+
+    public PbfDecoder(InputStream input, EntityHandler handler) {
+        this.input = new DataInputStream(input);
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the OSMHeader block, which must come first.
+     */
+    public PbfHeader readHeader() throws IOException {
+        if (header != null) {
+            return header;
+        }
+
+        if (!readBlob() || !blobType.equals("OSMHeader")) {
+            throw new IOException("Input doesn't start with an OSMHeader block");
+        }
+
+        header = decodeHeader(message.set(data, dataStart, dataEnd));
+
+        for (String feature : header.requiredFeatures) {
+            if (!SUPPORTED_FEATURES.contains(feature)) {
+                throw new IOException("Unsupported required feature: " + feature);
+            }
+        }
+
+        return header;
+    }
+
+    /**
+     * Decodes the remaining blocks, passing their entities to the handler.
+     */
+    public void decode() throws IOException {
+        readHeader();
+
+        try {
+            while (readBlob()) {
+                // e.g. a batch cancelling conversions after a failure
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while decoding");
+                }
+
+                // other block types are reserved for extensions
+                if (blobType.equals("OSMData")) {
+                    decodeBlock();
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads the next blob, leaving its decompressed contents in
+     * <code>data</code>.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean readBlob() throws IOException {
+        int b = input.read();
+
+        if (b < 0) {
+            return false;
+        }
+
+        int headerLength = b << 24 | input.readUnsignedByte() << 16 | input.readUnsignedByte() << 8
+                | input.readUnsignedByte();
+
+        if (headerLength < 0 || headerLength > MAX_BLOB_HEADER_SIZE) {
+            throw new IOException("Invalid BlobHeader length: " + headerLength);
+        }
+
+        input.readFully(blob, 0, headerLength);
+
+        // BlobHeader
+        Cursor c = message.set(blob, 0, headerLength);
+        int dataSize = -1;
+        blobType = null;
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    blobType = c.string();
+                    break;
+
+                case 3:
+                    dataSize = (int) c.varint();
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        if (blobType == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+            throw new IOException("Invalid BlobHeader");
+        }
+
+        if (blob.length < dataSize) {
+            blob = new byte[Math.max(dataSize, blob.length * 2)];
+        }
+
+        input.readFully(blob, 0, dataSize);
+
+        // Blob
+        c = message.set(blob, 0, dataSize);
+        int rawSize = -1;
+        int zlibStart = -1;
+        int zlibLength = 0;
+        data = null;
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    // raw
+                    int length = c.length();
+                    data = blob;
+                    dataStart = c.pos;
+                    dataEnd = c.pos + length;
+                    c.pos = dataEnd;
+                    break;
+
+                case 2:
+                    rawSize = (int) c.varint();
+                    break;
+
+                case 3:
+                    zlibLength = c.length();
+                    zlibStart = c.pos;
+                    c.pos += zlibLength;
+                    break;
+
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    throw new IOException("Unsupported blob compression (only zlib is supported)");
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        if (zlibStart >= 0) {
+            if (rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+                throw new IOException("Invalid Blob raw_size: " + rawSize);
+            }
+
+            inflate(zlibStart, zlibLength, rawSize);
+        } else if (data == null) {
+            throw new IOException("Empty Blob");
+        }
+
+        return true;
+    }
+
+    private void inflate(int start, int length, int rawSize) throws IOException {
+        if (inflated.length < rawSize) {
+            inflated = new byte[Math.max(rawSize, inflated.length * 2)];
+        }
+
+        inflater.reset();
+        inflater.setInput(blob, start, length);
+
+        int size = 0;
+
+        try {
+            while (size < rawSize) {
+                int n = inflater.inflate(inflated, size, rawSize - size);
+
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zlib data", e);
+        }
+
+        if (size != rawSize) {
+            throw new IOException("Blob inflated to " + size + " bytes rather than " + rawSize);
+        }
+
+        data = inflated;
+        dataStart = 0;
+        dataEnd = rawSize;
+    }
+
+    private static PbfHeader decodeHeader(Cursor c) throws IOException {
+        PbfHeader header = new PbfHeader();
+        Cursor bbox = new Cursor();
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    c.field(bbox);
+                    header.hasBounds = true;
+
+                    while (bbox.hasNext()) {
+                        int field = (int) bbox.varint();
+                        double value = bbox.sint() * 1e-9;
+
+                        switch (field >>> 3) {
+                            case 1:
+                                header.left = value;
+                                break;
+
+                            case 2:
+                                header.right = value;
+                                break;
+
+                            case 3:
+                                header.top = value;
+                                break;
+
+                            case 4:
+                                header.bottom = value;
+                                break;
+                        }
+                    }
+
+                    break;
+
+                case 4:
+                    header.requiredFeatures.add(c.string());
+                    break;
+
+                case 5:
+                    header.optionalFeatures.add(c.string());
+                    break;
+
+                case 16:
+                    header.writingProgram = c.string();
+                    break;
+
+                case 17:
+                    header.source = c.string();
+                    break;
+
+                case 32:
+                    header.replicationTimestamp = c.varint() * 1000;
+                    break;
+
+                case 33:
+                    header.replicationSequenceNumber = c.varint();
+                    break;
+
+                case 34:
+                    header.replicationBaseUrl = c.string();
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        return header;
+    }
+
+    private void decodeBlock() throws IOException {
+        stringCount = 0;
+        groupCount = 0;
+        granularity = 100;
+        dateGranularity = 1000;
+        latOffset = 0;
+        lonOffset = 0;
+
+        // groups are decoded once the whole block has been read, since
+        // granularities and offsets follow them
+        Cursor c = message.set(data, dataStart, dataEnd);
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    c.field(group);
+                    decodeStringTable(group);
+                    break;
+
+                case 2:
+                    c.field(group);
+                    addGroup(group.pos, group.end);
+                    break;
+
+                case 17:
+                    granularity = c.varint();
+                    break;
+
+                case 18:
+                    dateGranularity = c.varint();
+                    break;
+
+                case 19:
+                    latOffset = c.varint();
+                    break;
+
+                case 20:
+                    lonOffset = c.varint();
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        for (int i = 0; i < groupCount; i++) {
+            decodeGroup(group.set(data, groupStarts[i], groupEnds[i]));
+        }
+    }
+
+    private void decodeStringTable(Cursor c) throws IOException {
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            if (key >>> 3 != 1) {
+                c.skip(key & 7);
+                continue;
+            }
+
+            if (stringCount == stringStarts.length) {
+                stringStarts = Arrays.copyOf(stringStarts, stringCount * 2);
+                stringLengths = Arrays.copyOf(stringLengths, stringCount * 2);
+            }
+
+            int length = c.length();
+            stringStarts[stringCount] = c.pos;
+            stringLengths[stringCount++] = length;
+            c.pos += length;
+        }
+    }
+
+    private void addGroup(int start, int end) {
+        if (groupCount == groupStarts.length) {
+            groupStarts = Arrays.copyOf(groupStarts, groupCount * 2);
+            groupEnds = Arrays.copyOf(groupEnds, groupCount * 2);
+        }
+
+        groupStarts[groupCount] = start;
+        groupEnds[groupCount++] = end;
+    }
+
+    private void decodeGroup(Cursor c) throws IOException {
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    c.field(entity);
+                    decodeNode(entity);
+                    break;
+
+                case 2:
+                    c.field(entity);
+                    decodeDenseNodes(entity);
+                    break;
+
+                case 3:
+                    c.field(entity);
+                    decodeWay(entity);
+                    break;
+
+                case 4:
+                    c.field(entity);
+                    decodeRelation(entity);
+                    break;
+
+                default:
+                    // including ChangeSet, which is unused
+                    c.skip(key & 7);
+            }
+        }
+    }
+
+    private void resetInfo() {
+        version = -1;
+        timestamp = 0;
+        changeset = 0;
+        uid = 0;
+        userSid = 0;
+        visible = true;
+    }
+
+    private void decodeInfo(Cursor c) throws IOException {
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    version = (int) c.varint();
+                    break;
+
+                case 2:
+                    timestamp = c.varint() * dateGranularity;
+                    break;
+
+                case 3:
+                    changeset = c.varint();
+                    break;
+
+                case 4:
+                    uid = (int) c.varint();
+                    break;
+
+                case 5:
+                    userSid = (int) c.varint();
+                    break;
+
+                case 6:
+                    visible = c.varint() != 0;
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+    }
+
+    private void startEntity(OsmType type, long id) throws IOException {
+        checkString(userSid);
+
+        handler.startEntity(type, id, version, timestamp, changeset, uid,
+                data, stringStarts[userSid], stringLengths[userSid], visible);
+    }
+
+    private void checkString(int index) throws IOException {
+        if (index < 0 || index >= stringCount) {
+            throw new IOException("String table index out of range: " + index);
+        }
+    }
+
+    private void addTag(int key, int value) throws IOException {
+        checkString(key);
+        checkString(value);
+
+        handler.addTag(data, stringStarts[key], stringLengths[key], data, stringStarts[value], stringLengths[value]);
+    }
+
+    private void addTags() throws IOException {
+        while (keys.hasNext()) {
+            if (!values.hasNext()) {
+                throw new IOException("Mismatched tag keys and values");
+            }
+
+            addTag((int) keys.varint(), (int) values.varint());
+        }
+    }
+
+    private void decodeNode(Cursor c) throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+
+        keys.clear();
+        values.clear();
+        resetInfo();
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    id = c.sint();
+                    break;
+
+                case 2:
+                    c.field(keys);
+                    break;
+
+                case 3:
+                    c.field(values);
+                    break;
+
+                case 4:
+                    c.field(info);
+                    decodeInfo(info);
+                    break;
+
+                case 8:
+                    lat = c.sint();
+                    break;
+
+                case 9:
+                    lon = c.sint();
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        startEntity(OsmType.NODE, id);
+
+        // deleted nodes (in history files) have no location
+        if (visible) {
+            handler.setLocation(latOffset + granularity * lat, lonOffset + granularity * lon);
+        }
+
+        addTags();
+    }
+
+    private void decodeDenseNodes(Cursor c) throws IOException {
+        ids.clear();
+        lats.clear();
+        lons.clear();
+        keys.clear();
+        versions.clear();
+        timestamps.clear();
+        changesets.clear();
+        uids.clear();
+        userSids.clear();
+        visibles.clear();
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    c.field(ids);
+                    break;
+
+                case 5:
+                    c.field(info);
+                    decodeDenseInfo(info);
+                    break;
+
+                case 8:
+                    c.field(lats);
+                    break;
+
+                case 9:
+                    c.field(lons);
+                    break;
+
+                case 10:
+                    // keys_vals: key, value pairs, with each node's ended by 0
+                    c.field(keys);
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        // everything but versions and visibility is delta-coded
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        long lastTimestamp = 0;
+        long lastChangeset = 0;
+        long lastUid = 0;
+        int lastUserSid = 0;
+
+        while (ids.hasNext()) {
+            id += ids.sint();
+            lat += lats.sint();
+            lon += lons.sint();
+
+            resetInfo();
+
+            if (versions.hasNext()) {
+                lastTimestamp += timestamps.sint();
+                lastChangeset += changesets.sint();
+                lastUid += (int) uids.sint();
+                lastUserSid += (int) userSids.sint();
+
+                version = (int) versions.varint();
+                timestamp = lastTimestamp * dateGranularity;
+                changeset = lastChangeset;
+                uid = lastUid;
+                userSid = lastUserSid;
+            }
+
+            if (visibles.hasNext()) {
+                visible = visibles.varint() != 0;
+            }
+
+            startEntity(OsmType.NODE, id);
+
+            if (visible) {
+                handler.setLocation(latOffset + granularity * lat, lonOffset + granularity * lon);
+            }
+
+            while (keys.hasNext()) {
+                int k = (int) keys.varint();
+
+                if (k == 0) {
+                    break;
+                }
+
+                if (!keys.hasNext()) {
+                    throw new IOException("Truncated DenseNodes keys_vals");
+                }
+
+                addTag(k, (int) keys.varint());
+            }
+        }
+    }
+
+    private void decodeDenseInfo(Cursor c) throws IOException {
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    c.field(versions);
+                    break;
+
+                case 2:
+                    c.field(timestamps);
+                    break;
+
+                case 3:
+                    c.field(changesets);
+                    break;
+
+                case 4:
+                    c.field(uids);
+                    break;
+
+                case 5:
+                    c.field(userSids);
+                    break;
+
+                case 6:
+                    c.field(visibles);
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+    }
+
+    private void decodeWay(Cursor c) throws IOException {
+        long id = 0;
+
+        keys.clear();
+        values.clear();
+        refs.clear();
+        resetInfo();
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    id = c.varint();
+                    break;
+
+                case 2:
+                    c.field(keys);
+                    break;
+
+                case 3:
+                    c.field(values);
+                    break;
+
+                case 4:
+                    c.field(info);
+                    decodeInfo(info);
+                    break;
+
+                case 8:
+                    c.field(refs);
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        startEntity(OsmType.WAY, id);
+        addTags();
+
+        long ref = 0;
+
+        while (refs.hasNext()) {
+            ref += refs.sint();
+            handler.addNodeRef(ref);
+        }
+    }
+
+    private void decodeRelation(Cursor c) throws IOException {
+        long id = 0;
+
+        keys.clear();
+        values.clear();
+        roles.clear();
+        refs.clear();
+        types.clear();
+        resetInfo();
+
+        while (c.hasNext()) {
+            int key = (int) c.varint();
+
+            switch (key >>> 3) {
+                case 1:
+                    id = c.varint();
+                    break;
+
+                case 2:
+                    c.field(keys);
+                    break;
+
+                case 3:
+                    c.field(values);
+                    break;
+
+                case 4:
+                    c.field(info);
+                    decodeInfo(info);
+                    break;
+
+                case 8:
+                    c.field(roles);
+                    break;
+
+                case 9:
+                    c.field(refs);
+                    break;
+
+                case 10:
+                    c.field(types);
+                    break;
+
+                default:
+                    c.skip(key & 7);
+            }
+        }
+
+        startEntity(OsmType.RELATION, id);
+        addTags();
+
+        long ref = 0;
+
+        while (refs.hasNext()) {
+            ref += refs.sint();
+
+            int role = (int) roles.varint();
+            int type = (int) types.varint();
+
+            checkString(role);
+
+            if (type < 0 || type >= MEMBER_TYPES.length) {
+                throw new IOException("Unsupported member type: " + type);
+            }
+
+            handler.addMember(MEMBER_TYPES[type], ref, data, stringStarts[role], stringLengths[role]);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.mojodna.osm2orc.standalone.pbf;
+
+import net.mojodna.osm2orc.util.Timestamps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The contents of a PBF's OSMHeader block.
+ */
+public class PbfHeader {
+    final List<String> requiredFeatures = new ArrayList<>();
+    final List<String> optionalFeatures = new ArrayList<>();
+    boolean hasBounds;
+    double left;
+    double right;
+    double top;
+    double bottom;
+    String writingProgram;
+    String source;
+    long replicationTimestamp = Timestamps.NONE;
+    long replicationSequenceNumber = -1;
+    String replicationBaseUrl;
+
+    public List<String> getRequiredFeatures() {
+        return requiredFeatures;
+    }
+
+    public List<String> getOptionalFeatures() {
+        return optionalFeatures;
+    }
+
+    public boolean hasBounds() {
+        return hasBounds;
+    }
+
+    public double getLeft() {
+        return left;
+    }
+
+    public double getRight() {
+        return right;
+    }
+
+    public double getTop() {
+        return top;
+    }
+
+    public double getBottom() {
+        return bottom;
+    }
+
+    public String getWritingProgram() {
+        return writingProgram;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return When the replication state the file was built from was
+     *         published, in milliseconds since the epoch, or Timestamps.NONE.
+     */
+    public long getReplicationTimestamp() {
+        return replicationTimestamp;
+    }
+
+    /**
+     * @return The sequence number of that state, or -1.
+     */
+    public long getReplicationSequenceNumber() {
+        return replicationSequenceNumber;
+    }
+
+    /**
+     * @return Where diffs following that state are published, or null.
+     */
+    public String getReplicationBaseUrl() {
+        return replicationBaseUrl;
+    }
+}
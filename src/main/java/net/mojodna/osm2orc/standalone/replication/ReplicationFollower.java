@@ -0,0 +1,374 @@
+package net.mojodna.osm2orc.standalone.replication;
+
+import net.mojodna.osm2orc.orc.OsmRowWriter;
+import net.mojodna.osm2orc.orc.OsmSchema;
+import net.mojodna.osm2orc.standalone.io.Outputs;
+import net.mojodna.osm2orc.standalone.parser.OsmChangeHandler;
+import net.mojodna.osm2orc.util.Timestamps;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.orc.OrcConf;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Follows a local replication directory (as written by osmosis or
+ * pyosmium: <code>state.txt</code> plus <code>000/004/321.osc.gz</code> and
+ * <code>000/004/321.state.txt</code> per sequence), converting diffs to ORC
+ * as they land. Each output covers a run of sequences
+ * (<code>000004321-000004325.orc</code>) spanning at least the minimum
+ * interval of replication time, so that minutely diffs don't turn into a
+ * file per minute; with no minimum, each diff gets its own file.
+ *
+ * Progress is checkpointed in the output directory's <code>state.txt</code>
+ * after each file, so a restarted follower resumes after the last complete
+ * file. Files starting after the checkpoint were left by a run that crashed
+ * while writing them and are deleted first, since the resumed batch may cover
+ * a different range of sequences.
+ */
+public class ReplicationFollower {
+    private static final Logger LOG = Logger.getLogger(ReplicationFollower.class.getName());
+    private static final Pattern OUTPUT_NAME = Pattern.compile("(\\d{9,})-\\d{9,}\\.orc");
+
+    private final Path replicationDirectory;
+    private final String outputDirectory;
+    private final OsmSchema schema = new OsmSchema();
+    private final SAXParser parser;
+    private Configuration baseConf;
+    private long startSequence = -1;
+    private long minInterval;
+    private long pollInterval = 10000;
+
+    public ReplicationFollower(String replicationDirectory, String outputDirectory) throws IOException {
+        this.replicationDirectory = Paths.get(replicationDirectory);
+        this.outputDirectory = outputDirectory;
+
+        try {
+            this.parser = SAXParserFactory.newInstance().newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Rows are written like OsmPbf2Orc's (without history columns, since
+     * diffs aren't ordered by id and version), so type, ref and promoted key
+     * options are set here.
+     */
+    public OsmSchema getSchema() {
+        return schema;
+    }
+
+    public ReplicationFollower setConfiguration(Configuration conf) {
+        this.baseConf = conf;
+        return this;
+    }
+
+    /**
+     * Starts with this sequence when there's no checkpoint; by default, only
+     * diffs published after the replication directory's current state are
+     * converted.
+     */
+    public ReplicationFollower setStartSequence(long startSequence) {
+        this.startSequence = startSequence;
+        return this;
+    }
+
+    /**
+     * Batches consecutive diffs until they span <code>millis</code> of
+     * replication time (measured from the last converted state).
+     */
+    public ReplicationFollower setMinInterval(long millis) {
+        this.minInterval = millis;
+        return this;
+    }
+
+    /**
+     * How often to check the replication directory's state.
+     */
+    public ReplicationFollower setPollInterval(long millis) {
+        this.pollInterval = millis;
+        return this;
+    }
+
+    /**
+     * Converts diffs as they're published, until interrupted.
+     */
+    public void follow() throws IOException {
+        follow(false);
+    }
+
+    /**
+     * Converts everything published so far, including a final batch shorter
+     * than the minimum interval, then returns.
+     *
+     * @return The number of files written.
+     */
+    public int catchUp() throws IOException {
+        return follow(true);
+    }
+
+    private int follow(boolean once) throws IOException {
+        // set the active timezone to UTC to avoid unexpected conversions
+        TimeZone.setDefault(TimeZone.getTimeZone("Etc/UTC"));
+
+        Configuration conf = Outputs.configuration(baseConf, outputDirectory);
+        conf.setBoolean(OrcConf.BLOCK_PADDING.getAttribute(), false);
+        Outputs.configure(conf);
+        schema.configure(conf);
+
+        TypeDescription description = schema.createTypeDescription();
+        ReplicationState last = readCheckpoint(conf);
+
+        if (last == null) {
+            if (startSequence >= 0) {
+                last = new ReplicationState(startSequence - 1, sequenceTimestamp(startSequence - 1));
+            } else {
+                last = readState(replicationDirectory.resolve("state.txt"));
+            }
+        }
+
+        deleteIncomplete(conf, last.getSequenceNumber());
+
+        LOG.info("Following " + replicationDirectory + " from " + last);
+
+        int files = 0;
+
+        while (true) {
+            ReplicationState latest = readState(replicationDirectory.resolve("state.txt"));
+            long end = batchEnd(last, latest, once);
+
+            if (end > last.getSequenceNumber()) {
+                last = convert(conf, description, last.getSequenceNumber() + 1, end);
+                files++;
+                continue;
+            }
+
+            if (once) {
+                return files;
+            }
+
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for diffs");
+            }
+        }
+    }
+
+    /**
+     * The last sequence to include in the next file, or the last converted
+     * one if it's too early to write one.
+     */
+    private long batchEnd(ReplicationState last, ReplicationState latest, boolean once) throws IOException {
+        long from = last.getSequenceNumber();
+
+        if (latest.getSequenceNumber() <= from) {
+            return from;
+        }
+
+        long since = last.getTimestamp();
+
+        for (long end = from + 1; end <= latest.getSequenceNumber(); end++) {
+            long timestamp = end == latest.getSequenceNumber() ? latest.getTimestamp() : sequenceTimestamp(end);
+
+            if (since == Timestamps.NONE) {
+                // measure from the first diff
+                since = timestamp;
+            }
+
+            if (minInterval <= 0 || timestamp == Timestamps.NONE || timestamp - since >= minInterval) {
+                return end;
+            }
+        }
+
+        return once ? latest.getSequenceNumber() : from;
+    }
+
+    private long sequenceTimestamp(long sequence) throws IOException {
+        if (sequence < 0) {
+            return Timestamps.NONE;
+        }
+
+        try {
+            return readState(replicationDirectory.resolve(ReplicationState.path(sequence) + ".state.txt")).getTimestamp();
+        } catch (NoSuchFileException e) {
+            return Timestamps.NONE;
+        }
+    }
+
+    private static ReplicationState readState(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return ReplicationState.read(in);
+        }
+    }
+
+    private ReplicationState convert(Configuration conf, TypeDescription description, long first, long last)
+            throws IOException {
+        long start = System.nanoTime();
+        String output = String.format("%s/%09d-%09d.orc", outputDirectory, first, last);
+        ReplicationState state = new ReplicationState(last, sequenceTimestamp(last));
+
+        // a file left by an interrupted run is replaced
+        Writer writer = Outputs.createWriter(output,
+                OrcFile.writerOptions(conf).setSchema(description).overwrite(true), conf, null);
+        OsmChangeHandler handler;
+
+        try {
+            writer.addUserMetadata("osm.schema.version", ByteBuffer.wrap("0.6".getBytes()));
+            schema.writeMetadata(writer);
+
+            OsmRowWriter rows = new OsmRowWriter(writer, schema);
+            handler = new OsmChangeHandler(rows);
+
+            for (long sequence = first; sequence <= last; sequence++) {
+                Path diff = replicationDirectory.resolve(ReplicationState.path(sequence) + ".osc.gz");
+
+                try (InputStream in = new BufferedInputStream(new GZIPInputStream(Files.newInputStream(diff), 64 * 1024))) {
+                    parser.reset();
+                    parser.parse(new InputSource(in), handler);
+                } catch (SAXException e) {
+                    throw new IOException("Failed to parse " + diff, e);
+                }
+            }
+
+            rows.finish();
+
+            if (state.getTimestamp() != Timestamps.NONE) {
+                writer.addUserMetadata("replication_timestamp", ByteBuffer.wrap(Instant.ofEpochMilli(state.getTimestamp()).toString().getBytes()));
+            }
+
+            writer.addUserMetadata("replication_sequence_number", ByteBuffer.wrap(Long.toString(last).getBytes()));
+            writer.addUserMetadata("replication_first_sequence_number", ByteBuffer.wrap(Long.toString(first).getBytes()));
+
+            if (rows.isSorted()) {
+                writer.addUserMetadata("Sort.Type_then_ID", ByteBuffer.wrap("true".getBytes()));
+            }
+
+            writer.close();
+        } catch (Throwable t) {
+            Outputs.abort(writer);
+            throw t;
+        }
+
+        writeCheckpoint(conf, state);
+
+        LOG.info(String.format("Converted %d diff(s) (%d entities) to %s in %dms, up to %s", last - first + 1,
+                handler.getEntities(), output, (System.nanoTime() - start) / 1000000, state));
+
+        return state;
+    }
+
+    /**
+     * Deletes outputs covering sequences after <code>checkpoint</code>.
+     */
+    private void deleteIncomplete(Configuration conf, long checkpoint) throws IOException {
+        if (Outputs.isLocal(outputDirectory)) {
+            Path directory = Outputs.localPath(outputDirectory);
+
+            if (!Files.isDirectory(directory)) {
+                return;
+            }
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    if (firstSequence(file.getFileName().toString()) > checkpoint) {
+                        LOG.info("Deleting " + file + ", left incomplete by an earlier run");
+                        Files.delete(file);
+                    }
+                }
+            }
+
+            return;
+        }
+
+        org.apache.hadoop.fs.Path directory = new org.apache.hadoop.fs.Path(outputDirectory);
+        FileSystem fs = directory.getFileSystem(conf);
+
+        if (!fs.exists(directory)) {
+            return;
+        }
+
+        for (FileStatus file : fs.listStatus(directory)) {
+            if (firstSequence(file.getPath().getName()) > checkpoint) {
+                LOG.info("Deleting " + file.getPath() + ", left incomplete by an earlier run");
+                fs.delete(file.getPath(), false);
+            }
+        }
+    }
+
+    /**
+     * @return The first sequence an output file covers, or -1 if the name
+     *         isn't an output's.
+     */
+    private static long firstSequence(String name) {
+        Matcher matcher = OUTPUT_NAME.matcher(name);
+
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private ReplicationState readCheckpoint(Configuration conf) throws IOException {
+        if (Outputs.isLocal(outputDirectory)) {
+            Path checkpoint = Outputs.localPath(outputDirectory).resolve("state.txt");
+
+            return Files.exists(checkpoint) ? readState(checkpoint) : null;
+        }
+
+        org.apache.hadoop.fs.Path checkpoint = new org.apache.hadoop.fs.Path(outputDirectory, "state.txt");
+        FileSystem fs = checkpoint.getFileSystem(conf);
+
+        if (!fs.exists(checkpoint)) {
+            return null;
+        }
+
+        try (InputStream in = fs.open(checkpoint)) {
+            return ReplicationState.read(in);
+        }
+    }
+
+    private void writeCheckpoint(Configuration conf, ReplicationState state) throws IOException {
+        if (Outputs.isLocal(outputDirectory)) {
+            Path checkpoint = Outputs.localPath(outputDirectory).resolve("state.txt");
+            Path temporary = Outputs.localPath(outputDirectory).resolve("state.txt.tmp");
+
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                state.write(out);
+            }
+
+            Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+
+        org.apache.hadoop.fs.Path checkpoint = new org.apache.hadoop.fs.Path(outputDirectory, "state.txt");
+
+        try (OutputStream out = checkpoint.getFileSystem(conf).create(checkpoint, true)) {
+            state.write(out);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.mojodna.osm2orc.standalone.replication;
+
+import net.mojodna.osm2orc.util.Timestamps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Properties;
+
+/**
+ * A replication state (<code>state.txt</code>): the sequence number of the
+ * latest diff and when it was published.
+ */
+public class ReplicationState {
+    private final long sequenceNumber;
+    private final long timestamp;
+
+    /**
+     * @param timestamp
+     *            Epoch milliseconds, or Timestamps.NONE.
+     */
+    public ReplicationState(long sequenceNumber, long timestamp) {
+        this.sequenceNumber = sequenceNumber;
+        this.timestamp = timestamp;
+    }
+
+    public static ReplicationState read(InputStream in) throws IOException {
+        // state files are Java properties, with escaped colons
+        Properties properties = new Properties();
+        properties.load(in);
+
+        String sequenceNumber = properties.getProperty("sequenceNumber");
+
+        if (sequenceNumber == null) {
+            throw new IOException("Replication state has no sequenceNumber");
+        }
+
+        try {
+            return new ReplicationState(Long.parseLong(sequenceNumber.trim()),
+                    Timestamps.parse(properties.getProperty("timestamp", "").trim()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid replication sequenceNumber: " + sequenceNumber);
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+        if (timestamp != Timestamps.NONE) {
+            writer.write("timestamp=" + Instant.ofEpochMilli(timestamp).toString().replace(":", "\\:") + "\n");
+        }
+
+        writer.write("sequenceNumber=" + sequenceNumber + "\n");
+        writer.flush();
+    }
+
+    /**
+     * The path of a sequence's files relative to the replication directory,
+     * without an extension: 4321 is <code>000/004/321</code>.
+     */
+    public static String path(long sequenceNumber) {
+        String digits = String.format("%09d", sequenceNumber);
+
+        return digits.substring(0, 3) + "/" + digits.substring(3, 6) + "/" + digits.substring(6);
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return sequenceNumber + (timestamp != Timestamps.NONE ? " (" + Instant.ofEpochMilli(timestamp) + ")" : "");
+    }
+}
@@ -0,0 +1,129 @@
+package net.mojodna.osm2orc.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A set of non-negative ids which may be added to from many threads. Bits are
+ * stored in pages of 4M ids (512KB), which are allocated as ids within their
+ * range are first added.
+ */
+public class ConcurrentIdBitmap {
+    private static final int PAGE_BITS = 22;
+    // longs per page
+    private static final int PAGE_SIZE = 1 << (PAGE_BITS - 6);
+    // ids up to 2^42
+    private static final int MAX_PAGES = 1 << 20;
+
+    private volatile AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(1024);
+    private MemoryBudget budget;
+    private String purpose;
+
+    /**
+     * Reserves pages from a budget as they're allocated.
+     *
+     * @param purpose
+     *            What the set holds, for failure messages.
+     */
+    public void setMemoryBudget(MemoryBudget budget, String purpose) {
+        this.budget = budget;
+        this.purpose = purpose;
+    }
+
+    /**
+     * Adds an id to the set.
+     *
+     * @return true if the id wasn't already present.
+     */
+    public boolean add(long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative ids can't be tracked: " + id);
+        }
+
+        AtomicLongArray page = page(id >>> PAGE_BITS);
+        int index = (int) ((id >>> 6) & (PAGE_SIZE - 1));
+        long bit = 1L << (id & 63);
+
+        while (true) {
+            long word = page.get(index);
+
+            if ((word & bit) != 0) {
+                return false;
+            }
+
+            if (page.compareAndSet(index, word, word | bit)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(long id) {
+        if (id < 0) {
+            return false;
+        }
+
+        AtomicReferenceArray<AtomicLongArray> pages = this.pages;
+        long p = id >>> PAGE_BITS;
+
+        if (p >= pages.length()) {
+            return false;
+        }
+
+        AtomicLongArray page = pages.get((int) p);
+
+        return page != null && (page.get((int) ((id >>> 6) & (PAGE_SIZE - 1))) & (1L << (id & 63))) != 0;
+    }
+
+    private AtomicLongArray page(long p) {
+        if (p >= MAX_PAGES) {
+            throw new IllegalArgumentException("Id out of range: " + (p << PAGE_BITS));
+        }
+
+        AtomicReferenceArray<AtomicLongArray> pages = this.pages;
+
+        if (p >= pages.length()) {
+            pages = grow((int) p + 1);
+        }
+
+        AtomicLongArray page = pages.get((int) p);
+
+        if (page != null) {
+            return page;
+        }
+
+        synchronized (this) {
+            // the directory may have been replaced while waiting
+            pages = this.pages;
+            page = pages.get((int) p);
+
+            if (page == null) {
+                if (budget != null) {
+                    budget.reserve((long) PAGE_SIZE * Long.BYTES, purpose);
+                }
+
+                page = new AtomicLongArray(PAGE_SIZE);
+                pages.set((int) p, page);
+            }
+
+            return page;
+        }
+    }
+
+    private synchronized AtomicReferenceArray<AtomicLongArray> grow(int size) {
+        AtomicReferenceArray<AtomicLongArray> pages = this.pages;
+
+        if (size > pages.length()) {
+            AtomicReferenceArray<AtomicLongArray> grown =
+                    new AtomicReferenceArray<>(Math.max(size, pages.length() * 2));
+
+            for (int i = 0; i < pages.length(); i++) {
+                grown.set(i, pages.get(i));
+            }
+
+            this.pages = grown;
+            pages = grown;
+        }
+
+        return pages;
+    }
+}
@@ -0,0 +1,274 @@
+package net.mojodna.osm2orc.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A compressed set of ids, organized like a Roaring bitmap: ids are grouped by
+ * their high 48 bits, and each group's low 16 bits are kept in a sorted array
+ * while the group is sparse (up to 4096 ids, 2 bytes each) or a 65536-bit
+ * bitmap (8KB) once it's dense. Dense runs (e.g. node ids in a large extract)
+ * cost 1 bit per id and sparse ones 16.
+ *
+ * Additions in increasing order (as in sorted files) are appended without
+ * searching.
+ */
+public class IdSet {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+    private static final int CONTAINER_BYTES = BITMAP_WORDS * Long.BYTES;
+
+    private long[] keys = new long[16];
+    private char[][] arrays = new char[16][];
+    private long[][] bitmaps = new long[16][];
+    private int[] cardinalities = new int[16];
+    private int size;
+    private int last = -1;
+
+    private MemoryBudget budget;
+    private String purpose;
+
+    /**
+     * Reserves room for each group (as much as a bitmap would take) from a
+     * budget as groups are added.
+     *
+     * @param purpose
+     *            What the set holds, for failure messages.
+     */
+    public void setMemoryBudget(MemoryBudget budget, String purpose) {
+        this.budget = budget;
+        this.purpose = purpose;
+    }
+
+    /**
+     * @return The index of the group containing <code>key</code>, or
+     *         <code>-(insertion point) - 1</code>.
+     */
+    private int find(long key) {
+        if (last >= 0 && keys[last] == key) {
+            return last;
+        }
+
+        if (size == 0 || key > keys[size - 1]) {
+            return -size - 1;
+        }
+
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private int insert(int index, long key) {
+        if (budget != null) {
+            budget.reserve(CONTAINER_BYTES, purpose);
+        }
+
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            arrays = Arrays.copyOf(arrays, capacity);
+            bitmaps = Arrays.copyOf(bitmaps, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(arrays, index, arrays, index + 1, size - index);
+        System.arraycopy(bitmaps, index, bitmaps, index + 1, size - index);
+        System.arraycopy(cardinalities, index, cardinalities, index + 1, size - index);
+
+        keys[index] = key;
+        arrays[index] = new char[4];
+        bitmaps[index] = null;
+        cardinalities[index] = 0;
+        size++;
+
+        return index;
+    }
+
+    /**
+     * @return true if the id wasn't already present.
+     */
+    public boolean add(long id) {
+        long key = id >> 16;
+        char low = (char) id;
+        int i = find(key);
+
+        if (i < 0) {
+            i = insert(-i - 1, key);
+        }
+
+        last = i;
+
+        long[] bitmap = bitmaps[i];
+
+        if (bitmap != null) {
+            long bit = 1L << low;
+
+            if ((bitmap[low >>> 6] & bit) != 0) {
+                return false;
+            }
+
+            bitmap[low >>> 6] |= bit;
+            cardinalities[i]++;
+
+            return true;
+        }
+
+        char[] array = arrays[i];
+        int n = cardinalities[i];
+        int position = n == 0 || array[n - 1] < low ? -n - 1 : Arrays.binarySearch(array, 0, n, low);
+
+        if (position >= 0) {
+            return false;
+        }
+
+        position = -position - 1;
+
+        if (n == ARRAY_MAX) {
+            bitmap = new long[BITMAP_WORDS];
+
+            for (int j = 0; j < n; j++) {
+                bitmap[array[j] >>> 6] |= 1L << array[j];
+            }
+
+            bitmap[low >>> 6] |= 1L << low;
+            bitmaps[i] = bitmap;
+            arrays[i] = null;
+            cardinalities[i]++;
+
+            return true;
+        }
+
+        if (n == array.length) {
+            array = arrays[i] = Arrays.copyOf(array, Math.min(ARRAY_MAX, n * 2));
+        }
+
+        System.arraycopy(array, position, array, position + 1, n - position);
+        array[position] = low;
+        cardinalities[i]++;
+
+        return true;
+    }
+
+    public boolean contains(long id) {
+        int i = find(id >> 16);
+
+        if (i < 0) {
+            return false;
+        }
+
+        char low = (char) id;
+
+        if (bitmaps[i] != null) {
+            return (bitmaps[i][low >>> 6] & (1L << low)) != 0;
+        }
+
+        return Arrays.binarySearch(arrays[i], 0, cardinalities[i], low) >= 0;
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+
+        for (int i = 0; i < size; i++) {
+            cardinality += cardinalities[i];
+        }
+
+        return cardinality;
+    }
+
+    /**
+     * Visits ids in increasing order.
+     */
+    public void forEach(LongConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            long high = keys[i] << 16;
+
+            if (bitmaps[i] != null) {
+                long[] bitmap = bitmaps[i];
+
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bitmap[w];
+
+                    while (word != 0) {
+                        consumer.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] array = arrays[i];
+
+                for (int j = 0; j < cardinalities[i]; j++) {
+                    consumer.accept(high | array[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The ids in this set which aren't in <code>other</code>.
+     */
+    public IdSet andNot(IdSet other) {
+        IdSet difference = new IdSet();
+
+        forEach(id -> {
+            if (!other.contains(id)) {
+                difference.add(id);
+            }
+        });
+
+        return difference;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+
+        for (int i = 0; i < size; i++) {
+            out.writeLong(keys[i]);
+            out.writeInt(cardinalities[i]);
+
+            if (bitmaps[i] != null) {
+                for (long word : bitmaps[i]) {
+                    out.writeLong(word);
+                }
+            } else {
+                for (int j = 0; j < cardinalities[i]; j++) {
+                    out.writeChar(arrays[i][j]);
+                }
+            }
+        }
+    }
+
+    public static IdSet read(DataInput in) throws IOException {
+        IdSet set = new IdSet();
+        int size = in.readInt();
+
+        for (int i = 0; i < size; i++) {
+            set.insert(i, in.readLong());
+            int cardinality = in.readInt();
+            set.cardinalities[i] = cardinality;
+
+            // groups are stored as bitmaps once they outgrow arrays
+            if (cardinality > ARRAY_MAX) {
+                long[] bitmap = new long[BITMAP_WORDS];
+
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bitmap[w] = in.readLong();
+                }
+
+                set.bitmaps[i] = bitmap;
+                set.arrays[i] = null;
+            } else {
+                char[] array = new char[Math.max(4, cardinality)];
+
+                for (int j = 0; j < cardinality; j++) {
+                    array[j] = in.readChar();
+                }
+
+                set.arrays[i] = array;
+            }
+        }
+
+        return set;
+    }
+}
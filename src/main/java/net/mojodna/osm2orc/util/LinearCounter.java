@@ -0,0 +1,69 @@
+package net.mojodna.osm2orc.util;
+
+/**
+ * Estimates the number of distinct values added, in fixed memory, by linear
+ * counting: values are hashed into a bitmap and the estimate is derived from
+ * the fraction of bits still unset. Accurate while the number of distinct
+ * values stays within a small multiple of the bitmap size.
+ */
+public class LinearCounter {
+    private final long[] bits;
+    private final int mask;
+    private long count;
+
+    /**
+     * @param log2Bits
+     *            The bitmap size, as a power of 2.
+     */
+    public LinearCounter(int log2Bits) {
+        this.bits = new long[Math.max(1, (1 << log2Bits) >>> 6)];
+        this.mask = (1 << log2Bits) - 1;
+    }
+
+    private static long mix(long h) {
+        // murmur3's 64-bit finalizer, to spread String.hashCode() over the bitmap
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void add(String value) {
+        int bit = (int) mix(value.hashCode()) & mask;
+        bits[bit >>> 6] |= 1L << bit;
+        count++;
+    }
+
+    /**
+     * @return The number of values added (including repeats).
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long estimate() {
+        long m = (long) mask + 1;
+        long set = 0;
+
+        for (long word : bits) {
+            set += Long.bitCount(word);
+        }
+
+        if (set == m) {
+            // saturated; assume every value was distinct
+            return count;
+        }
+
+        return Math.min(count, Math.round(m * Math.log((double) m / (m - set))));
+    }
+
+    /**
+     * @return Estimated distinct values per value added, as compared against
+     *         ORC's dictionary key size threshold.
+     */
+    public double ratio() {
+        return count == 0 ? 0 : (double) estimate() / count;
+    }
+}
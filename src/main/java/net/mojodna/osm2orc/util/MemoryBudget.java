@@ -0,0 +1,115 @@
+package net.mojodna.osm2orc.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ceiling on the memory a conversion may use. Components reserve their
+ * (estimated) share up front or as they grow, so that a conversion that
+ * won't fit fails immediately with an explanation instead of running out of
+ * memory hours in.
+ */
+public class MemoryBudget {
+    private final long limit;
+    private final AtomicLong reserved = new AtomicLong();
+
+    public static class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Parses a size such as "512m", "4g" or a number of bytes.
+     */
+    public static MemoryBudget parse(String size) {
+        String s = size.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+
+        switch (s.charAt(s.length() - 1)) {
+            case 'k':
+                multiplier = 1L << 10;
+                break;
+
+            case 'm':
+                multiplier = 1L << 20;
+                break;
+
+            case 'g':
+                multiplier = 1L << 30;
+                break;
+
+            case 't':
+                multiplier = 1L << 40;
+                break;
+        }
+
+        if (multiplier > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+
+        return new MemoryBudget((long) (Double.parseDouble(s) * multiplier));
+    }
+
+    public static String format(long bytes) {
+        if (bytes >= 1L << 30) {
+            return String.format(Locale.ROOT, "%.1f GB", bytes / (double) (1L << 30));
+        }
+
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (double) (1L << 20));
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    public long getAvailable() {
+        return limit - reserved.get();
+    }
+
+    /**
+     * @param purpose
+     *            What the memory is for, used in the failure message.
+     * @throws ExceededException
+     *             If the reservation doesn't fit.
+     */
+    public void reserve(long bytes, String purpose) {
+        long total = reserved.addAndGet(bytes);
+
+        if (total > limit) {
+            reserved.addAndGet(-bytes);
+
+            throw new ExceededException(String.format(
+                    "%s needs %s, but only %s of the %s memory budget is left; raise --memory-budget",
+                    purpose, format(bytes), format(limit - total + bytes), format(limit)));
+        }
+    }
+
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * Fails if the heap can't hold the budget: an OutOfMemoryError would
+     * otherwise come first.
+     */
+    public void checkHeap() {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+
+        if (maxHeap != Long.MAX_VALUE && limit > maxHeap) {
+            throw new ExceededException(String.format(
+                    "The %s memory budget is larger than the maximum heap (%s); raise -Xmx (e.g. via JAVA_OPTS) or lower --memory-budget",
+                    format(limit), format(maxHeap)));
+        }
+    }
+}
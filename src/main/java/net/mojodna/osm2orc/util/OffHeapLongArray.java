@@ -0,0 +1,194 @@
+package net.mojodna.osm2orc.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable array of longs stored in direct (off-heap) buffers, so that
+ * large id and coordinate tables don't count against the Java heap or add GC
+ * pressure. Addressed by long indexes; chunks are allocated as the array
+ * grows.
+ *
+ * Direct memory is limited by <code>-XX:MaxDirectMemorySize</code>
+ * (defaulting to the maximum heap size).
+ */
+public class OffHeapLongArray {
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final List<LongBuffer> chunks = new ArrayList<>();
+    private long size;
+    private MemoryBudget budget;
+    private String purpose;
+
+    /**
+     * Reserves chunks from a budget as they're allocated.
+     *
+     * @param purpose
+     *            What the array holds, for failure messages.
+     */
+    public void setMemoryBudget(MemoryBudget budget, String purpose) {
+        this.budget = budget;
+        this.purpose = purpose;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void add(long value) {
+        if (size == (long) chunks.size() << CHUNK_BITS) {
+            if (budget != null) {
+                budget.reserve((long) CHUNK_SIZE * Long.BYTES, purpose + " (" + size + " entries so far)");
+            }
+
+            chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE * Long.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asLongBuffer());
+        }
+
+        chunks.get((int) (size >>> CHUNK_BITS)).put((int) (size & CHUNK_MASK), value);
+        size++;
+    }
+
+    public long get(long index) {
+        return chunks.get((int) (index >>> CHUNK_BITS)).get((int) (index & CHUNK_MASK));
+    }
+
+    public void set(long index, long value) {
+        chunks.get((int) (index >>> CHUNK_BITS)).put((int) (index & CHUNK_MASK), value);
+    }
+
+    /**
+     * Grows the array to <code>size</code> elements, filling new elements with
+     * <code>value</code>.
+     */
+    public void fill(long size, long value) {
+        while (this.size < size) {
+            add(value);
+        }
+    }
+
+    /**
+     * Sorts the array and removes duplicates, so that it can be searched with
+     * {@link #binarySearch(long)}.
+     */
+    public void sortUnique() {
+        sort(0, size - 1);
+
+        long unique = 0;
+
+        for (long i = 0; i < size; i++) {
+            long value = get(i);
+
+            if (unique == 0 || get(unique - 1) != value) {
+                set(unique++, value);
+            }
+        }
+
+        size = unique;
+    }
+
+    /**
+     * @return The index of <code>value</code> in a sorted array, or -1.
+     */
+    public long binarySearch(long value) {
+        long low = 0;
+        long high = size - 1;
+
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long v = get(mid);
+
+            if (v < value) {
+                low = mid + 1;
+            } else if (v > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    private void sort(long low, long high) {
+        // recurse into the smaller partition to bound stack depth
+        while (high - low > 16) {
+            long mid = (low + high) >>> 1;
+
+            // median of three as the pivot
+            if (get(mid) < get(low)) {
+                swap(mid, low);
+            }
+
+            if (get(high) < get(low)) {
+                swap(high, low);
+            }
+
+            if (get(high) < get(mid)) {
+                swap(high, mid);
+            }
+
+            long pivot = get(mid);
+            long i = low;
+            long j = high;
+
+            while (i <= j) {
+                while (get(i) < pivot) {
+                    i++;
+                }
+
+                while (get(j) > pivot) {
+                    j--;
+                }
+
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+
+        for (long i = low + 1; i <= high; i++) {
+            long value = get(i);
+            long j = i - 1;
+
+            while (j >= low && get(j) > value) {
+                set(j + 1, get(j));
+                j--;
+            }
+
+            set(j + 1, value);
+        }
+    }
+
+    private void swap(long i, long j) {
+        long t = get(i);
+        set(i, get(j));
+        set(j, t);
+    }
+
+    /**
+     * Drops the buffers; their memory is returned once they're collected.
+     */
+    public void clear() {
+        if (budget != null) {
+            budget.release((long) chunks.size() * CHUNK_SIZE * Long.BYTES);
+        }
+
+        chunks.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,80 @@
+package net.mojodna.osm2orc.util;
+
+/**
+ * Parses OSM timestamps (<code>yyyy-MM-ddTHH:mm:ssZ</code>, always UTC) into
+ * epoch milliseconds without allocating, which matters when there are
+ * hundreds of millions of them (as in the changeset dump).
+ */
+public final class Timestamps {
+    /**
+     * Stands in for a missing or malformed timestamp.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private static final int LENGTH = "yyyy-MM-ddTHH:mm:ssZ".length();
+
+    private Timestamps() {
+    }
+
+    /**
+     * @param value
+     *            May be null.
+     * @return Epoch milliseconds, or {@link #NONE} if <code>value</code> is
+     *         null or isn't an OSM timestamp.
+     */
+    public static long parse(CharSequence value) {
+        if (value == null || value.length() != LENGTH
+                || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T'
+                || value.charAt(13) != ':' || value.charAt(16) != ':' || value.charAt(19) != 'Z') {
+            return NONE;
+        }
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return NONE;
+        }
+
+        return ((days(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    /**
+     * @return The value of <code>length</code> decimal digits, or -1 if
+     *         they aren't all digits.
+     */
+    private static int digits(CharSequence value, int start, int length) {
+        int n = 0;
+
+        for (int i = start; i < start + length; i++) {
+            int digit = value.charAt(i) - '0';
+
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+
+            n = n * 10 + digit;
+        }
+
+        return n;
+    }
+
+    /**
+     * @return Days since 1970-01-01 (proleptic Gregorian), per
+     *         http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+     */
+    private static long days(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
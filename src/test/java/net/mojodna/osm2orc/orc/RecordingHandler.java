@@ -0,0 +1,67 @@
+package net.mojodna.osm2orc.orc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records each entity it's passed as a line of text, so that tests can
+ * compare everything a handler received (and see what differs when they
+ * don't match).
+ */
+public class RecordingHandler implements EntityHandler {
+    private final List<String> entities = new ArrayList<>();
+    private StringBuilder current;
+
+    public List<String> getEntities() {
+        end();
+        return entities;
+    }
+
+    @Override
+    public void startEntity(OsmType type, long id, long version, long timestamp, long changeset, long uid,
+                            byte[] user, int userStart, int userLength, boolean visible) {
+        end();
+        current = new StringBuilder()
+                .append(type).append(' ').append(id)
+                .append(" v").append(version)
+                .append(" t").append(timestamp)
+                .append(" c").append(changeset)
+                .append(" u").append(uid)
+                .append(" \"").append(string(user, userStart, userLength)).append('"')
+                .append(visible ? "" : " deleted");
+    }
+
+    @Override
+    public void addTag(byte[] key, int keyStart, int keyLength, byte[] value, int valueStart, int valueLength) {
+        current.append(" [").append(string(key, keyStart, keyLength))
+                .append('=').append(string(value, valueStart, valueLength)).append(']');
+    }
+
+    @Override
+    public void setLocation(long latitude, long longitude) {
+        current.append(" @").append(latitude).append(',').append(longitude);
+    }
+
+    @Override
+    public void addNodeRef(long ref) {
+        current.append(" n").append(ref);
+    }
+
+    @Override
+    public void addMember(OsmType type, long ref, byte[] role, int roleStart, int roleLength) {
+        current.append(" {").append(type).append(' ').append(ref)
+                .append(' ').append(string(role, roleStart, roleLength)).append('}');
+    }
+
+    private void end() {
+        if (current != null) {
+            entities.add(current.toString());
+            current = null;
+        }
+    }
+
+    private static String string(byte[] bytes, int start, int length) {
+        return new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+}
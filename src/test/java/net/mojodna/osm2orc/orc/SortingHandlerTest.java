@@ -0,0 +1,189 @@
+package net.mojodna.osm2orc.orc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SortingHandlerTest {
+    private static final byte[][] STRINGS = {
+            bytes(""), bytes("highway"), bytes("name"), bytes("outer"), bytes("\u6771\u4eac"), bytes("alice")
+    };
+
+    private final Random random = new Random(7);
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        List<Entity> entities = entities(200);
+        Path directory = Files.createTempDirectory("osm2orc-test");
+
+        try {
+            RecordingHandler actual = new RecordingHandler();
+            SortingHandler sorter = new SortingHandler(actual, directory, SortingHandler.DEFAULT_RUN_BYTES, 2);
+
+            replay(entities, sorter);
+            sorter.finish();
+
+            assertEquals(0, sorter.getSpilledRuns());
+            assertEquals(sorted(entities), actual.getEntities());
+            assertTrue(isEmpty(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void mergesSpilledRuns() throws IOException {
+        List<Entity> entities = entities(30000);
+        Path directory = Files.createTempDirectory("osm2orc-test");
+
+        try {
+            RecordingHandler actual = new RecordingHandler();
+            // tiny runs, so that there are more than can be merged at once
+            SortingHandler sorter = new SortingHandler(actual, directory, 512, 2);
+
+            replay(entities, sorter);
+
+            assertTrue("Only spilled " + sorter.getSpilledRuns() + " runs", sorter.getSpilledRuns() > 64);
+            assertEquals(entities.size(), sorter.getEntities());
+
+            sorter.finish();
+
+            assertEquals(sorted(entities), actual.getEntities());
+            assertTrue(isEmpty(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Entities with up to three versions each, in random order.
+     */
+    private List<Entity> entities(int count) {
+        List<Entity> entities = new ArrayList<>();
+        long[] ids = new long[OsmType.values().length];
+
+        while (entities.size() < count) {
+            OsmType type = OsmType.values()[random.nextInt(ids.length)];
+            long id = ids[type.ordinal()] += 1 + random.nextInt(1000);
+            int versions = 1 + random.nextInt(3);
+
+            for (int version = 1; version <= versions; version++) {
+                entities.add(new Entity(type, id, version, random));
+            }
+        }
+
+        Collections.shuffle(entities, random);
+
+        return entities;
+    }
+
+    private static void replay(List<Entity> entities, EntityHandler handler) throws IOException {
+        for (Entity entity : entities) {
+            entity.replay(handler);
+        }
+    }
+
+    private static List<String> sorted(List<Entity> entities) throws IOException {
+        List<Entity> sorted = new ArrayList<>(entities);
+        sorted.sort(Comparator.<Entity>comparingInt(e -> e.type.ordinal())
+                .thenComparingLong(e -> e.id)
+                .thenComparingLong(e -> e.version));
+
+        RecordingHandler expected = new RecordingHandler();
+        replay(sorted, expected);
+
+        return expected.getEntities();
+    }
+
+    private static boolean isEmpty(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return !files.findAny().isPresent();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Entity {
+        final OsmType type;
+        final long id;
+        final long version;
+        final long timestamp;
+        final long changeset;
+        final long uid;
+        final byte[] user;
+        final boolean visible;
+        final byte[][] tags;
+        final long latitude;
+        final long longitude;
+        final long[] refs;
+        final byte[][] roles;
+
+        Entity(OsmType type, long id, long version, Random random) {
+            this.type = type;
+            this.id = id;
+            this.version = version;
+            this.timestamp = 1100000000000L + random.nextInt(Integer.MAX_VALUE);
+            this.changeset = random.nextInt(150000000);
+            this.uid = random.nextInt(20000000);
+            this.user = STRINGS[random.nextInt(STRINGS.length)];
+            this.visible = random.nextInt(10) > 0;
+            this.tags = new byte[2 * random.nextInt(3)][];
+
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = STRINGS[random.nextInt(STRINGS.length)];
+            }
+
+            this.latitude = random.nextInt(1800000001) * 100L - 90000000000L;
+            this.longitude = random.nextInt(2000000000) * 100L - 100000000000L;
+            this.refs = new long[type == OsmType.NODE ? 0 : random.nextInt(12)];
+            this.roles = new byte[refs.length][];
+
+            for (int i = 0; i < refs.length; i++) {
+                refs[i] = random.nextLong() >> random.nextInt(64);
+                roles[i] = STRINGS[random.nextInt(STRINGS.length)];
+            }
+        }
+
+        void replay(EntityHandler handler) throws IOException {
+            handler.startEntity(type, id, version, timestamp, changeset, uid, user, 0, user.length, visible);
+
+            for (int i = 0; i < tags.length; i += 2) {
+                handler.addTag(tags[i], 0, tags[i].length, tags[i + 1], 0, tags[i + 1].length);
+            }
+
+            switch (type) {
+                case NODE:
+                    if (visible) {
+                        handler.setLocation(latitude, longitude);
+                    }
+                    break;
+
+                case WAY:
+                    for (long ref : refs) {
+                        handler.addNodeRef(ref);
+                    }
+                    break;
+
+                case RELATION:
+                    for (int i = 0; i < refs.length; i++) {
+                        handler.addMember(OsmType.values()[i % 3], refs[i], roles[i], 0, roles[i].length);
+                    }
+                    break;
+            }
+        }
+    }
+}
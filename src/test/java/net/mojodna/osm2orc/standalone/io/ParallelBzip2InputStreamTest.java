@@ -0,0 +1,133 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelBzip2InputStreamTest {
+    private static final String[] WORDS = {"<node", "id=\"", "lat=\"", "lon=\"", "<tag k=\"", "highway", "\"/>\n"};
+
+    private final Random random = new Random(11);
+
+    @Test
+    public void decodesASingleBlock() throws IOException {
+        byte[] data = data(50000);
+
+        assertArrayEquals(data, decode(compress(9, data)));
+    }
+
+    @Test
+    public void decodesManyBlocks() throws IOException {
+        // 100k blocks, and incompressible stretches so that block boundaries
+        // fall at arbitrary bit offsets
+        byte[] data = data(2000000);
+
+        assertArrayEquals(data, decode(compress(1, data)));
+    }
+
+    @Test
+    public void decodesConcatenatedStreams() throws IOException {
+        byte[] first = data(300000);
+        byte[] second = data(10);
+        byte[] third = data(250000);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(compress(1, first));
+        compressed.write(compress(9, second));
+        compressed.write(compress(1, new byte[0]));
+        compressed.write(compress(2, third));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        expected.write(third);
+
+        assertArrayEquals(expected.toByteArray(), decode(compressed.toByteArray()));
+    }
+
+    @Test
+    public void decodesAnEmptyStream() throws IOException {
+        assertArrayEquals(new byte[0], decode(compress(9, new byte[0])));
+    }
+
+    @Test
+    public void failsOnTruncatedInput() throws IOException {
+        byte[] compressed = compress(1, data(500000));
+
+        for (int length : new int[] {3, compressed.length / 3, compressed.length - 5}) {
+            try {
+                decode(Arrays.copyOf(compressed, length));
+                fail("Decoded " + length + " of " + compressed.length + " bytes");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * OSM XML-like text, interrupted by random bytes.
+     */
+    private byte[] data(int length) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(length);
+
+        while (data.size() < length) {
+            if (random.nextInt(20) == 0) {
+                byte[] noise = new byte[random.nextInt(5000)];
+                random.nextBytes(noise);
+                data.write(noise, 0, noise.length);
+            } else {
+                byte[] word = (WORDS[random.nextInt(WORDS.length)] + random.nextInt(100000))
+                        .getBytes(StandardCharsets.UTF_8);
+                data.write(word, 0, word.length);
+            }
+        }
+
+        return Arrays.copyOf(data.toByteArray(), length);
+    }
+
+    private static byte[] compress(int blockSize, byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (BZip2CompressorOutputStream out = new BZip2CompressorOutputStream(compressed, blockSize)) {
+            out.write(data);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decode(byte[] compressed) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+        try (InputStream in = new ParallelBzip2InputStream(new ByteArrayInputStream(compressed), 4)) {
+            // single bytes as well as buffers
+            int b = in.read();
+
+            if (b >= 0) {
+                decoded.write(b);
+
+                byte[] buffer = new byte[8191];
+                int n;
+
+                while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                    decoded.write(buffer, 0, n);
+                }
+            }
+
+            assertEquals(-1, in.read());
+        }
+
+        return decoded.toByteArray();
+    }
+}
@@ -0,0 +1,257 @@
+package net.mojodna.osm2orc.standalone.io;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import net.mojodna.osm2orc.util.MemoryBudget;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class S3MultipartOutputStreamTest {
+    private static final int PART_SIZE = S3MultipartOutputStream.MIN_PART_SIZE;
+
+    private final Random random = new Random(3);
+
+    @Test
+    public void splitsPartsAtThePartSize() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = random(PART_SIZE * 5 / 2);
+
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 3)) {
+            // in pieces that straddle part boundaries, and a byte at a time
+            int offset = 0;
+
+            while (offset < data.length - 1000) {
+                int length = Math.min(1 + random.nextInt(1024 * 1024), data.length - 1000 - offset);
+                out.write(data, offset, length);
+                offset += length;
+            }
+
+            while (offset < data.length) {
+                out.write(data[offset++]);
+            }
+        }
+
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(s3.parts.keySet()));
+        assertEquals(PART_SIZE, s3.parts.get(1).length);
+        assertEquals(PART_SIZE, s3.parts.get(2).length);
+        assertEquals(PART_SIZE / 2, s3.parts.get(3).length);
+        assertArrayEquals(data, s3.completed);
+    }
+
+    @Test
+    public void completesOnClose() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = random(PART_SIZE + 1);
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 2);
+
+        out.write(data);
+        out.flush();
+
+        assertTrue(s3.initiated);
+        assertNull(s3.completed);
+
+        out.close();
+
+        assertArrayEquals(data, s3.completed);
+        assertEquals(1, s3.completions);
+        assertFalse(s3.aborted);
+
+        // closing again does nothing
+        out.close();
+
+        assertEquals(1, s3.completions);
+    }
+
+    @Test
+    public void putsObjectsSmallerThanAPart() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = random(1000);
+
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 2)) {
+            out.write(data);
+        }
+
+        assertFalse(s3.initiated);
+        assertArrayEquals(data, s3.put);
+    }
+
+    @Test
+    public void abortsWhenAPartFails() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.failingPart = 1;
+        MemoryBudget budget = new MemoryBudget(1L << 30);
+        long reserved = (long) PART_SIZE * 2;
+
+        budget.reserve(reserved, "S3 upload buffers");
+
+        Outputs.DiscardableOutputStream out = Outputs.upload(
+                new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 2), budget, reserved);
+
+        try {
+            out.write(random(PART_SIZE * 3 / 2));
+        } catch (IOException e) {
+            // the failure may already surface here, but closing must still report it
+        }
+
+        try {
+            out.close();
+            fail("Expected the failed part to fail the upload");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertTrue(s3.aborted);
+        assertNull(s3.completed);
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    public void discardingAbortsTheUpload() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        MemoryBudget budget = new MemoryBudget(1L << 30);
+        long reserved = (long) PART_SIZE * 2;
+
+        budget.reserve(reserved, "S3 upload buffers");
+
+        Outputs.DiscardableOutputStream out = Outputs.upload(
+                new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 2), budget, reserved);
+
+        out.write(random(PART_SIZE * 3 / 2));
+        out.discarded = true;
+        out.close();
+
+        assertTrue(s3.aborted);
+        assertNull(s3.completed);
+        assertNull(s3.put);
+        assertEquals(0, budget.getReserved());
+    }
+
+    private byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Keeps uploaded parts in memory and assembles them when the upload is
+     * completed.
+     */
+    private static class FakeS3 extends AbstractAmazonS3 {
+        final Map<Integer, byte[]> parts = new TreeMap<>();
+        volatile int failingPart = -1;
+        volatile boolean initiated;
+        volatile boolean aborted;
+        volatile int completions;
+        volatile byte[] completed;
+        volatile byte[] put;
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            initiated = true;
+
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload");
+
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            if (request.getPartNumber() == failingPart) {
+                throw new SdkClientException("Part " + failingPart + " failed");
+            }
+
+            byte[] part = read(request.getInputStream());
+            assertEquals(request.getPartSize(), part.length);
+
+            synchronized (parts) {
+                parts.put(request.getPartNumber(), part);
+            }
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            List<PartETag> etags = request.getPartETags();
+
+            synchronized (parts) {
+                assertEquals(parts.size(), etags.size());
+
+                for (int i = 0; i < etags.size(); i++) {
+                    assertEquals(i + 1, etags.get(i).getPartNumber());
+                    assertEquals("etag-" + (i + 1), etags.get(i).getETag());
+
+                    byte[] part = parts.get(i + 1);
+                    object.write(part, 0, part.length);
+                }
+            }
+
+            completions++;
+            completed = object.toByteArray();
+
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            assertEquals("upload", request.getUploadId());
+            aborted = true;
+        }
+
+        @Override
+        public PutObjectResult putObject(PutObjectRequest request) {
+            put = read(request.getInputStream());
+
+            return new PutObjectResult();
+        }
+
+        private static byte[] read(InputStream in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+
+            try {
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                throw new SdkClientException(e);
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
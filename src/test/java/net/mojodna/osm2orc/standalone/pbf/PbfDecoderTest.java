@@ -0,0 +1,149 @@
+package net.mojodna.osm2orc.standalone.pbf;
+
+import net.mojodna.osm2orc.bench.PbfWriter;
+import net.mojodna.osm2orc.orc.OsmType;
+import net.mojodna.osm2orc.orc.RecordingHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PbfDecoderTest {
+    private static final String[] USERS = {"", "alice", "b\u00f6b", "\u5c71\u7530", "carol"};
+    private static final String[] KEYS = {"highway", "name", "name:ja", "building", "addr:street"};
+    private static final String[] VALUES = {"residential", "yes", "\u6771\u4eac", "Main Street", "x"};
+    private static final String[] ROLES = {"", "outer", "inner", "stop"};
+    private static final OsmType[] MEMBER_TYPES = {OsmType.NODE, OsmType.WAY, OsmType.RELATION};
+
+    private final Random random = new Random(42);
+    private final RecordingHandler expected = new RecordingHandler();
+
+    @Test
+    public void roundTrip() throws IOException {
+        ByteArrayOutputStream pbf = new ByteArrayOutputStream();
+        double[] bbox = {-75.79, 38.45, -75.05, 39.84};
+
+        // enough nodes to span several blocks (and string tables)
+        try (PbfWriter writer = new PbfWriter(pbf, "osm2orc-test", bbox)) {
+            long id = 5000000000L;
+
+            for (int i = 0; i < 20000; i++) {
+                id += 1 + random.nextInt(1000);
+                PbfWriter.Info info = info(OsmType.NODE, id);
+                int latitude = random.nextInt(1800000001) - 900000000;
+                int longitude = random.nextInt(2000000000) - 1000000000;
+                String[] tags = tags();
+
+                writer.node(id, info, latitude, longitude, tags);
+                expected.setLocation(latitude * 100L, longitude * 100L);
+                expectTags(tags);
+            }
+
+            id = 0;
+
+            for (int i = 0; i < 3000; i++) {
+                id += 1 + random.nextInt(10);
+                PbfWriter.Info info = info(OsmType.WAY, id);
+                String[] tags = tags();
+                long[] refs = new long[random.nextInt(20)];
+
+                for (int j = 0; j < refs.length; j++) {
+                    refs[j] = 5000000000L + random.nextInt(100000000);
+                }
+
+                writer.way(id, info, refs, tags);
+                expectTags(tags);
+
+                for (long ref : refs) {
+                    expected.addNodeRef(ref);
+                }
+            }
+
+            id = 0;
+
+            for (int i = 0; i < 500; i++) {
+                id += 1 + random.nextInt(10);
+                PbfWriter.Info info = info(OsmType.RELATION, id);
+                String[] tags = tags();
+                int count = random.nextInt(10);
+                long[] members = new long[count];
+                int[] types = new int[count];
+                String[] roles = new String[count];
+
+                for (int j = 0; j < count; j++) {
+                    members[j] = random.nextInt(100000000);
+                    types[j] = random.nextInt(MEMBER_TYPES.length);
+                    roles[j] = ROLES[random.nextInt(ROLES.length)];
+                }
+
+                writer.relation(id, info, members, types, roles, tags);
+                expectTags(tags);
+
+                for (int j = 0; j < count; j++) {
+                    byte[] role = roles[j].getBytes(StandardCharsets.UTF_8);
+                    expected.addMember(MEMBER_TYPES[types[j]], members[j], role, 0, role.length);
+                }
+            }
+        }
+
+        RecordingHandler actual = new RecordingHandler();
+        PbfDecoder decoder = new PbfDecoder(new ByteArrayInputStream(pbf.toByteArray()), actual);
+        PbfHeader header = decoder.readHeader();
+
+        assertEquals(Arrays.asList("OsmSchema-V0.6", "DenseNodes"), header.getRequiredFeatures());
+        assertEquals(Arrays.asList("Sort.Type_then_ID"), header.getOptionalFeatures());
+        assertEquals("osm2orc-test", header.getWritingProgram());
+        assertTrue(header.hasBounds());
+        assertEquals(bbox[0], header.getLeft(), 1e-9);
+        assertEquals(bbox[1], header.getBottom(), 1e-9);
+        assertEquals(bbox[2], header.getRight(), 1e-9);
+        assertEquals(bbox[3], header.getTop(), 1e-9);
+
+        decoder.decode();
+
+        assertEquals(23500, actual.getEntities().size());
+        assertEquals(expected.getEntities(), actual.getEntities());
+    }
+
+    private PbfWriter.Info info(OsmType type, long id) {
+        PbfWriter.Info info = new PbfWriter.Info();
+        info.version = 1 + random.nextInt(50);
+        // PBFs keep whole seconds
+        info.timestamp = (1100000000L + random.nextInt(700000000)) * 1000;
+        info.changeset = 1 + random.nextInt(150000000);
+        info.uid = random.nextInt(20000000);
+        info.user = USERS[random.nextInt(USERS.length)];
+
+        byte[] user = info.user.getBytes(StandardCharsets.UTF_8);
+        expected.startEntity(type, id, info.version, info.timestamp, info.changeset, info.uid,
+                user, 0, user.length, true);
+
+        return info;
+    }
+
+    private String[] tags() {
+        String[] tags = new String[2 * random.nextInt(4)];
+
+        for (int i = 0; i < tags.length; i += 2) {
+            tags[i] = KEYS[random.nextInt(KEYS.length)];
+            tags[i + 1] = VALUES[random.nextInt(VALUES.length)];
+        }
+
+        return tags;
+    }
+
+    private void expectTags(String[] tags) {
+        for (int i = 0; i < tags.length; i += 2) {
+            byte[] key = tags[i].getBytes(StandardCharsets.UTF_8);
+            byte[] value = tags[i + 1].getBytes(StandardCharsets.UTF_8);
+            expected.addTag(key, 0, key.length, value, 0, value.length);
+        }
+    }
+}